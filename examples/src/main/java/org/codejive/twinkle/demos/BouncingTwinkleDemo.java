@@ -13,13 +13,13 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Supplier;
-import org.codejive.twinkle.ansi.Ansi;
 import org.codejive.twinkle.ansi.Color;
 import org.codejive.twinkle.ansi.Style;
 import org.codejive.twinkle.ansi.util.Printable;
 import org.codejive.twinkle.fluent.Fluent;
 import org.codejive.twinkle.screen.Buffer;
 import org.codejive.twinkle.screen.BufferStack;
+import org.codejive.twinkle.screen.ScreenRenderer;
 import org.codejive.twinkle.screen.io.PrintBufferWriter;
 import org.codejive.twinkle.screen.util.FrameCounter;
 import org.codejive.twinkle.screen.util.Sized;
@@ -89,6 +89,7 @@ class BouncingTwinkleDemo {
                 Buffer buffer = Buffer.of(size);
                 PrintBufferWriter writer = buffer.writer();
                 buffers.primary(buffer);
+                ScreenRenderer renderer = ScreenRenderer.create();
 
                 Reader reader = terminal.reader();
                 while (handleKeys(reader)) {
@@ -112,8 +113,8 @@ class BouncingTwinkleDemo {
                             .markup("{green}[ {+}{white}fps %s{-} ]", Math.round(fps.average()));
                     f.at(textPos).color(textColor).text(text).done();
 
-                    // Write entire frame buffer to connection in one call
-                    terminal.writer().write(Ansi.cursorHome() + buffers.toAnsi());
+                    // Write only the changes since the last frame to connection in one call
+                    terminal.writer().write(renderer.render(buffers.combined()));
 
                     fps.update();
                     Thread.sleep(currentSleep);
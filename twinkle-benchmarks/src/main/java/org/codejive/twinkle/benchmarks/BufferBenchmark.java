@@ -0,0 +1,134 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.codejive.twinkle.ansi.Color;
+import org.codejive.twinkle.ansi.ColorProfile;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.ansi.util.Utf8Output;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.text.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the basic whole-buffer operations of {@link Buffer}. Run with:
+ *
+ * <pre>
+ * ./mvnw -pl twinkle-benchmarks -am package -DskipTests
+ * java -jar twinkle-benchmarks/target/benchmarks.jar BufferBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferBenchmark {
+    @Param({"200x60", "1000x1000"})
+    public String size;
+
+    private Buffer source;
+    private Buffer target;
+    private Buffer cached;
+    private Buffer parallel;
+    private Buffer downsampled;
+    private final Utf8Output utf8 = new Utf8Output();
+    private Size fullSize;
+    private Size smallerSize;
+
+    @Setup
+    public void setup() {
+        String[] parts = size.split("x");
+        fullSize = Size.of(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+        smallerSize = Size.of(fullSize.width(), fullSize.height() - 1);
+        source = Buffer.of(fullSize);
+        target = Buffer.of(fullSize);
+        for (int y = 0; y < fullSize.height(); y++) {
+            for (int x = 0; x < fullSize.width(); x++) {
+                Style style = Style.ofFgColor(Color.indexed((x + y) % 256));
+                source.putAt(x, y, (char) ('a' + (x + y) % 26), Buffer.styleOpt(style));
+            }
+        }
+        cached = Buffer.of(fullSize).cacheRows(true);
+        source.overlayOn(cached, 0, 0, null);
+        parallel = Buffer.of(fullSize).parallelEncoding(0);
+        source.overlayOn(parallel, 0, 0, null);
+        downsampled = Buffer.of(fullSize).colorProfile(ColorProfile.ANSI16);
+        source.overlayOn(downsampled, 0, 0, null);
+    }
+
+    @Benchmark
+    public Buffer clear() {
+        return target.clear();
+    }
+
+    @Benchmark
+    public Buffer resize() {
+        source.resize(smallerSize);
+        return source.resize(fullSize);
+    }
+
+    @Benchmark
+    public Buffer scroll() {
+        return source.scroll(0, fullSize.height() - 1, 1);
+    }
+
+    @Benchmark
+    public Buffer overlay() {
+        return source.overlayOn(target, 0, 0);
+    }
+
+    @Benchmark
+    public Buffer snapshot() {
+        // Taking a snapshot and then changing a row, like a producer handing off frames would
+        Buffer snapshot = source.snapshot();
+        source.printAt(0, 0, "updated");
+        return snapshot;
+    }
+
+    @Benchmark
+    public String toAnsi() {
+        return source.toAnsi();
+    }
+
+    @Benchmark
+    public String toAnsiCachedRows() {
+        return cached.toAnsi();
+    }
+
+    @Benchmark
+    public byte[] toAnsiBytes() {
+        return source.toAnsi().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Utf8Output toUtf8() {
+        return source.toUtf8(utf8.reset(), Style.UNKNOWN);
+    }
+
+    @Benchmark
+    public Utf8Output toUtf8Ansi16() {
+        return downsampled.toUtf8(utf8.reset(), Style.UNKNOWN);
+    }
+
+    @Benchmark
+    public Utf8Output toUtf8Parallel() {
+        return parallel.toUtf8(utf8.reset(), Style.UNKNOWN);
+    }
+
+    @Benchmark
+    public Utf8Output toUtf8CachedRows() {
+        return cached.toUtf8(utf8.reset(), Style.UNKNOWN);
+    }
+}
@@ -0,0 +1,73 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.BufferStack;
+import org.codejive.twinkle.text.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for compositing a {@link BufferStack} of a dozen popups on top of a full-screen
+ * primary buffer. Run with:
+ *
+ * <pre>
+ * java -jar twinkle-benchmarks/target/benchmarks.jar BufferStackBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BufferStackBenchmark {
+    private BufferStack stack;
+    private BufferStack.BufferElement tooltip;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        Size size = Size.of(200, 60);
+        stack = BufferStack.of(size);
+        for (int y = 0; y < size.height(); y++) {
+            for (int x = 0; x < size.width(); x++) {
+                stack.primary().putAt(x, y, (char) ('a' + (x + y) % 26));
+            }
+        }
+        for (int i = 0; i < 12; i++) {
+            Buffer popup = Buffer.of(30, 8);
+            popup.printAt(1, 1, "popup " + i);
+            stack.add(popup, (i * 13) % 170, (i * 7) % 52, i).transparancy = "";
+        }
+        tooltip = stack.add(Buffer.of(20, 1), 0, 0, 100);
+        tooltip.buffer.printAt(0, 0, "tooltip");
+        stack.combined();
+    }
+
+    @Benchmark
+    public Buffer unchanged() {
+        return stack.combined();
+    }
+
+    @Benchmark
+    public Buffer primaryCellChanged() {
+        stack.primary().putAt(frame++ % 200, 30, 'x');
+        return stack.combined();
+    }
+
+    @Benchmark
+    public Buffer tooltipMoved() {
+        frame++;
+        tooltip.pos = tooltip.pos.move(frame % 2 == 0 ? 1 : -1, 0);
+        return stack.combined();
+    }
+}
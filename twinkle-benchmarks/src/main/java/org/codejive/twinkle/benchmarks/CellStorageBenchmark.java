@@ -0,0 +1,71 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.util.CellStorage;
+import org.codejive.twinkle.screen.util.Rect;
+import org.codejive.twinkle.text.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for a huge virtual canvas (4000x4000 cells) kept on or off the heap or in sparse
+ * tiles, scrolling a screen-sized viewport over it. Run with the GC profiler to compare GC
+ * activity:
+ *
+ * <pre>
+ * java -jar twinkle-benchmarks/target/benchmarks.jar CellStorageBenchmark -prof gc
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+        value = 1,
+        jvmArgs = {"-Xmx2g"})
+@State(Scope.Thread)
+public class CellStorageBenchmark {
+    @Param({"HEAP", "DIRECT", "SPARSE"})
+    public String storage;
+
+    private Buffer canvas;
+    private Buffer viewport;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        CellStorage.Factory factory =
+                "HEAP".equals(storage)
+                        ? CellStorage.HEAP
+                        : "DIRECT".equals(storage) ? CellStorage.DIRECT : CellStorage.SPARSE;
+        canvas = Buffer.of(Size.of(4000, 4000), factory);
+        for (int y = 0; y < 4000; y += 3) {
+            canvas.printAt(0, y, "log line " + y + ": the quick brown fox jumps over the lazy dog");
+        }
+        viewport = Buffer.of(200, 60);
+    }
+
+    @Benchmark
+    public Buffer writeLine() {
+        int y = frame++ % 4000;
+        canvas.printAt(0, y, "updated line " + y);
+        return canvas;
+    }
+
+    @Benchmark
+    public Buffer scrollViewport() {
+        int top = frame++ % (4000 - 60);
+        canvas.overlayOn(viewport, Rect.of(0, top, 200, 60), 0, 0, "");
+        return viewport;
+    }
+}
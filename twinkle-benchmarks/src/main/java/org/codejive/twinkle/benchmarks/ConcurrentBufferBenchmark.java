@@ -0,0 +1,82 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.ConcurrentBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of several threads that each write to their own panel of a 200x60 screen, either
+ * through a {@link ConcurrentBuffer} or through a plain {@link Buffer} guarded by a single lock.
+ * Run with:
+ *
+ * <pre>
+ * java -jar twinkle-benchmarks/target/benchmarks.jar ConcurrentBufferBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ConcurrentBufferBenchmark {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 60;
+    private static final int PANELS = 4;
+    private static final String LINE =
+            "worker output: the quick brown fox jumps over the lazy dog 中文 0123456789";
+
+    private Buffer buffer;
+    private ConcurrentBuffer concurrent;
+    private final AtomicInteger panels = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Panel {
+        int top;
+        int row;
+
+        @Setup
+        public void setup(ConcurrentBufferBenchmark benchmark) {
+            top = (benchmark.panels.getAndIncrement() % PANELS) * (HEIGHT / PANELS);
+        }
+
+        int nextRow() {
+            row = (row + 1) % (HEIGHT / PANELS);
+            return top + row;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        buffer = Buffer.of(WIDTH, HEIGHT);
+        concurrent = ConcurrentBuffer.of(WIDTH, HEIGHT);
+    }
+
+    @Benchmark
+    public Buffer synchronizedBuffer(Panel panel) {
+        int y = panel.nextRow();
+        synchronized (buffer) {
+            buffer.printAt(0, y, LINE);
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    public ConcurrentBuffer concurrentBuffer(Panel panel) {
+        concurrent.printAt(0, panel.nextRow(), LINE);
+        return concurrent;
+    }
+}
@@ -0,0 +1,67 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.ScreenRenderer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for rendering successive frames of a full-screen log view with a {@link
+ * ScreenRenderer}. Run with:
+ *
+ * <pre>
+ * java -jar twinkle-benchmarks/target/benchmarks.jar ScreenRendererBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScreenRendererBenchmark {
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 60;
+
+    private Buffer frame;
+    private Buffer scrolledFrame;
+    private ScreenRenderer renderer;
+    private int count;
+
+    @Setup
+    public void setup() {
+        frame = logFrame(0);
+        scrolledFrame = logFrame(1);
+        renderer = ScreenRenderer.create();
+        renderer.render(frame, new StringBuilder());
+    }
+
+    private static Buffer logFrame(int firstLine) {
+        Buffer buffer = Buffer.of(WIDTH, HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            buffer.printAt(0, y, String.format("%08d some log message", firstLine + y));
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    public Appendable unchanged() {
+        return renderer.render(frame, new StringBuilder());
+    }
+
+    @Benchmark
+    public Appendable logScrolled() {
+        // Alternates between scrolling the log up and down by a line
+        Buffer next = (count++ % 2 == 0) ? scrolledFrame : frame;
+        return renderer.render(next, new StringBuilder());
+    }
+}
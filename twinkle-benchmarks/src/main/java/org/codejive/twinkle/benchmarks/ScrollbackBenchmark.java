@@ -0,0 +1,70 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.codejive.twinkle.ansi.Color;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.Scrollback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for adding lines of colored output to a full {@link Scrollback} of 100k lines and for
+ * viewing them again. Run with:
+ *
+ * <pre>
+ * java -jar twinkle-benchmarks/target/benchmarks.jar ScrollbackBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScrollbackBenchmark {
+    private static final int LINES = 100_000;
+
+    private Scrollback scrollback;
+    private Buffer buffer;
+    private Buffer view;
+    private int line;
+
+    @Setup
+    public void setup() {
+        scrollback = new Scrollback(LINES);
+        buffer = Buffer.of(200, 1);
+        buffer.printAt(0, 0, "$ ls -l ");
+        for (int x = 8; x < 120; x++) {
+            buffer.putAt(
+                    x,
+                    0,
+                    (char) ('a' + x % 26),
+                    Buffer.styleOpt(Style.DEFAULT.fgColor(Color.indexed(x / 10))));
+        }
+        for (int i = 0; i < LINES; i++) {
+            scrollback.add(buffer, 0);
+        }
+        view = Buffer.of(200, 1);
+    }
+
+    @Benchmark
+    public Scrollback add() {
+        scrollback.add(buffer, 0);
+        return scrollback;
+    }
+
+    @Benchmark
+    public Buffer view() {
+        scrollback.copyTo(line++ % LINES, view, 0);
+        return view;
+    }
+}
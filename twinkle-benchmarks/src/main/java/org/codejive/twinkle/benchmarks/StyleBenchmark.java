@@ -0,0 +1,98 @@
+package org.codejive.twinkle.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.codejive.twinkle.ansi.Color;
+import org.codejive.twinkle.ansi.ColorProfile;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.ansi.util.Utf8Output;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for encoding the transitions between styles as ANSI, cycling through a handful of
+ * typical styles. Run with:
+ *
+ * <pre>
+ * ./mvnw -pl twinkle-benchmarks -am package -DskipTests
+ * java -jar twinkle-benchmarks/target/benchmarks.jar StyleBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StyleBenchmark {
+    private Style[] styles;
+    private int next;
+    private final StringBuilder sb = new StringBuilder();
+    private final Utf8Output utf8 = new Utf8Output();
+    // Typical sequences as written by ls --color and compilers
+    private final String[] sequences = {
+        "\u001b[0m", "\u001b[01;34m", "\u001b[01;38;5;33m", "\u001b[1;31m", "\u001b[38;2;255;128;0m"
+    };
+
+    @Setup
+    public void setup() {
+        styles =
+                new Style[] {
+                    Style.DEFAULT,
+                    Style.BOLD.and(Style.DEFAULT).fgColor(Color.BasicColor.RED),
+                    Style.DEFAULT.fgColor(Color.indexed(244)).bgColor(Color.indexed(17)),
+                    Style.of(Style.F_UNDERLINED).fgColor(Color.rgb(255, 128, 0)),
+                    Style.of(Style.F_INVERSE | Style.F_ITALIC).bgColor(Color.rgb(30, 30, 30))
+                };
+    }
+
+    @Benchmark
+    public StringBuilder toAnsiStringBuilder() {
+        sb.setLength(0);
+        return (StringBuilder) nextStyle().toAnsi(sb, styles[next]);
+    }
+
+    @Benchmark
+    public Utf8Output toAnsiUtf8() {
+        utf8.reset();
+        return (Utf8Output) nextStyle().toAnsi(utf8, styles[next]);
+    }
+
+    @Benchmark
+    public Utf8Output toAnsiUtf8Minimal() {
+        utf8.reset();
+        return (Utf8Output) nextStyle().toAnsi(utf8, styles[next], true);
+    }
+
+    @Benchmark
+    public Style parse() {
+        String sequence = sequences[next];
+        next = (next + 1) % sequences.length;
+        return Style.parse(Style.DEFAULT, sequence);
+    }
+
+    @Benchmark
+    public Color decode() {
+        // Like Buffer.styleAt() followed by a look at its colors
+        Style style = Style.of(nextStyle().state());
+        return style.fgColor() == Color.DEFAULT ? style.bgColor() : style.fgColor();
+    }
+
+    @Benchmark
+    public long downsample() {
+        return Style.downsample(nextStyle().state(), ColorProfile.ANSI16);
+    }
+
+    private Style nextStyle() {
+        Style style = styles[next];
+        next = (next + 1) % styles.length;
+        return style;
+    }
+}
@@ -1,14 +1,25 @@
 package org.codejive.twinkle.screen;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.codejive.twinkle.ansi.Ansi;
+import org.codejive.twinkle.ansi.ColorProfile;
 import org.codejive.twinkle.ansi.Hyperlink;
 import org.codejive.twinkle.ansi.Style;
 import org.codejive.twinkle.ansi.util.Printable;
+import org.codejive.twinkle.ansi.util.Utf8Output;
 import org.codejive.twinkle.screen.io.BufferWriter;
 import org.codejive.twinkle.screen.io.PrintBufferWriter;
+import org.codejive.twinkle.screen.util.CellStorage;
+import org.codejive.twinkle.screen.util.ChangeSet;
+import org.codejive.twinkle.screen.util.GraphemePool;
+import org.codejive.twinkle.screen.util.LinkTable;
 import org.codejive.twinkle.screen.util.Rect;
+import org.codejive.twinkle.screen.util.TransparencyMask;
 import org.codejive.twinkle.text.Size;
 import org.codejive.twinkle.text.StyledIterator;
 import org.codejive.twinkle.text.Unicode;
@@ -17,9 +28,17 @@ import org.jspecify.annotations.NonNull;
 public class Buffer implements Printable, RenderTarget {
     protected @NonNull Rect rect;
     protected InternalBuffers buffers;
+    private RowCache rowCache;
+    private Scrollback scrollback;
+    private int parallelEncodingCells = Integer.MAX_VALUE;
+    private boolean minimalStyles;
+    private @NonNull ColorProfile colorProfile = ColorProfile.TRUECOLOR;
 
     public static final char REPLACEMENT_CHAR = '\uFFFD';
 
+    // The approximate amount of cells encoded by each task when encoding in parallel
+    private static final int PARALLEL_BAND_CELLS = 16 * 1024;
+
     /**
      * Create a new Buffer with the specified width and height.
      *
@@ -41,31 +60,502 @@ public class Buffer implements Printable, RenderTarget {
         return new Buffer(size);
     }
 
+    /**
+     * Create a new Buffer with the specified size that keeps its cells in the given kind of
+     * storage. Use {@link CellStorage#DIRECT} or {@link CellStorage#mapped} to keep the cells of
+     * very large buffers off the heap.
+     *
+     * @param size the size of the buffer
+     * @param storage the factory for the storage of the cells
+     * @return a new Buffer instance with the specified dimensions
+     */
+    public static @NonNull Buffer of(@NonNull Size size, CellStorage.@NonNull Factory storage) {
+        return new Buffer(size, storage);
+    }
+
+    /**
+     * The cell storage of a Buffer. The codepoints and styles of the cells are kept in a {@link
+     * CellStorage}, which is either on or off the heap, while the rarer graphemes and hyperlinks
+     * are kept in per-row arrays. All are row-major and indexed by <code>row * width + x</code>,
+     * where <code>row</code> is the storage row that currently holds the cells of row <code>y
+     * </code>. This indirection makes it possible to scroll by rotating rows instead of copying
+     * their cells. Graphemes and hyperlinks are rare so their columns are only allocated for rows
+     * that actually hold any of them. Both are interned in a per-buffer {@link GraphemePool} and
+     * {@link LinkTable} respectively and cells only store their id.
+     *
+     * <p>A snapshot shares the cells and the grapheme and hyperlink columns with the buffers it was
+     * taken from. Both sides copy a row (or chunk of cells) before writing to it for the first time
+     * after the snapshot was taken, so taking a snapshot only costs a copy of the per-row data.
+     */
     protected static class InternalBuffers {
-        public final int[][] cpBuffer;
-        public final String[][] graphemeBuffer;
-        public final long[][] styleBuffer;
-        public final Hyperlink[][] linkBuffer;
+        public final @NonNull CellStorage cells;
+        public final CellStorage.@NonNull Factory storage;
+        public final int[][] graphemeBuffer;
+        public final int[][] linkBuffer;
+        public final @NonNull GraphemePool graphemes;
+        public final @NonNull LinkTable links;
+        public final @NonNull ChangeSet changes;
+        // Incremented each time a row is written, used to detect stale cached output
+        public final int[] rowVersions;
+        // The storage row that holds the cells of each row
+        private final int[] rows;
+        private boolean rowsInOrder;
+        // The storage rows whose grapheme and link columns are shared with a snapshot
+        private final boolean[] sharedRefs;
         public final @NonNull Size size;
+        public final int width;
+        public final int height;
+        private int graphemeCompactLimit;
+        private int linkCompactLimit;
+        private TransparencyMask mask;
+
+        private static final int MIN_GRAPHEME_COMPACT_LIMIT = 4096;
+        private static final int MIN_LINK_COMPACT_LIMIT = 256;
 
         public InternalBuffers(@NonNull Size size) {
-            this(
-                    new int[size.height()][size.width()],
-                    new String[size.height()][size.width()],
-                    new long[size.height()][size.width()],
-                    new Hyperlink[size.height()][size.width()]);
+            this(size, CellStorage.HEAP);
+        }
+
+        public InternalBuffers(@NonNull Size size, CellStorage.@NonNull Factory storage) {
+            this.size = size;
+            this.width = size.width();
+            this.height = size.height();
+            this.storage = storage;
+            this.cells = storage.create(width, height);
+            this.graphemeBuffer = new int[height][];
+            this.linkBuffer = new int[height][];
+            this.graphemes = new GraphemePool();
+            this.links = new LinkTable();
+            this.graphemeCompactLimit = MIN_GRAPHEME_COMPACT_LIMIT;
+            this.linkCompactLimit = MIN_LINK_COMPACT_LIMIT;
+            this.rowVersions = new int[height];
+            this.rows = new int[height];
+            resetRows();
+            this.sharedRefs = new boolean[height];
+            this.changes = new ChangeSet(width, height);
+            // Everything in a new buffer counts as changed
+            changes.markAll();
+        }
+
+        private InternalBuffers(@NonNull InternalBuffers other) {
+            this.size = other.size;
+            this.width = other.width;
+            this.height = other.height;
+            this.storage = other.storage;
+            this.cells = other.cells.snapshot();
+            this.graphemeBuffer = other.graphemeBuffer.clone();
+            this.linkBuffer = other.linkBuffer.clone();
+            this.graphemes = new GraphemePool(other.graphemes);
+            this.links = new LinkTable(other.links);
+            this.graphemeCompactLimit = other.graphemeCompactLimit;
+            this.linkCompactLimit = other.linkCompactLimit;
+            this.rowVersions = other.rowVersions.clone();
+            this.rows = other.rows.clone();
+            this.rowsInOrder = other.rowsInOrder;
+            this.sharedRefs = new boolean[height];
+            this.changes = new ChangeSet(other.changes);
+            Arrays.fill(sharedRefs, true);
+            Arrays.fill(other.sharedRefs, true);
+        }
+
+        /**
+         * Take a snapshot of these buffers. Changes made to either these buffers or the snapshot
+         * afterwards are not visible in the other.
+         */
+        public @NonNull InternalBuffers snapshot() {
+            return new InternalBuffers(this);
+        }
+
+        /**
+         * Make sure the grapheme and hyperlink columns of storage row <code>row</code> aren't
+         * shared with a snapshot anymore, so they can be written.
+         */
+        private void ownRefs(int row) {
+            if (sharedRefs[row]) {
+                if (graphemeBuffer[row] != null) {
+                    graphemeBuffer[row] = graphemeBuffer[row].clone();
+                }
+                if (linkBuffer[row] != null) {
+                    linkBuffer[row] = linkBuffer[row].clone();
+                }
+                sharedRefs[row] = false;
+            }
+        }
+
+        private void resetRows() {
+            for (int y = 0; y < height; y++) {
+                rows[y] = y;
+            }
+            rowsInOrder = true;
+        }
+
+        public int index(int x, int y) {
+            return rows[y] * width + x;
         }
 
-        public InternalBuffers(
-                int[][] cpBuffer,
-                String[][] graphemeBuffer,
-                long[][] styleBuffer,
-                Hyperlink[][] linkBuffer) {
-            this.cpBuffer = cpBuffer;
-            this.graphemeBuffer = graphemeBuffer;
-            this.styleBuffer = styleBuffer;
-            this.linkBuffer = linkBuffer;
-            this.size = Size.of(styleBuffer[0].length, styleBuffer.length);
+        public int cp(int x, int y) {
+            return cells.cp(index(x, y));
+        }
+
+        public long style(int x, int y) {
+            return cells.style(index(x, y));
+        }
+
+        public int graphemeId(int x, int y) {
+            int[] row = graphemeBuffer[rows[y]];
+            return row != null ? row[x] : GraphemePool.NONE;
+        }
+
+        public String grapheme(int x, int y) {
+            return graphemes.get(graphemeId(x, y));
+        }
+
+        public int linkId(int x, int y) {
+            int[] row = linkBuffer[rows[y]];
+            return row != null ? row[x] : LinkTable.NONE;
+        }
+
+        public Hyperlink link(int x, int y) {
+            return links.get(linkId(x, y));
+        }
+
+        public void set(
+                int x, int y, long styleState, int cp, CharSequence grapheme, Hyperlink link) {
+            int idx = index(x, y);
+            cells.set(idx, cp, styleState);
+            rowVersions[y]++;
+            changes.mark(x, y);
+            if (mask != null) {
+                mask.set(idx, cp);
+            }
+            if (grapheme != null) {
+                int graphemeId = graphemeIdOf(grapheme);
+                graphemeRow(y)[x] = graphemeId;
+            } else if (graphemeBuffer[rows[y]] != null) {
+                graphemeRow(y)[x] = GraphemePool.NONE;
+            }
+            if (link != null) {
+                int linkId = linkIdOf(link);
+                linkRow(y)[x] = linkId;
+            } else if (linkBuffer[rows[y]] != null) {
+                linkRow(y)[x] = LinkTable.NONE;
+            }
+        }
+
+        private int graphemeIdOf(CharSequence grapheme) {
+            if (graphemes.arenaSize() >= graphemeCompactLimit) {
+                compactGraphemes();
+            }
+            return graphemes.idOf(grapheme);
+        }
+
+        private int graphemeIdOf(GraphemePool pool, int id) {
+            if (pool != graphemes && graphemes.arenaSize() >= graphemeCompactLimit) {
+                compactGraphemes();
+            }
+            return graphemes.idOf(pool, id);
+        }
+
+        /** Reclaim the space of graphemes that are no longer referenced by any cell. */
+        private void compactGraphemes() {
+            int[] remap = graphemes.compact(usedIds(graphemeBuffer, graphemes.size()));
+            ownAllRefs();
+            remapIds(graphemeBuffer, remap);
+            graphemeCompactLimit = Math.max(MIN_GRAPHEME_COMPACT_LIMIT, graphemes.arenaSize() * 2);
+        }
+
+        private static boolean[] usedIds(int[][] idRows, int size) {
+            boolean[] used = new boolean[size];
+            for (int[] row : idRows) {
+                if (row != null) {
+                    for (int id : row) {
+                        used[id] = true;
+                    }
+                }
+            }
+            return used;
+        }
+
+        private void ownAllRefs() {
+            for (int row = 0; row < height; row++) {
+                ownRefs(row);
+            }
+        }
+
+        private static void remapIds(int[][] idRows, int[] remap) {
+            for (int[] row : idRows) {
+                if (row != null) {
+                    for (int x = 0; x < row.length; x++) {
+                        row[x] = remap[row[x]];
+                    }
+                }
+            }
+        }
+
+        private int linkIdOf(Hyperlink link) {
+            int id = links.find(link);
+            if (id < 0) {
+                if (links.size() >= linkCompactLimit) {
+                    compactLinks();
+                }
+                id = links.idOf(link);
+            }
+            return id;
+        }
+
+        /** Remove hyperlinks that are no longer referenced by any cell from the link table. */
+        private void compactLinks() {
+            int[] remap = links.compact(usedIds(linkBuffer, links.size()));
+            ownAllRefs();
+            remapIds(linkBuffer, remap);
+            linkCompactLimit = Math.max(MIN_LINK_COMPACT_LIMIT, links.size() * 2);
+        }
+
+        private int[] graphemeRow(int y) {
+            ownRefs(rows[y]);
+            int[] row = graphemeBuffer[rows[y]];
+            if (row == null) {
+                row = graphemeBuffer[rows[y]] = new int[width];
+            }
+            return row;
+        }
+
+        private int[] linkRow(int y) {
+            ownRefs(rows[y]);
+            int[] row = linkBuffer[rows[y]];
+            if (row == null) {
+                row = linkBuffer[rows[y]] = new int[width];
+            }
+            return row;
+        }
+
+        public boolean sameCell(int x, int y, @NonNull InternalBuffers other) {
+            return sameCell(x, y, other, x, y);
+        }
+
+        public boolean sameCell(
+                int x, int y, @NonNull InternalBuffers other, int otherX, int otherY) {
+            int idx = index(x, y);
+            int otherIdx = other.index(otherX, otherY);
+            if (cells.cp(idx) != other.cells.cp(otherIdx)
+                    || cells.style(idx) != other.cells.style(otherIdx)) {
+                return false;
+            }
+            int graphemeId = graphemeId(x, y);
+            int otherGraphemeId = other.graphemeId(otherX, otherY);
+            if (graphemeId == GraphemePool.NONE || otherGraphemeId == GraphemePool.NONE) {
+                if (graphemeId != otherGraphemeId) {
+                    return false;
+                }
+            } else if (!graphemes.get(graphemeId).equals(other.graphemes.get(otherGraphemeId))) {
+                return false;
+            }
+            int linkId = linkId(x, y);
+            int otherLinkId = other.linkId(otherX, otherY);
+            if (linkId == LinkTable.NONE || otherLinkId == LinkTable.NONE) {
+                return linkId == otherLinkId;
+            }
+            return links.get(linkId).equals(other.links.get(otherLinkId));
+        }
+
+        /**
+         * Determine if the given number of cells starting at column <code>x</code> of row <code>y
+         * </code> are the same as the cells starting at column <code>otherX</code> of row <code>
+         * otherY</code> in the other buffer.
+         */
+        public boolean sameCells(
+                int x, int y, @NonNull InternalBuffers other, int otherX, int otherY, int len) {
+            if (!cells.sameCells(index(x, y), other.cells, other.index(otherX, otherY), len)) {
+                return false;
+            }
+            if (graphemeBuffer[rows[y]] == null
+                    && linkBuffer[rows[y]] == null
+                    && other.graphemeBuffer[other.rows[otherY]] == null
+                    && other.linkBuffer[other.rows[otherY]] == null) {
+                return true;
+            }
+            for (int i = 0; i < len; i++) {
+                if (!sameCell(x + i, y, other, otherX + i, otherY)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Calculate a hash of the contents of row <code>y</code>. Graphemes and hyperlinks are
+         * hashed by value, so the hashes of rows of different buffers can be compared.
+         */
+        public int rowHash(int y) {
+            int[] graphemeIds = graphemeBuffer[rows[y]];
+            int[] linkIds = linkBuffer[rows[y]];
+            int idx = index(0, y);
+            int hash = 1;
+            for (int x = 0; x < width; x++, idx++) {
+                hash = 31 * hash + cells.cp(idx);
+                hash = 31 * hash + Long.hashCode(cells.style(idx));
+                if (graphemeIds != null && graphemeIds[x] != GraphemePool.NONE) {
+                    hash = 31 * hash + graphemes.get(graphemeIds[x]).hashCode();
+                }
+                if (linkIds != null && linkIds[x] != LinkTable.NONE) {
+                    hash = 31 * hash + links.get(linkIds[x]).hashCode();
+                }
+            }
+            return hash;
+        }
+
+        /** Reset all cells to their default (cleared) state. */
+        public void clear() {
+            cells.fill(0, cells.size(), 0, Style.F_UNSTYLED);
+            Arrays.fill(graphemeBuffer, null);
+            Arrays.fill(linkBuffer, null);
+            Arrays.fill(sharedRefs, false);
+            graphemes.clear();
+            links.clear();
+            resetRows();
+            bumpRowVersions(0, height);
+            changes.markAll();
+            if (mask != null) {
+                mask.fill(0, cells.size(), 0);
+            }
+        }
+
+        /**
+         * Reset all cells of the rows <code>fromY</code> (inclusive) up to <code>toY</code>
+         * (exclusive) to their default (cleared) state.
+         */
+        public void clearRows(int fromY, int toY) {
+            if (fromY >= toY) {
+                return;
+            }
+            for (int y = fromY; y < toY; y++) {
+                int row = rows[y];
+                cells.fill(row * width, (row + 1) * width, 0, Style.F_UNSTYLED);
+                graphemeBuffer[row] = null;
+                linkBuffer[row] = null;
+                sharedRefs[row] = false;
+                if (mask != null) {
+                    mask.fill(row * width, (row + 1) * width, 0);
+                }
+            }
+            bumpRowVersions(fromY, toY);
+            changes.markRows(fromY, toY);
+        }
+
+        /**
+         * Move the contents of the rows <code>top</code> up to and including <code>bottom</code> up
+         * by the given amount of rows, or down if the amount is negative. The rows that get
+         * uncovered are cleared, the ones that get moved out of the range are lost. No cells are
+         * copied, the rows are rotated instead so only the uncovered rows need to be cleared.
+         */
+        public void scrollRows(int top, int bottom, int amount) {
+            int count = bottom - top + 1;
+            if (amount == 0 || count <= 0) {
+                return;
+            }
+            if (Math.abs(amount) >= count) {
+                clearRows(top, bottom + 1);
+            } else if (amount > 0) {
+                rotateRows(top, bottom + 1, amount);
+                bumpRowVersions(top, bottom - amount + 1);
+                changes.markRows(top, bottom - amount + 1);
+                clearRows(bottom - amount + 1, bottom + 1);
+            } else {
+                rotateRows(top, bottom + 1, count + amount);
+                bumpRowVersions(top - amount, bottom + 1);
+                changes.markRows(top - amount, bottom + 1);
+                clearRows(top, top - amount);
+            }
+        }
+
+        /**
+         * Rotate the rows <code>fromY</code> (inclusive) up to <code>toY</code> (exclusive) so that
+         * row <code>fromY + amount</code> becomes the first one, using three in-place reversals.
+         */
+        private void rotateRows(int fromY, int toY, int amount) {
+            reverseRows(fromY, fromY + amount);
+            reverseRows(fromY + amount, toY);
+            reverseRows(fromY, toY);
+            rowsInOrder = false;
+        }
+
+        private void reverseRows(int fromY, int toY) {
+            for (int i = fromY, j = toY - 1; i < j; i++, j--) {
+                int tmp = rows[i];
+                rows[i] = rows[j];
+                rows[j] = tmp;
+            }
+        }
+
+        /**
+         * Move the cells of row <code>y</code> starting at column <code>x</code> to the right by
+         * the given amount of cells, or to the left if the amount is negative. The cells that get
+         * uncovered are cleared, the ones that get moved past the edges are lost.
+         */
+        public void shiftCells(int y, int x, int amount) {
+            int cells = width - x;
+            if (amount == 0 || cells <= 0) {
+                return;
+            }
+            if (Math.abs(amount) >= cells) {
+                clearCells(y, x, width);
+            } else if (amount > 0) {
+                moveCells(y, x, x + amount, cells - amount);
+                clearCells(y, x, x + amount);
+            } else {
+                moveCells(y, x - amount, x, cells + amount);
+                clearCells(y, width + amount, width);
+            }
+        }
+
+        private void moveCells(int y, int fromX, int toX, int count) {
+            int fromIdx = index(fromX, y);
+            int toIdx = index(toX, y);
+            cells.copyTo(fromIdx, cells, toIdx, count);
+            ownRefs(rows[y]);
+            int[] graphemeIds = graphemeBuffer[rows[y]];
+            if (graphemeIds != null) {
+                System.arraycopy(graphemeIds, fromX, graphemeIds, toX, count);
+            }
+            int[] linkIds = linkBuffer[rows[y]];
+            if (linkIds != null) {
+                System.arraycopy(linkIds, fromX, linkIds, toX, count);
+            }
+            rowVersions[y]++;
+            changes.mark(y, toX, toX + count - 1);
+            if (mask != null) {
+                mask.update(cells, toIdx, toIdx + count);
+            }
+        }
+
+        /**
+         * Reset the cells of row <code>y</code> from column <code>fromX</code> (inclusive) up to
+         * <code>toX</code> (exclusive) to their default (cleared) state.
+         */
+        public void clearCells(int y, int fromX, int toX) {
+            int fromIdx = index(fromX, y);
+            int toIdx = index(toX, y);
+            cells.fill(fromIdx, toIdx, 0, Style.F_UNSTYLED);
+            ownRefs(rows[y]);
+            int[] graphemeIds = graphemeBuffer[rows[y]];
+            if (graphemeIds != null) {
+                Arrays.fill(graphemeIds, fromX, toX, GraphemePool.NONE);
+            }
+            int[] linkIds = linkBuffer[rows[y]];
+            if (linkIds != null) {
+                Arrays.fill(linkIds, fromX, toX, LinkTable.NONE);
+            }
+            rowVersions[y]++;
+            changes.mark(y, fromX, toX - 1);
+            if (mask != null) {
+                mask.fill(fromIdx, toIdx, 0);
+            }
+        }
+
+        private void bumpRowVersions(int fromY, int toY) {
+            for (int y = fromY; y < toY; y++) {
+                rowVersions[y]++;
+            }
         }
 
         public void copyTo(
@@ -77,8 +567,8 @@ public class Buffer implements Printable, RenderTarget {
             // Calculate the actual region to copy, bounded by both source and target dimensions
             int sourceLeft = Math.max(0, sourceRect.left());
             int sourceTop = Math.max(0, sourceRect.top());
-            int sourceRight = Math.min(size.width(), sourceRect.left() + sourceRect.width());
-            int sourceBottom = Math.min(size.height(), sourceRect.top() + sourceRect.height());
+            int sourceRight = Math.min(width, sourceRect.left() + sourceRect.width());
+            int sourceBottom = Math.min(height, sourceRect.top() + sourceRect.height());
 
             int copyWidth = sourceRight - sourceLeft;
             int copyHeight = sourceBottom - sourceTop;
@@ -98,8 +588,8 @@ public class Buffer implements Printable, RenderTarget {
             }
 
             // Adjust copy dimensions if target position would go out of bounds
-            copyWidth = Math.min(copyWidth, targetBuffers.size.width() - targetX);
-            copyHeight = Math.min(copyHeight, targetBuffers.size.height() - targetY);
+            copyWidth = Math.min(copyWidth, targetBuffers.width - targetX);
+            copyHeight = Math.min(copyHeight, targetBuffers.height - targetY);
 
             // Only proceed if there's actually something to copy
             if (copyWidth <= 0 || copyHeight <= 0) {
@@ -136,34 +626,31 @@ public class Buffer implements Printable, RenderTarget {
                 int sourceTop,
                 int copyWidth,
                 int copyHeight) {
-            // Copy the data
-            for (int y = 0; y < copyHeight; y++) {
-                int sourceY = sourceTop + y;
-                int targetYPos = targetY + y;
-                System.arraycopy(
-                        cpBuffer[sourceY],
-                        sourceLeft,
-                        targetBuffers.cpBuffer[targetYPos],
-                        targetX,
-                        copyWidth);
-                System.arraycopy(
-                        graphemeBuffer[sourceY],
-                        sourceLeft,
-                        targetBuffers.graphemeBuffer[targetYPos],
-                        targetX,
-                        copyWidth);
-                System.arraycopy(
-                        styleBuffer[sourceY],
-                        sourceLeft,
-                        targetBuffers.styleBuffer[targetYPos],
-                        targetX,
-                        copyWidth);
-                System.arraycopy(
-                        linkBuffer[sourceY],
-                        sourceLeft,
-                        targetBuffers.linkBuffer[targetYPos],
-                        targetX,
-                        copyWidth);
+            if (copyWidth == width
+                    && copyWidth == targetBuffers.width
+                    && rowsInOrder
+                    && targetBuffers.rowsInOrder) {
+                // Full rows in both buffers, so the cells are contiguous in memory
+                int sourceIdx = sourceTop * width;
+                int targetIdx = targetY * width;
+                int len = copyHeight * width;
+                cells.copyTo(sourceIdx, targetBuffers.cells, targetIdx, len);
+                if (targetBuffers.mask != null) {
+                    targetBuffers.mask.update(targetBuffers.cells, targetIdx, targetIdx + len);
+                }
+                for (int y = 0; y < copyHeight; y++) {
+                    copyRefs(targetBuffers, 0, sourceTop + y, 0, targetY + y, width);
+                }
+            } else {
+                for (int y = 0; y < copyHeight; y++) {
+                    copyRun(
+                            targetBuffers,
+                            sourceLeft,
+                            sourceTop + y,
+                            targetX,
+                            targetY + y,
+                            copyWidth);
+                }
             }
         }
 
@@ -176,53 +663,188 @@ public class Buffer implements Printable, RenderTarget {
                 int copyWidth,
                 int copyHeight,
                 String transparantCharacters) {
+            if (cells.isSparse()) {
+                // A mask would take up memory for every cell, so look at the cells themselves
+                overlayCells(
+                        targetBuffers,
+                        targetX,
+                        targetY,
+                        sourceLeft,
+                        sourceTop,
+                        copyWidth,
+                        copyHeight,
+                        transparantCharacters);
+                return;
+            }
             // Copy the data, skipping transparent characters
+            TransparencyMask mask = transparencyMask(transparantCharacters);
+            for (int y = 0; y < copyHeight; y++) {
+                int sourceY = sourceTop + y;
+                int rowStart = index(sourceLeft, sourceY);
+                int rowEnd = rowStart + copyWidth;
+                int idx = mask.nextOpaque(rowStart, rowEnd);
+                while (idx < rowEnd) {
+                    int runEnd = mask.nextTransparent(idx, rowEnd);
+                    copyRun(
+                            targetBuffers,
+                            sourceLeft + idx - rowStart,
+                            sourceY,
+                            targetX + idx - rowStart,
+                            targetY + y,
+                            runEnd - idx);
+                    idx = mask.nextOpaque(runEnd, rowEnd);
+                }
+            }
+        }
+
+        private void overlayCells(
+                InternalBuffers targetBuffers,
+                int targetX,
+                int targetY,
+                int sourceLeft,
+                int sourceTop,
+                int copyWidth,
+                int copyHeight,
+                String transparantCharacters) {
+            if (transparantCharacters.isEmpty()) {
+                copyData(
+                        targetBuffers,
+                        targetX,
+                        targetY,
+                        sourceLeft,
+                        sourceTop,
+                        copyWidth,
+                        copyHeight);
+                return;
+            }
             for (int y = 0; y < copyHeight; y++) {
                 int sourceY = sourceTop + y;
-                int targetYPos = targetY + y;
-                for (int x = 0; x < copyWidth; x++) {
-                    int sourceX = sourceLeft + x;
-                    int targetXPos = targetX + x;
-
-                    // Only copy if not transparent
-                    int codepoint = cpBuffer[sourceY][sourceX];
-                    if (transparantCharacters.indexOf(codepoint) < 0) {
-                        targetBuffers.cpBuffer[targetYPos][targetXPos] = cpBuffer[sourceY][sourceX];
-                        targetBuffers.graphemeBuffer[targetYPos][targetXPos] =
-                                graphemeBuffer[sourceY][sourceX];
-                        targetBuffers.styleBuffer[targetYPos][targetXPos] =
-                                styleBuffer[sourceY][sourceX];
-                        targetBuffers.linkBuffer[targetYPos][targetXPos] =
-                                linkBuffer[sourceY][sourceX];
+                int x = 0;
+                while (x < copyWidth) {
+                    while (x < copyWidth
+                            && transparantCharacters.indexOf(cp(sourceLeft + x, sourceY)) >= 0) {
+                        x++;
+                    }
+                    int runStart = x;
+                    while (x < copyWidth
+                            && transparantCharacters.indexOf(cp(sourceLeft + x, sourceY)) < 0) {
+                        x++;
+                    }
+                    if (x > runStart) {
+                        copyRun(
+                                targetBuffers,
+                                sourceLeft + runStart,
+                                sourceY,
+                                targetX + runStart,
+                                targetY + y,
+                                x - runStart);
                     }
                 }
             }
         }
 
+        /**
+         * Get the transparency mask of this buffer for the given transparent characters. The mask
+         * is kept up-to-date while the buffer is being written, so as long as the same transparent
+         * characters are used it only needs to be calculated once.
+         */
+        private TransparencyMask transparencyMask(String transparantCharacters) {
+            if (mask == null || !mask.isFor(transparantCharacters)) {
+                mask = new TransparencyMask(transparantCharacters, cells);
+            }
+            return mask;
+        }
+
+        /** Copy a run of cells from a single row of this buffer to the target buffer. */
+        private void copyRun(
+                InternalBuffers targetBuffers,
+                int sourceX,
+                int sourceY,
+                int targetX,
+                int targetY,
+                int len) {
+            int sourceIdx = index(sourceX, sourceY);
+            int targetIdx = targetBuffers.index(targetX, targetY);
+            cells.copyTo(sourceIdx, targetBuffers.cells, targetIdx, len);
+            if (targetBuffers.mask != null) {
+                targetBuffers.mask.update(targetBuffers.cells, targetIdx, targetIdx + len);
+            }
+            copyRefs(targetBuffers, sourceX, sourceY, targetX, targetY, len);
+        }
+
+        /**
+         * Copy the graphemes and hyperlinks of a run of cells from a single row of this buffer to
+         * the target buffer and mark the run as changed in the target.
+         */
+        private void copyRefs(
+                InternalBuffers targetBuffers,
+                int sourceX,
+                int sourceY,
+                int targetX,
+                int targetY,
+                int len) {
+            targetBuffers.rowVersions[targetY]++;
+            targetBuffers.changes.mark(targetY, targetX, targetX + len - 1);
+            targetBuffers.ownRefs(targetBuffers.rows[targetY]);
+            int[] graphemeIds = graphemeBuffer[rows[sourceY]];
+            if (graphemeIds != null) {
+                // Grapheme ids are only meaningful within a buffer so they must be translated
+                int[] targetIds = targetBuffers.graphemeRow(targetY);
+                for (int x = 0; x < len; x++) {
+                    targetIds[targetX + x] =
+                            targetBuffers.graphemeIdOf(graphemes, graphemeIds[sourceX + x]);
+                }
+            } else if (targetBuffers.graphemeBuffer[targetBuffers.rows[targetY]] != null) {
+                Arrays.fill(
+                        targetBuffers.graphemeBuffer[targetBuffers.rows[targetY]],
+                        targetX,
+                        targetX + len,
+                        GraphemePool.NONE);
+            }
+            int[] linkIds = linkBuffer[rows[sourceY]];
+            if (linkIds != null) {
+                // Link ids are only meaningful within a buffer so they must be translated
+                int[] targetIds = targetBuffers.linkRow(targetY);
+                for (int x = 0; x < len; x++) {
+                    int linkId = linkIds[sourceX + x];
+                    targetIds[targetX + x] =
+                            linkId != LinkTable.NONE
+                                    ? targetBuffers.linkIdOf(links.get(linkId))
+                                    : LinkTable.NONE;
+                }
+            } else if (targetBuffers.linkBuffer[targetBuffers.rows[targetY]] != null) {
+                Arrays.fill(
+                        targetBuffers.linkBuffer[targetBuffers.rows[targetY]],
+                        targetX,
+                        targetX + len,
+                        LinkTable.NONE);
+            }
+        }
+
         public @NonNull InternalBuffers resize(@NonNull Size newSize) {
             if (newSize.equals(size)) {
                 return this;
             }
 
-            int newWidth = newSize.width();
-            int newHeight = newSize.height();
-            int[][] newCpBuffer = new int[newHeight][newWidth];
-            String[][] newGraphemeBuffer = new String[newHeight][newWidth];
-            long[][] newStyleBuffer = new long[newHeight][newWidth];
-            Hyperlink[][] newLinkBuffer = new Hyperlink[newHeight][newWidth];
-
-            InternalBuffers newBuffers =
-                    new InternalBuffers(
-                            newCpBuffer, newGraphemeBuffer, newStyleBuffer, newLinkBuffer);
-            copyTo(newBuffers, Rect.of(newWidth, newHeight), 0, 0, null);
+            InternalBuffers newBuffers = new InternalBuffers(newSize, storage);
+            copyTo(newBuffers, Rect.of(newSize), 0, 0, null);
 
             return newBuffers;
         }
     }
 
     protected Buffer(@NonNull Size size) {
+        this(size, CellStorage.HEAP);
+    }
+
+    protected Buffer(@NonNull Size size, CellStorage.@NonNull Factory storage) {
         this.rect = Rect.of(0, 0, size);
-        this.buffers = new InternalBuffers(size);
+        this.buffers = new InternalBuffers(size, storage);
+    }
+
+    protected Buffer(@NonNull InternalBuffers buffers) {
+        this.rect = Rect.of(0, 0, buffers.size);
+        this.buffers = buffers;
     }
 
     /**
@@ -269,11 +891,11 @@ public class Buffer implements Printable, RenderTarget {
         if (shouldSkipAt(x, y)) {
             return charAt(x - 1, y);
         }
-        if (buffers.graphemeBuffer[y][x] != null
-                || Character.charCount(buffers.cpBuffer[y][x]) == 2) {
+        if (buffers.graphemeId(x, y) != GraphemePool.NONE
+                || Character.charCount(buffers.cp(x, y)) == 2) {
             return REPLACEMENT_CHAR;
         }
-        return (char) buffers.cpBuffer[y][x];
+        return (char) buffers.cp(x, y);
     }
 
     /**
@@ -292,7 +914,7 @@ public class Buffer implements Printable, RenderTarget {
         if (shouldSkipAt(x, y)) {
             return codepointAt(x - 1, y);
         }
-        return buffers.cpBuffer[y][x];
+        return buffers.cp(x, y);
     }
 
     /**
@@ -314,10 +936,11 @@ public class Buffer implements Printable, RenderTarget {
         if (shouldSkipAt(x, y)) {
             return graphemeAt_(x - 1, y);
         }
-        if (buffers.graphemeBuffer[y][x] != null) {
-            return buffers.graphemeBuffer[y][x];
+        String grapheme = buffers.grapheme(x, y);
+        if (grapheme != null) {
+            return grapheme;
         }
-        return new String(Character.toChars(buffers.cpBuffer[y][x]));
+        return new String(Character.toChars(buffers.cp(x, y)));
     }
 
     /**
@@ -339,14 +962,26 @@ public class Buffer implements Printable, RenderTarget {
     private void graphemeAt_(@NonNull Appendable appendable, int x, int y) {
         if (shouldSkipAt(x, y)) {
             graphemeAt_(appendable, x - 1, y);
-        } else if (buffers.graphemeBuffer[y][x] != null) {
-            appendStr(appendable, buffers.graphemeBuffer[y][x]);
+        } else if (buffers.graphemeId(x, y) != GraphemePool.NONE) {
+            try {
+                buffers.graphemes.appendTo(appendable, buffers.graphemeId(x, y));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
         } else {
-            int cp = buffers.cpBuffer[y][x];
+            int cp = buffers.cp(x, y);
             if (cp == '\0') {
                 cp = ' ';
             }
-            if (Character.isBmpCodePoint(cp)) {
+            if (appendable instanceof Utf8Output) {
+                // Encode straight to bytes instead of going char by char through Appendable
+                if (!Character.isValidCodePoint(cp)
+                        || (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE)) {
+                    // Lone surrogates can't be encoded as UTF-8
+                    cp = REPLACEMENT_CHAR;
+                }
+                ((Utf8Output) appendable).appendCodePoint(cp);
+            } else if (Character.isBmpCodePoint(cp)) {
                 appendChr(appendable, (char) cp);
             } else if (Character.isValidCodePoint(cp)) {
                 appendChr(appendable, Character.highSurrogate(cp));
@@ -361,7 +996,7 @@ public class Buffer implements Printable, RenderTarget {
         if (outside(x, y)) {
             return Style.UNSTYLED;
         }
-        return Style.of(buffers.styleBuffer[y][x]);
+        return Style.of(buffers.style(x, y));
     }
 
     @Override
@@ -397,7 +1032,7 @@ public class Buffer implements Printable, RenderTarget {
         }
         Style style = opt(options, StylePrintOption.class, StylePrintOption.UNSTYLED).style();
         Hyperlink link = opt(options, LinkPrintOption.class, LinkPrintOption.NONE).hyperlink();
-        setCharAt_(x, y, style.state(), -1, grapheme.toString(), link);
+        setCharAt_(x, y, style.state(), -1, grapheme, link);
     }
 
     public enum SimplePrintOption implements PrintOption {
@@ -538,7 +1173,7 @@ public class Buffer implements Printable, RenderTarget {
     }
 
     @SuppressWarnings("unchecked")
-    private <T extends PrintOption> T opt(
+    static <T extends PrintOption> T opt(
             PrintOption[] options, Class<T> optionClass, T defaultOpt) {
         for (PrintOption opt : options) {
             if (optionClass.isInstance(opt)) {
@@ -557,9 +1192,9 @@ public class Buffer implements Printable, RenderTarget {
      * @return true if the cell should be skipped, false otherwise
      */
     public boolean shouldSkipAt(int x, int y) {
-        return buffers.cpBuffer[y][x] == -1
-                && buffers.graphemeBuffer[y][x] == null
-                && buffers.styleBuffer[y][x] == -1;
+        return buffers.cp(x, y) == -1
+                && buffers.style(x, y) == -1
+                && buffers.graphemeId(x, y) == GraphemePool.NONE;
     }
 
     private void setSkipAt(int x, int y) {
@@ -605,14 +1240,17 @@ public class Buffer implements Printable, RenderTarget {
         if (outside(x, y)) {
             return false;
         }
-        int cp = buffers.cpBuffer[y][x];
-        String grapheme = buffers.graphemeBuffer[y][x];
-        boolean isWide = (grapheme != null) ? Unicode.isWide(grapheme) : Unicode.isWide(cp);
-        return isWide;
+        return isWideAt_(x, y);
     }
 
-    private void setCharAt_(
-            int x, int y, long styleState, int cp, String grapheme, Hyperlink link) {
+    private boolean isWideAt_(int x, int y) {
+        int graphemeId = buffers.graphemeId(x, y);
+        return (graphemeId != GraphemePool.NONE)
+                ? buffers.graphemes.isWide(graphemeId)
+                : Unicode.isWide(buffers.cp(x, y));
+    }
+
+    void setCharAt_(int x, int y, long styleState, int cp, CharSequence grapheme, Hyperlink link) {
         // Handle wide character overlap to the left of this cell
         if (shouldSkipAt(x, y)) {
             // The previous cell contains a wide character that overlaps this cell
@@ -622,17 +1260,105 @@ public class Buffer implements Printable, RenderTarget {
         setCellAt(x, y, styleState, cp, grapheme, link);
 
         // Set a skip cell to the right if this is a wide character
-        boolean isWide = (grapheme != null) ? Unicode.isWide(grapheme) : Unicode.isWide(cp);
-        if (isWide) {
+        if (isWideAt_(x, y)) {
             setSkipAt(x + 1, y);
         }
     }
 
-    private void setCellAt(int x, int y, long styleState, int cp, String grapheme, Hyperlink link) {
-        buffers.cpBuffer[y][x] = cp;
-        buffers.graphemeBuffer[y][x] = grapheme;
-        buffers.styleBuffer[y][x] = styleState;
-        buffers.linkBuffer[y][x] = link;
+    private void setCellAt(
+            int x, int y, long styleState, int cp, CharSequence grapheme, Hyperlink link) {
+        buffers.set(x, y, styleState, cp, grapheme, link);
+    }
+
+    /**
+     * Get the set of changes made to this buffer since the last time {@link #resetChanges()} was
+     * called. A newly created or resized buffer counts as being changed entirely.
+     *
+     * @return the ChangeSet for this buffer
+     */
+    public @NonNull ChangeSet changes() {
+        return buffers.changes;
+    }
+
+    /**
+     * Forget all changes made to this buffer so far.
+     *
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer resetChanges() {
+        buffers.changes.reset();
+        return this;
+    }
+
+    /**
+     * Enable or disable caching of the ANSI output of entire rows. When enabled, the output of each
+     * row is remembered together with the style and hyperlink that were active when the row was
+     * encoded. As long as the row doesn't change and is encoded starting from the same style and
+     * hyperlink the cached output will be reused. This is useful for buffers that are output often
+     * while their contents remain mostly the same, at the cost of keeping a copy of the output of
+     * each row in memory.
+     *
+     * @param enabled true to enable the row cache, false to disable it
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer cacheRows(boolean enabled) {
+        rowCache = enabled ? new RowCache() : null;
+        return this;
+    }
+
+    /**
+     * Encode areas of at least the given amount of cells in parallel when converting them to ANSI.
+     * The rows are divided into bands that are each encoded into a chunk of their own using the
+     * common fork/join pool, after which the chunks are joined. Each band starts out in the state
+     * left behind by the last cell before it, so the output is exactly the same as when encoding
+     * sequentially. This only pays off for very large buffers and isn't used while rows are being
+     * cached (see {@link #cacheRows(boolean)}). The buffer must not be written to while it is being
+     * encoded.
+     *
+     * @param minCells the minimum amount of cells to encode in parallel, {@link Integer#MAX_VALUE}
+     *     (the default) disables parallel encoding
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer parallelEncoding(int minCells) {
+        parallelEncodingCells = minCells;
+        return this;
+    }
+
+    /**
+     * Enable or disable the shortest possible encoding of style changes when converting to ANSI.
+     * When enabled each change of style is written either incrementally or as a reset followed by
+     * the new style, whichever is shorter, and colors are written using their shortest equivalent
+     * code (see {@link Style#toAnsi(Appendable, Style, boolean)}). This reduces the size of the
+     * output for heavily styled contents, but the output differs from the default encoding.
+     *
+     * @param enabled true to minimize the encoding of style changes
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer minimalStyles(boolean enabled) {
+        if (minimalStyles != enabled && rowCache != null) {
+            // Forget the rows that were encoded the other way
+            rowCache = new RowCache();
+        }
+        minimalStyles = enabled;
+        return this;
+    }
+
+    /**
+     * Set the color profile of the terminal the buffer will be output to. When converting to ANSI
+     * all colors are replaced by the closest ones supported by the profile (see {@link
+     * Style#downsample(ColorProfile)}), the contents of the buffer itself are not changed. The
+     * default is {@link ColorProfile#TRUECOLOR}, which outputs all colors as they are.
+     *
+     * @param profile the color profile to use for the output
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer colorProfile(@NonNull ColorProfile profile) {
+        if (colorProfile != profile && rowCache != null) {
+            // Forget the rows that were encoded with other colors
+            rowCache = new RowCache();
+        }
+        colorProfile = profile;
+        return this;
     }
 
     /**
@@ -641,11 +1367,7 @@ public class Buffer implements Printable, RenderTarget {
      * @return a reference to this Buffer, for chaining
      */
     public @NonNull Buffer clear() {
-        for (int y = 0; y < rect.height(); y++) {
-            for (int x = 0; x < rect.width(); x++) {
-                clearAt_(x, y);
-            }
-        }
+        buffers.clear();
         return this;
     }
 
@@ -660,12 +1382,8 @@ public class Buffer implements Printable, RenderTarget {
             // Using clearAt instead of clearAt_ to handle wide character overlap
             clearAt(x, fromY);
         }
-        for (int y = fromY + 1; y < toY; y++) {
-            for (int x = 0; x < rect.width(); x++) {
-                // Can use clearAt_() here because we're clearing full lines
-                clearAt_(x, y);
-            }
-        }
+        // Full lines can be cleared in one go, no need to handle wide character overlap
+        buffers.clearRows(Math.max(fromY + 1, 0), Math.min(toY, rect.height()));
         for (int x = 0; x <= toX; x++) {
             // Using clearAt instead of clearAt_ to handle wide character overlap
             clearAt(x, toY);
@@ -673,6 +1391,197 @@ public class Buffer implements Printable, RenderTarget {
         return this;
     }
 
+    /**
+     * Scroll the rows <code>fromY</code> up to and including <code>toY</code> up by the given
+     * amount of rows, or down if the amount is negative, just like a terminal does when scrolling
+     * its scroll region. The rows that get uncovered are cleared. Scrolling doesn't copy any cells,
+     * it only reorders the rows, so its cost is proportional to the amount of rows in the region
+     * plus the cost of clearing the uncovered rows. When a {@link Scrollback} is attached and the
+     * region starts at the top of the buffer the rows that scroll off the top are added to it.
+     *
+     * @param fromY the first row of the region to scroll
+     * @param toY the last row of the region to scroll
+     * @param amount the amount of rows to scroll up, negative to scroll down
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer scroll(int fromY, int toY, int amount) {
+        fromY = Math.max(fromY, 0);
+        toY = Math.min(toY, rect.height() - 1);
+        Scrollback history = activeScrollback();
+        if (history != null && fromY == 0 && amount > 0) {
+            for (int y = 0; y < Math.min(amount, toY + 1); y++) {
+                history.add(buffers, y);
+            }
+        }
+        buffers.scrollRows(fromY, toY, amount);
+        return this;
+    }
+
+    /**
+     * Insert the given amount of blank lines at row <code>y</code>, pushing that row and the ones
+     * below it down. The rows that get pushed past the bottom of the buffer are lost.
+     *
+     * @param y the row to insert the blank lines at
+     * @param count the amount of lines to insert
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer insertLines(int y, int count) {
+        return insertLines(y, rect.height() - 1, count);
+    }
+
+    /**
+     * Insert the given amount of blank lines at row <code>y</code>, pushing that row and the ones
+     * below it down up to and including row <code>toY</code>. The rows that get pushed past <code>
+     * toY</code> are lost.
+     *
+     * @param y the row to insert the blank lines at
+     * @param toY the last row that is affected
+     * @param count the amount of lines to insert
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer insertLines(int y, int toY, int count) {
+        if (count > 0) {
+            buffers.scrollRows(Math.max(y, 0), Math.min(toY, rect.height() - 1), -count);
+        }
+        return this;
+    }
+
+    /**
+     * Delete the given amount of lines starting at row <code>y</code>, pulling the rows below them
+     * up. Blank lines are added at the bottom of the buffer.
+     *
+     * @param y the first row to delete
+     * @param count the amount of lines to delete
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer deleteLines(int y, int count) {
+        return deleteLines(y, rect.height() - 1, count);
+    }
+
+    /**
+     * Delete the given amount of lines starting at row <code>y</code>, pulling the rows below them
+     * up to and including row <code>toY</code> up. Blank lines are added at row <code>toY</code>.
+     * Unlike scrolling, deleted lines are never added to the {@link Scrollback}.
+     *
+     * @param y the first row to delete
+     * @param toY the last row that is affected
+     * @param count the amount of lines to delete
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer deleteLines(int y, int toY, int count) {
+        if (count > 0) {
+            buffers.scrollRows(Math.max(y, 0), Math.min(toY, rect.height() - 1), count);
+        }
+        return this;
+    }
+
+    /**
+     * Get the Scrollback that collects the rows that scroll off the top of this buffer.
+     *
+     * @return the attached Scrollback or null if there is none
+     */
+    public Scrollback scrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Attach a {@link Scrollback} to this buffer. From then on the rows that scroll off the top of
+     * the buffer, either by calling {@link #scroll(int, int, int)} or by writing past the last row
+     * using a writer, get added to it.
+     *
+     * @param scrollback the Scrollback to attach or null to detach the current one
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer scrollback(Scrollback scrollback) {
+        this.scrollback = scrollback;
+        return this;
+    }
+
+    /**
+     * The Scrollback that rows should be added to when they scroll off the top right now.
+     *
+     * @return the Scrollback or null if rows should not be kept
+     */
+    protected Scrollback activeScrollback() {
+        return scrollback;
+    }
+
+    /**
+     * Insert the given amount of blank cells at the given position, pushing that cell and the ones
+     * to the right of it further to the right. The cells that get pushed past the end of the row
+     * are lost. A wide character that gets split, either at the insert position or at the end of
+     * the row, is cleared.
+     *
+     * @param x the column to insert the blank cells at
+     * @param y the row to insert the blank cells in
+     * @param count the amount of cells to insert
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer insertCells(int x, int y, int count) {
+        if (count <= 0 || outside(x, y)) {
+            return this;
+        }
+        if (shouldSkipAt(x, y)) {
+            clearAt(x - 1, y);
+        }
+        buffers.shiftCells(y, x, count);
+        int last = rect.width() - 1;
+        if (isWideAt_(last, y)) {
+            // Its right half was pushed out of the row
+            clearAt_(last, y);
+        }
+        return this;
+    }
+
+    /**
+     * Delete the given amount of cells starting at the given position, pulling the cells to the
+     * right of them to the left. Blank cells are added at the end of the row. A wide character that
+     * only partially gets deleted is cleared entirely.
+     *
+     * @param x the first column to delete
+     * @param y the row to delete the cells from
+     * @param count the amount of cells to delete
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer deleteCells(int x, int y, int count) {
+        if (count <= 0 || outside(x, y)) {
+            return this;
+        }
+        if (shouldSkipAt(x, y)) {
+            clearAt(x - 1, y);
+        }
+        if (x + count < rect.width() && shouldSkipAt(x + count, y)) {
+            // Its left half is being deleted
+            clearAt_(x + count, y);
+        }
+        buffers.shiftCells(y, x, -count);
+        return this;
+    }
+
+    /**
+     * Clear the given amount of cells starting at the given position without moving any other
+     * cells. A wide character that only partially gets cleared is cleared entirely.
+     *
+     * @param x the first column to clear
+     * @param y the row to clear the cells in
+     * @param count the amount of cells to clear
+     * @return a reference to this Buffer, for chaining
+     */
+    public @NonNull Buffer eraseCells(int x, int y, int count) {
+        if (count <= 0 || outside(x, y)) {
+            return this;
+        }
+        int toX = Math.min(x + count, rect.width());
+        if (shouldSkipAt(x, y)) {
+            clearAt(x - 1, y);
+        }
+        if (toX < rect.width() && shouldSkipAt(toX, y)) {
+            clearAt_(toX, y);
+        }
+        buffers.clearCells(y, x, toX);
+        return this;
+    }
+
     /**
      * Resize the buffer to the new size. When resizing to a larger size, the new area will be
      * filled with the default state. When resizing to a smaller size, the content will be truncated
@@ -687,6 +1596,24 @@ public class Buffer implements Printable, RenderTarget {
         return this;
     }
 
+    /**
+     * Take a snapshot of the current contents of this buffer, including its pending changes. The
+     * snapshot shares its cells with this buffer, so taking one only costs a copy of the per-row
+     * bookkeeping. Rows are only copied when they are written to afterwards, by either this buffer
+     * or the snapshot, so neither ever sees the changes made to the other.
+     *
+     * <p>This makes it possible to keep updating a buffer on one thread while another thread
+     * renders a snapshot of it, without locking and without torn frames. The snapshot must be
+     * handed over to the other thread in a thread-safe way, for example using a volatile field or a
+     * concurrent queue, after which this buffer can immediately be written to again. Call {@link
+     * #resetChanges()} after taking the snapshot if the changes should only be reported once.
+     *
+     * @return a new Buffer holding the snapshot
+     */
+    public @NonNull Buffer snapshot() {
+        return new Buffer(buffers.snapshot());
+    }
+
     /**
      * Overlay the content of this buffer onto another target buffer at the specified position. The
      * content of this buffer will be copied to the target buffer, starting at the coordinates
@@ -812,49 +1739,309 @@ public class Buffer implements Printable, RenderTarget {
         return toAnsi(rect, appendable, currentStyle);
     }
 
+    /**
+     * Encode the contents of this buffer as ANSI, writing it directly as UTF-8 encoded bytes to the
+     * given output. The output can be reused for subsequent frames by resetting it.
+     *
+     * @param output the output to write the encoded bytes to
+     * @param currentStyle the style that is currently active on the terminal
+     * @return the output passed as parameter
+     */
+    public @NonNull Utf8Output toUtf8(@NonNull Utf8Output output, @NonNull Style currentStyle) {
+        return toUtf8(rect, output, currentStyle);
+    }
+
+    /**
+     * Encode the given area of this buffer as ANSI, writing it directly as UTF-8 encoded bytes to
+     * the given output. The output can be reused for subsequent frames by resetting it.
+     *
+     * @param rect the area of the buffer to encode
+     * @param output the output to write the encoded bytes to
+     * @param currentStyle the style that is currently active on the terminal
+     * @return the output passed as parameter
+     */
+    public @NonNull Utf8Output toUtf8(
+            @NonNull Rect rect, @NonNull Utf8Output output, @NonNull Style currentStyle) {
+        toAnsi(rect, output, currentStyle);
+        return output;
+    }
+
     public @NonNull Appendable toAnsi(
             @NonNull Rect rect, @NonNull Appendable appendable, @NonNull Style currentStyle) {
-        Hyperlink currentLink = null;
         if (currentStyle == Style.UNKNOWN) {
             currentStyle = Style.DEFAULT;
             appendStr(appendable, Ansi.reset());
         }
         Rect limitedRect = limitedRect(rect);
+        if (rowCache == null
+                && limitedRect.width() > 0
+                && (long) limitedRect.width() * limitedRect.height() >= parallelEncodingCells
+                && currentStyle.equals(Style.of(currentStyle.state()))) {
+            // Bands can only derive their starting style from the cells before them if the
+            // initial style is a fully known one, like the ones used for cells
+            encodeBands(limitedRect, appendable, currentStyle);
+            return appendable;
+        }
+        EncoderState state = new EncoderState(currentStyle, null);
         for (int y = limitedRect.top(); y <= limitedRect.bottom(); y++) {
-            for (int x = limitedRect.left(); x <= limitedRect.right(); x++) {
-                if (shouldSkipAt(x, y)) {
-                    continue;
+            toAnsi(
+                    y,
+                    limitedRect.left(),
+                    limitedRect.right(),
+                    limitedRect.right(),
+                    appendable,
+                    state);
+            if (y < limitedRect.bottom()) {
+                appendChr(appendable, '\n');
+            }
+        }
+        return appendable;
+    }
+
+    private void encodeBands(
+            @NonNull Rect rect, @NonNull Appendable appendable, @NonNull Style currentStyle) {
+        int bandHeight = Math.max(1, PARALLEL_BAND_CELLS / rect.width());
+        int bands = (rect.height() + bandHeight - 1) / bandHeight;
+        Appendable[] chunks = new Appendable[bands];
+        boolean utf8 = appendable instanceof Utf8Output;
+        ForkJoinPool.commonPool()
+                .invoke(new BandEncoder(rect, currentStyle, bandHeight, chunks, utf8, 0, bands));
+        try {
+            for (Appendable chunk : chunks) {
+                if (utf8) {
+                    ((Utf8Output) appendable).appendBytes((Utf8Output) chunk);
+                } else {
+                    appendable.append((StringBuilder) chunk);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Determine the output state at the start of row <code>y</code> while encoding the given area,
+     * which is the style and hyperlink of the last cell that was encoded before it. Only valid if
+     * the initial style is a fully known one.
+     */
+    private @NonNull EncoderState stateBefore(@NonNull Rect rect, int y, @NonNull Style initial) {
+        for (int row = y - 1; row >= rect.top(); row--) {
+            for (int x = rect.right(); x >= rect.left(); x--) {
+                if (!shouldSkipAt(x, row)) {
+                    return new EncoderState(
+                            Style.of(Style.downsample(buffers.style(x, row), colorProfile)),
+                            buffers.links.get(buffers.linkId(x, row)));
                 }
-                if (buffers.styleBuffer[y][x] != currentStyle.state()) {
-                    Style style = Style.of(buffers.styleBuffer[y][x]);
-                    style.toAnsi(appendable, currentStyle);
-                    currentStyle = Style.of(buffers.styleBuffer[y][x]);
+            }
+        }
+        return new EncoderState(initial, null);
+    }
+
+    /**
+     * Encodes the bands <code>from</code> (inclusive) up to <code>to</code> (exclusive), splitting
+     * the work until each task has a single band left.
+     */
+    private class BandEncoder extends RecursiveAction {
+        private final Rect rect;
+        private final Style initial;
+        private final int bandHeight;
+        private final Appendable[] chunks;
+        private final boolean utf8;
+        private final int from;
+        private final int to;
+
+        BandEncoder(
+                Rect rect,
+                Style initial,
+                int bandHeight,
+                Appendable[] chunks,
+                boolean utf8,
+                int from,
+                int to) {
+            this.rect = rect;
+            this.initial = initial;
+            this.bandHeight = bandHeight;
+            this.chunks = chunks;
+            this.utf8 = utf8;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(
+                        new BandEncoder(rect, initial, bandHeight, chunks, utf8, from, mid),
+                        new BandEncoder(rect, initial, bandHeight, chunks, utf8, mid, to));
+                return;
+            }
+            int top = rect.top() + from * bandHeight;
+            int bottom = Math.min(rect.bottom(), top + bandHeight - 1);
+            int capacity = (rect.width() + 1) * (bottom - top + 1);
+            Appendable chunk = utf8 ? new Utf8Output(capacity) : new StringBuilder(capacity);
+            EncoderState state = stateBefore(rect, top, initial);
+            for (int y = top; y <= bottom; y++) {
+                encodeRow(y, rect.left(), rect.right(), rect.right(), chunk, state);
+                if (y < rect.bottom()) {
+                    appendChr(chunk, '\n');
                 }
-                if (!Objects.equals(buffers.linkBuffer[y][x], currentLink)) {
-                    Hyperlink link = buffers.linkBuffer[y][x];
-                    if (currentLink != null) {
-                        // Emit the end of the current hyperlink
-                        Hyperlink.END.toAnsi(appendable);
-                    }
-                    if (link != null) {
-                        link.toAnsi(appendable);
-                    }
-                    currentLink = link;
+            }
+            chunks[from] = chunk;
+        }
+    }
+
+    /**
+     * A cache of the ANSI output of entire rows. Each entry is only valid for the version of the
+     * row it was created for and for the style and hyperlink that were active on the output at the
+     * time.
+     */
+    private class RowCache {
+        private InternalBuffers owner;
+        private String[] output;
+        private byte[][] outputBytes;
+        private int[] versions;
+        private long[] inStates;
+        private long[] inMasks;
+        private Hyperlink[] inLinks;
+        private Style[] outStyles;
+        private Hyperlink[] outLinks;
+
+        void toAnsi(int y, @NonNull Appendable appendable, @NonNull EncoderState state) {
+            if (owner != buffers) {
+                // The buffer was resized or swapped, so nothing we have is valid anymore
+                owner = buffers;
+                int height = buffers.height;
+                output = new String[height];
+                outputBytes = new byte[height][];
+                versions = new int[height];
+                inStates = new long[height];
+                inMasks = new long[height];
+                inLinks = new Hyperlink[height];
+                outStyles = new Style[height];
+                outLinks = new Hyperlink[height];
+            }
+            if (output[y] == null
+                    || versions[y] != buffers.rowVersions[y]
+                    || inStates[y] != state.style.state()
+                    || inMasks[y] != state.style.mask()
+                    || !Objects.equals(inLinks[y], state.link)) {
+                versions[y] = buffers.rowVersions[y];
+                inStates[y] = state.style.state();
+                inMasks[y] = state.style.mask();
+                inLinks[y] = state.link;
+                StringBuilder sb = new StringBuilder(buffers.width + 16);
+                int right = buffers.width - 1;
+                encodeRow(y, 0, right, right, sb, state);
+                output[y] = sb.toString();
+                outputBytes[y] = null;
+                outStyles[y] = state.style;
+                outLinks[y] = state.link;
+            } else {
+                state.style = outStyles[y];
+                state.link = outLinks[y];
+            }
+            if (appendable instanceof Utf8Output) {
+                byte[] bytes = outputBytes[y];
+                if (bytes == null) {
+                    bytes = outputBytes[y] = output[y].getBytes(StandardCharsets.UTF_8);
                 }
-                if (x == limitedRect.right() && isWideAt(x, y)) {
-                    // Don't attempt to render a wide character if it would overflow the right
-                    // edge of the buffer, as the wide character will be truncated and not
-                    // display correctly.
-                    appendChr(appendable, ' ');
-                } else {
-                    graphemeAt_(appendable, x, y);
+                ((Utf8Output) appendable).appendBytes(bytes);
+            } else {
+                appendStr(appendable, output[y]);
+            }
+        }
+    }
+
+    /**
+     * The style and hyperlink that are active on the output while the contents of a buffer are
+     * being encoded as ANSI. Encoding a range of cells will update the state to reflect the style
+     * and link of the last cell that was written.
+     */
+    protected static class EncoderState {
+        @NonNull Style style;
+        Hyperlink link;
+
+        EncoderState(@NonNull Style style, Hyperlink link) {
+            this.style = style;
+            this.link = link;
+        }
+    }
+
+    /**
+     * Encode the cells of a single row, from column <code>left</code> up to and including column
+     * <code>right</code>, as ANSI. Wide characters that start at column <code>edge</code> will be
+     * rendered as a space because they would otherwise overflow the area being rendered.
+     *
+     * @param y the row to encode
+     * @param left the first column to encode
+     * @param right the last column to encode
+     * @param edge the right-most column that is available on the output
+     * @param appendable the Appendable to write the ANSI output to
+     * @param state the current output state, will be updated while encoding
+     */
+    protected void toAnsi(
+            int y,
+            int left,
+            int right,
+            int edge,
+            @NonNull Appendable appendable,
+            @NonNull EncoderState state) {
+        if (rowCache != null && left == 0 && right == rect.right() && edge == right) {
+            rowCache.toAnsi(y, appendable, state);
+        } else {
+            encodeRow(y, left, right, edge, appendable, state);
+        }
+    }
+
+    private void encodeRow(
+            int y,
+            int left,
+            int right,
+            int edge,
+            @NonNull Appendable appendable,
+            @NonNull EncoderState state) {
+        // Links are compared by their id in this buffer, -1 means the current link isn't known here
+        int currentLinkId = buffers.links.find(state.link);
+        // Neighbouring cells usually share their style, so only downsample when it changes
+        long cellState = Style.F_UNKNOWN;
+        long styleState = Style.F_UNKNOWN;
+        for (int x = left; x <= right; x++) {
+            if (shouldSkipAt(x, y)) {
+                continue;
+            }
+            long nextState = buffers.style(x, y);
+            if (nextState != cellState) {
+                cellState = nextState;
+                styleState = Style.downsample(nextState, colorProfile);
+            }
+            if (styleState != state.style.state()) {
+                Style style = Style.of(styleState);
+                style.toAnsi(appendable, state.style, minimalStyles);
+                state.style = style;
+            }
+            int linkId = buffers.linkId(x, y);
+            if (linkId != currentLinkId) {
+                Hyperlink link = buffers.links.get(linkId);
+                if (state.link != null) {
+                    // Emit the end of the current hyperlink
+                    Hyperlink.END.toAnsi(appendable);
+                }
+                if (link != null) {
+                    link.toAnsi(appendable);
                 }
+                state.link = link;
+                currentLinkId = linkId;
             }
-            if (y < limitedRect.bottom()) {
-                appendChr(appendable, '\n');
+            if (x == edge && isWideAt(x, y)) {
+                // Don't attempt to render a wide character if it would overflow the right
+                // edge of the buffer, as the wide character will be truncated and not
+                // display correctly.
+                appendChr(appendable, ' ');
+            } else {
+                graphemeAt_(appendable, x, y);
             }
         }
-        return appendable;
     }
 
     private void appendStr(Appendable appendable, String str) {
@@ -1,19 +1,48 @@
 package org.codejive.twinkle.screen;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import org.codejive.twinkle.ansi.Style;
 import org.codejive.twinkle.ansi.util.Printable;
+import org.codejive.twinkle.screen.util.ChangeSet;
+import org.codejive.twinkle.screen.util.Rect;
 import org.codejive.twinkle.text.Position;
 import org.codejive.twinkle.text.Size;
 import org.jspecify.annotations.NonNull;
 
+/**
+ * A stack of buffers that are combined into a single buffer, with the primary buffer at the bottom
+ * and the other buffers on top of it, ordered by their z-index.
+ *
+ * <p>The combined buffer is updated incrementally: only the areas that were damaged since the
+ * previous call to {@link #combined()} are composited again. An area is damaged when the content of
+ * the primary buffer or of a layer changed, or when a layer was added, removed, moved, resized,
+ * hidden, shown, given a different buffer or had its z-index or transparency changed. Changed
+ * content is found by comparing the row versions of each buffer with the ones seen by the previous
+ * call, so the change sets of the buffers are left alone for their other consumers.
+ *
+ * <p>Layers that are fully opaque (their transparency is empty) hide everything beneath them, so
+ * the cells they cover are never copied from the primary buffer or from any lower layers.
+ */
 public class BufferStack implements Printable {
     private Buffer primary;
     private final Set<BufferElement> bufferStack;
+    private final List<BufferElement> sorted;
     private final Buffer combined;
+    private ChangeSet damage;
+    private boolean fullDamage;
+    private final Watermark primaryMark;
+    // For each cell the index of the topmost opaque layer covering it, or -1 if there is none
+    private int[] coverage;
+    private boolean coverageValid;
+
+    private static final Comparator<BufferElement> Z_ORDER =
+            (o1, o2) -> Integer.compare(o1.zIndex, o2.zIndex);
 
     public static class BufferElement {
         public Buffer buffer;
@@ -22,6 +51,13 @@ public class BufferStack implements Printable {
         public boolean visible;
         public String transparancy;
 
+        // The state of the element the last time it was composited
+        private final Watermark mark = new Watermark();
+        private Buffer lastBuffer;
+        private Rect lastRect;
+        private int lastZIndex;
+        private String lastTransparancy;
+
         public BufferElement(Buffer buffer, Position pos, int zIndex) {
             this.buffer = buffer;
             this.pos = pos;
@@ -44,6 +80,21 @@ public class BufferStack implements Printable {
         }
     }
 
+    // The row versions of a buffer the last time it was composited
+    private static final class Watermark {
+        private Buffer.InternalBuffers owner;
+        private int[] versions;
+
+        void update(Buffer buffer) {
+            Buffer.InternalBuffers buffers = buffer.buffers;
+            if (versions == null || versions.length != buffers.height) {
+                versions = new int[buffers.height];
+            }
+            System.arraycopy(buffers.rowVersions, 0, versions, 0, buffers.height);
+            owner = buffers;
+        }
+    }
+
     public static BufferStack create() {
         return BufferStack.of((Buffer) null);
     }
@@ -59,7 +110,10 @@ public class BufferStack implements Printable {
     protected BufferStack(Buffer primary) {
         this.primary = primary;
         this.bufferStack = new LinkedHashSet<>();
+        this.sorted = new ArrayList<>();
         this.combined = Buffer.of(1, 1);
+        this.fullDamage = true;
+        this.primaryMark = new Watermark();
     }
 
     public Buffer primary() {
@@ -68,6 +122,7 @@ public class BufferStack implements Printable {
 
     public void primary(Buffer primary) {
         this.primary = primary;
+        this.fullDamage = true;
     }
 
     public List<BufferElement> list() {
@@ -77,27 +132,46 @@ public class BufferStack implements Printable {
     }
 
     private List<BufferElement> list_() {
-        List<BufferElement> elems = new ArrayList<>();
-        elems.addAll(bufferStack);
-        elems.sort((o1, o2) -> o1.zIndex - o2.zIndex);
-        return elems;
+        sort();
+        return new ArrayList<>(sorted);
+    }
+
+    private void sort() {
+        for (BufferElement element : sorted) {
+            if (element.zIndex != element.lastZIndex) {
+                // Re-sort from insertion order so elements with equal z-index keep their order
+                sorted.clear();
+                sorted.addAll(bufferStack);
+                sorted.sort(Z_ORDER);
+                return;
+            }
+        }
     }
 
     public BufferElement add(Buffer buffer) {
-        BufferElement element = new BufferElement(buffer, Position.ZERO, bufferStack.size());
-        bufferStack.add(element);
-        return element;
+        return add(new BufferElement(buffer, Position.ZERO, bufferStack.size()));
     }
 
     public BufferElement add(Buffer buffer, Position pos, int zIndex) {
-        BufferElement element = new BufferElement(buffer, pos, zIndex);
-        bufferStack.add(element);
-        return element;
+        return add(new BufferElement(buffer, pos, zIndex));
     }
 
     public BufferElement add(Buffer buffer, int xPos, int yPos, int zIndex) {
-        BufferElement element = new BufferElement(buffer, Position.of(xPos, yPos), zIndex);
-        bufferStack.add(element);
+        return add(new BufferElement(buffer, Position.of(xPos, yPos), zIndex));
+    }
+
+    private BufferElement add(BufferElement element) {
+        if (!bufferStack.contains(element)) {
+            sort();
+            bufferStack.add(element);
+            // Insert after all elements with the same or a lower z-index
+            int idx = sorted.size();
+            while (idx > 0 && sorted.get(idx - 1).zIndex > element.zIndex) {
+                idx--;
+            }
+            sorted.add(idx, element);
+            element.lastZIndex = element.zIndex;
+        }
         return element;
     }
 
@@ -111,7 +185,14 @@ public class BufferStack implements Printable {
     }
 
     public void remove(BufferElement element) {
-        bufferStack.remove(element);
+        if (bufferStack.remove(element)) {
+            int idx = sorted.indexOf(element);
+            BufferElement removed = sorted.remove(idx);
+            if (damage != null && removed.lastRect != null) {
+                damage(removed.lastRect);
+                coverageValid = false;
+            }
+        }
     }
 
     public Buffer combined() {
@@ -119,19 +200,186 @@ public class BufferStack implements Printable {
             throw new IllegalStateException("Primary buffer not set");
         }
         if (bufferStack.isEmpty()) {
+            fullDamage = true;
             return primary;
         }
-        combined.resize(primary.size());
-        primary.overlayOn(combined, 0, 0, "");
-        for (BufferElement element : list_()) {
-            if (element.visible) {
-                element.buffer.overlayOn(
-                        combined, element.pos.x(), element.pos.y(), element.transparancy);
+        Size size = primary.size();
+        if (fullDamage || damage == null || !combined.size().equals(size)) {
+            combined.resize(size);
+            damage = new ChangeSet(size.width(), size.height());
+            damage.markAll();
+            coverage = new int[size.width() * size.height()];
+            coverageValid = false;
+            fullDamage = false;
+        } else {
+            collectDamage(primary, primaryMark, 0, 0);
+        }
+        sort();
+        for (BufferElement element : sorted) {
+            Rect rect = element.visible ? Rect.of(element.pos, element.buffer.size()) : null;
+            if (element.buffer != element.lastBuffer
+                    || !Objects.equals(rect, element.lastRect)
+                    || element.zIndex != element.lastZIndex
+                    || !Objects.equals(element.transparancy, element.lastTransparancy)) {
+                // The element changed its buffer, geometry or appearance, so both the area it
+                // used to cover and the area it covers now must be composited again
+                if (element.lastRect != null) {
+                    damage(element.lastRect);
+                }
+                if (rect != null) {
+                    damage(rect);
+                }
+                element.lastBuffer = element.buffer;
+                element.lastRect = rect;
+                element.lastZIndex = element.zIndex;
+                element.lastTransparancy = element.transparancy;
+                coverageValid = false;
+            } else if (rect != null) {
+                collectDamage(element.buffer, element.mark, rect.left(), rect.top());
             }
         }
+        composite();
+        primaryMark.update(primary);
+        for (BufferElement element : sorted) {
+            element.mark.update(element.buffer);
+        }
         return combined;
     }
 
+    /**
+     * Mark the rows of the given buffer that were written since the watermark was last updated as
+     * damaged. When the buffer got new storage (because it was resized or swapped) all of it is
+     * damaged.
+     */
+    private void collectDamage(Buffer buffer, Watermark mark, int offsetX, int offsetY) {
+        Buffer.InternalBuffers buffers = buffer.buffers;
+        if (mark.owner != buffers) {
+            damage(Rect.of(offsetX, offsetY, buffers.size));
+            return;
+        }
+        int right = offsetX + buffers.width - 1;
+        int[] versions = buffers.rowVersions;
+        for (int y = 0; y < buffers.height; y++) {
+            if (versions[y] != mark.versions[y]) {
+                markDamage(y + offsetY, offsetX, right);
+            }
+        }
+    }
+
+    private void damage(Rect rect) {
+        for (int y = rect.top(); y <= rect.bottom(); y++) {
+            markDamage(y, rect.left(), rect.right());
+        }
+    }
+
+    private void markDamage(int y, int from, int to) {
+        Size size = combined.size();
+        if (y < 0 || y >= size.height()) {
+            return;
+        }
+        from = Math.max(from, 0);
+        to = Math.min(to, size.width() - 1);
+        if (from <= to) {
+            damage.mark(y, from, to);
+        }
+    }
+
+    private void updateCoverage() {
+        if (coverageValid) {
+            return;
+        }
+        Arrays.fill(coverage, -1);
+        int width = combined.size().width();
+        int height = combined.size().height();
+        for (int i = 0; i < sorted.size(); i++) {
+            BufferElement element = sorted.get(i);
+            Rect rect = element.lastRect;
+            if (rect == null || !isOpaque(element)) {
+                continue;
+            }
+            int left = Math.max(rect.left(), 0);
+            int right = Math.min(rect.right(), width - 1);
+            int top = Math.max(rect.top(), 0);
+            int bottom = Math.min(rect.bottom(), height - 1);
+            if (left > right) {
+                continue;
+            }
+            for (int y = top; y <= bottom; y++) {
+                Arrays.fill(coverage, y * width + left, y * width + right + 1, i);
+            }
+        }
+        coverageValid = true;
+    }
+
+    private static boolean isOpaque(BufferElement element) {
+        return element.transparancy == null || element.transparancy.isEmpty();
+    }
+
+    private void composite() {
+        updateCoverage();
+        for (int y = damage.nextDirtyRow(0); y >= 0; y = damage.nextDirtyRow(y + 1)) {
+            int from = damage.dirtyFrom(y);
+            int to = damage.dirtyTo(y);
+            compositeRow(primary, -1, 0, 0, null, y, from, to);
+            for (int i = 0; i < sorted.size(); i++) {
+                BufferElement element = sorted.get(i);
+                Rect rect = element.lastRect;
+                if (rect == null || y < rect.top() || y > rect.bottom()) {
+                    continue;
+                }
+                int left = Math.max(from, rect.left());
+                int right = Math.min(to, rect.right());
+                if (left <= right) {
+                    compositeRow(
+                            element.buffer,
+                            i,
+                            rect.left(),
+                            rect.top(),
+                            element.transparancy,
+                            y,
+                            left,
+                            right);
+                }
+            }
+        }
+        damage.reset();
+    }
+
+    /**
+     * Copy the cells <code>from</code> up to and including <code>to</code> of row <code>y</code>
+     * from the given layer to the combined buffer, skipping all the cells that are covered by
+     * opaque layers above it.
+     */
+    private void compositeRow(
+            Buffer buffer,
+            int layer,
+            int offsetX,
+            int offsetY,
+            String transparancy,
+            int y,
+            int from,
+            int to) {
+        int rowStart = y * combined.size().width();
+        int x = from;
+        while (x <= to) {
+            while (x <= to && coverage[rowStart + x] > layer) {
+                x++;
+            }
+            int start = x;
+            while (x <= to && coverage[rowStart + x] <= layer) {
+                x++;
+            }
+            if (start < x) {
+                buffer.overlayOn(
+                        combined,
+                        Rect.of(start - offsetX, y - offsetY, x - start, 1),
+                        start,
+                        y,
+                        transparancy);
+            }
+        }
+    }
+
     @Override
     public @NonNull Appendable toAnsi(@NonNull Appendable appendable, @NonNull Style currentStyle) {
         return combined().toAnsi(appendable, currentStyle);
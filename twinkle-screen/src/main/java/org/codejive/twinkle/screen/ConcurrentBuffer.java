@@ -0,0 +1,292 @@
+package org.codejive.twinkle.screen;
+
+import java.util.concurrent.locks.ReentrantLock;
+import org.codejive.twinkle.ansi.Hyperlink;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.ansi.util.Printable;
+import org.codejive.twinkle.screen.Buffer.SimplePrintOption;
+import org.codejive.twinkle.screen.Buffer.StylePrintOption;
+import org.codejive.twinkle.screen.Buffer.TransparencyPrintOption;
+import org.codejive.twinkle.text.Size;
+import org.codejive.twinkle.text.StyledIterator;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * A {@link RenderTarget} that can be written to from multiple threads at the same time, for example
+ * when independent panels of a screen are rendered by different worker threads. The rows are
+ * divided into bands of a fixed height, each kept in a {@link Buffer} of its own that is guarded by
+ * its own lock, so threads that write to different bands never have to wait for each other and
+ * don't share any state. Wide characters never span rows, so fixing up the neighbouring cells of a
+ * wide character that gets written or cleared always happens while holding the lock of its band.
+ *
+ * <p>Each call is atomic with respect to the bands it touches: a multi-line string printed across
+ * bands can be seen partially written, but a single row never is. To render the contents take a
+ * {@link #snapshot()}, which holds the locks of all bands only for as long as it takes to create
+ * copy-on-write snapshots of them.
+ */
+public class ConcurrentBuffer implements RenderTarget, Printable {
+    private final @NonNull Size size;
+    private final int bandHeight;
+    private final Buffer[] bands;
+    private final ReentrantLock[] locks;
+
+    public static final int DEFAULT_BAND_HEIGHT = 4;
+
+    /**
+     * Create a new ConcurrentBuffer with the specified width and height.
+     *
+     * @param width the width of the buffer
+     * @param height the height of the buffer
+     * @return a new ConcurrentBuffer instance with the specified dimensions
+     */
+    public static @NonNull ConcurrentBuffer of(int width, int height) {
+        return of(Size.of(width, height));
+    }
+
+    /**
+     * Create a new ConcurrentBuffer with the specified size.
+     *
+     * @param size the size of the buffer
+     * @return a new ConcurrentBuffer instance with the specified dimensions
+     */
+    public static @NonNull ConcurrentBuffer of(@NonNull Size size) {
+        return new ConcurrentBuffer(size, DEFAULT_BAND_HEIGHT);
+    }
+
+    /**
+     * Create a new ConcurrentBuffer with the specified size, locking the rows in bands of the given
+     * height. Smaller bands let more threads write at the same time, larger ones make taking
+     * snapshots cheaper.
+     *
+     * @param size the size of the buffer
+     * @param bandHeight the amount of rows that share a lock
+     * @return a new ConcurrentBuffer instance with the specified dimensions
+     */
+    public static @NonNull ConcurrentBuffer of(@NonNull Size size, int bandHeight) {
+        return new ConcurrentBuffer(size, bandHeight);
+    }
+
+    protected ConcurrentBuffer(@NonNull Size size, int bandHeight) {
+        if (bandHeight <= 0) {
+            throw new IllegalArgumentException("Band height must be positive: " + bandHeight);
+        }
+        this.size = size;
+        this.bandHeight = bandHeight;
+        this.bands = new Buffer[(size.height() + bandHeight - 1) / bandHeight];
+        this.locks = new ReentrantLock[bands.length];
+        for (int i = 0; i < bands.length; i++) {
+            int height = Math.min(bandHeight, size.height() - i * bandHeight);
+            bands[i] = Buffer.of(size.width(), height);
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public @NonNull Size size() {
+        return size;
+    }
+
+    /**
+     * Get the amount of rows that share a lock.
+     *
+     * @return the height of the bands
+     */
+    public int bandHeight() {
+        return bandHeight;
+    }
+
+    @Override
+    public void putAt(int x, int y, char c, PrintOption... options) {
+        if (y < 0 || y >= size.height()) {
+            return;
+        }
+        ReentrantLock lock = locks[y / bandHeight];
+        lock.lock();
+        try {
+            bands[y / bandHeight].putAt(x, y % bandHeight, c, options);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putAt(int x, int y, int cp, PrintOption... options) {
+        if (y < 0 || y >= size.height()) {
+            return;
+        }
+        ReentrantLock lock = locks[y / bandHeight];
+        lock.lock();
+        try {
+            bands[y / bandHeight].putAt(x, y % bandHeight, cp, options);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void putAt(int x, int y, @NonNull CharSequence grapheme, PrintOption... options) {
+        if (y < 0 || y >= size.height()) {
+            return;
+        }
+        ReentrantLock lock = locks[y / bandHeight];
+        lock.lock();
+        try {
+            bands[y / bandHeight].putAt(x, y % bandHeight, grapheme, options);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void printAt(int x, int y, @NonNull CharSequence str, PrintOption... options) {
+        if (x + str.length() <= 0 || x >= size.width() || y < 0 || y >= size.height()) {
+            return;
+        }
+        Style style =
+                Buffer.opt(options, StylePrintOption.class, StylePrintOption.UNSTYLED).style();
+        printAt(x, y, StyledIterator.of(str, style), options);
+    }
+
+    @Override
+    public void printAt(int x, int y, @NonNull StyledIterator iter, PrintOption... options) {
+        boolean shouldWrap = Buffer.opt(options, SimplePrintOption.NOWRAP.getClass(), null) == null;
+        String transparency =
+                Buffer.opt(options, TransparencyPrintOption.class, TransparencyPrintOption.NONE)
+                        .chars();
+        int right = size.width() - 1;
+        int curX = x;
+        int curY = y;
+        // Works like Buffer.printAt() but only holds the lock of the band being written to
+        int bandIdx = -1;
+        Buffer band = null;
+        try {
+            while (iter.hasNext()) {
+                int cp = iter.next();
+                if (cp == '\n' || (curX > right && shouldWrap)) {
+                    curX = 0;
+                    curY++;
+                    if (curY >= size.height()) {
+                        break;
+                    }
+                    if (cp == '\n') {
+                        continue;
+                    }
+                }
+                if (iter.width() == 0) {
+                    continue;
+                }
+                int width = iter.width();
+                if (curX >= 0 && curX <= right && curY >= 0) {
+                    if (curY / bandHeight != bandIdx) {
+                        if (band != null) {
+                            locks[bandIdx].unlock();
+                        }
+                        bandIdx = curY / bandHeight;
+                        band = bands[bandIdx];
+                        locks[bandIdx].lock();
+                    }
+                    Style style = iter.style();
+                    Hyperlink link = iter.link();
+                    int bandY = curY - bandIdx * bandHeight;
+                    if (iter.isComplex()) {
+                        band.setCharAt_(curX, bandY, style.state(), -1, iter.sequence(), link);
+                    } else if (transparency.indexOf(cp) >= 0) {
+                        width = 1;
+                    } else {
+                        band.setCharAt_(curX, bandY, style.state(), cp, null, link);
+                    }
+                }
+                curX += width;
+            }
+        } finally {
+            if (band != null) {
+                locks[bandIdx].unlock();
+            }
+        }
+    }
+
+    @Override
+    public void clearAt(int x, int y) {
+        if (y < 0 || y >= size.height()) {
+            return;
+        }
+        ReentrantLock lock = locks[y / bandHeight];
+        lock.lock();
+        try {
+            bands[y / bandHeight].clearAt(x, y % bandHeight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Clear the entire buffer, one band at a time.
+     *
+     * @return a reference to this ConcurrentBuffer, for chaining
+     */
+    public @NonNull ConcurrentBuffer clear() {
+        for (int i = 0; i < bands.length; i++) {
+            locks[i].lock();
+            try {
+                bands[i].clear();
+            } finally {
+                locks[i].unlock();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Take a consistent snapshot of the entire buffer. All bands are locked at the same time while
+     * taking copy-on-write snapshots of them, which only copies their per-row bookkeeping. The
+     * snapshots are then combined into a single Buffer after the locks have been released again.
+     *
+     * @return a new Buffer holding the snapshot
+     */
+    public @NonNull Buffer snapshot() {
+        Buffer[] snapshots = new Buffer[bands.length];
+        // Always locking in the same order makes sure this can't deadlock
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+        try {
+            for (int i = 0; i < bands.length; i++) {
+                snapshots[i] = bands[i].snapshot();
+            }
+        } finally {
+            for (ReentrantLock lock : locks) {
+                lock.unlock();
+            }
+        }
+        Buffer result = Buffer.of(size);
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i].overlayOn(result, 0, i * bandHeight, null);
+        }
+        return result;
+    }
+
+    /**
+     * Overlay a snapshot of this buffer onto the target buffer at the specified position. Null
+     * ('\0') characters are treated as transparent.
+     *
+     * @param targetBuffer the buffer to overlay onto
+     * @param targetX the x-coordinate on the target buffer
+     * @param targetY the y-coordinate on the target buffer
+     * @return a reference to this ConcurrentBuffer, for chaining
+     */
+    public @NonNull ConcurrentBuffer overlayOn(
+            @NonNull Buffer targetBuffer, int targetX, int targetY) {
+        snapshot().overlayOn(targetBuffer, targetX, targetY);
+        return this;
+    }
+
+    @Override
+    public @NonNull Appendable toAnsi(@NonNull Appendable appendable, @NonNull Style currentStyle) {
+        return snapshot().toAnsi(appendable, currentStyle);
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
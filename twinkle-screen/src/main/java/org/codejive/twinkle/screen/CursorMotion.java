@@ -0,0 +1,236 @@
+package org.codejive.twinkle.screen;
+
+import java.io.IOException;
+import org.codejive.twinkle.ansi.Ansi;
+import org.codejive.twinkle.ansi.util.Utf8Output;
+import org.codejive.twinkle.screen.Buffer.EncoderState;
+import org.codejive.twinkle.screen.util.GraphemePool;
+import org.codejive.twinkle.text.Unicode;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * Keeps track of the position of the cursor on the terminal and plans the cheapest way, in bytes of
+ * output, to move it somewhere else. Depending on where the cursor is and where it needs to go the
+ * planner will choose between absolute positioning, relative movements, carriage returns and line
+ * feeds or simply re-printing the few unchanged cells that lie between the cursor and its
+ * destination (much like the <code>mvcur</code> function found in curses does).
+ */
+class CursorMotion {
+    private int cursorX;
+    private int cursorY;
+
+    // The ways the cursor can be moved vertically
+    private static final int V_NONE = 0;
+    private static final int V_RELATIVE = 1;
+    private static final int V_NEWLINES = 2;
+
+    // The ways the cursor can be moved horizontally
+    private static final int H_NONE = 0;
+    private static final int H_RELATIVE = 1;
+    private static final int H_COLUMN = 2;
+    private static final int H_REPRINT = 3;
+
+    CursorMotion() {
+        unknown();
+    }
+
+    /** Forget the position of the cursor, the next move will use absolute positioning. */
+    void unknown() {
+        cursorX = -1;
+        cursorY = -1;
+    }
+
+    /**
+     * Set the position of the cursor after something was written to the terminal.
+     *
+     * @param x the column the cursor is at
+     * @param y the row the cursor is at
+     */
+    void set(int x, int y) {
+        cursorX = x;
+        cursorY = y;
+    }
+
+    /**
+     * Write the shortest sequence that moves the cursor to the given position. The cells of the
+     * given frame that lie to the left of the destination must already be shown on the terminal,
+     * because they might get printed again to move the cursor forward.
+     *
+     * @param appendable the Appendable to write the output to
+     * @param x the column to move to
+     * @param y the row to move to
+     * @param frame the frame that is being rendered
+     * @param state the current output state, used to determine if cells can be re-printed
+     */
+    void moveTo(
+            @NonNull Appendable appendable,
+            int x,
+            int y,
+            @NonNull Buffer frame,
+            @NonNull EncoderState state) {
+        if (x == cursorX && y == cursorY) {
+            return;
+        }
+        int best = 2 + digits(y + 1) + 1 + digits(x + 1) + 1;
+        int bestV = -1;
+        int bestH = H_NONE;
+        int bestCr = 0;
+        if (cursorY >= 0) {
+            int dy = y - cursorY;
+            int vCost = dy == 0 ? 0 : 3 + digits(Math.abs(dy));
+            int vMode = dy == 0 ? V_NONE : V_RELATIVE;
+            // Stay in the same column
+            int h = horizontal(cursorX, x, y, frame, state, best - vCost);
+            if (h >= 0 && vCost + hCost(h) < best) {
+                best = vCost + hCost(h);
+                bestV = vMode;
+                bestH = hMode(h);
+                bestCr = 0;
+            }
+            // Return to the start of the line first
+            h = horizontal(0, x, y, frame, state, best - vCost - 1);
+            if (h >= 0 && vCost + 1 + hCost(h) < best) {
+                best = vCost + 1 + hCost(h);
+                bestV = vMode;
+                bestH = hMode(h);
+                bestCr = 1;
+            }
+            if (dy > 0) {
+                // Use CR+LF pairs, which also leave the cursor at the start of the line
+                h = horizontal(0, x, y, frame, state, best - 2 * dy);
+                if (h >= 0 && 2 * dy + hCost(h) < best) {
+                    best = 2 * dy + hCost(h);
+                    bestV = V_NEWLINES;
+                    bestH = hMode(h);
+                    bestCr = 0;
+                }
+            }
+        }
+        if (bestV < 0) {
+            if (appendable instanceof Utf8Output) {
+                ((Utf8Output) appendable).appendCursorPos(x, y);
+            } else {
+                append(appendable, Ansi.cursorPos(x, y));
+            }
+        } else {
+            emit(appendable, bestV, bestCr != 0, bestH, x, y, frame, state);
+        }
+        cursorX = x;
+        cursorY = y;
+    }
+
+    /**
+     * Determine the cheapest way to move from column <code>fromX</code> to column <code>toX</code>
+     * on row <code>y</code>. The selected movement and its cost in bytes are packed together in the
+     * result, use {@link #hMode(int)} and {@link #hCost(int)} to get them back.
+     *
+     * @return the selected movement and its cost or -1 if none is cheaper than the given limit
+     */
+    private int horizontal(int fromX, int toX, int y, Buffer frame, EncoderState state, int limit) {
+        if (fromX == toX) {
+            return limit > 0 ? H_NONE : -1;
+        }
+        int mode = H_RELATIVE;
+        int cost = 3 + digits(Math.abs(toX - fromX));
+        int colCost = 3 + digits(toX + 1);
+        if (colCost < cost) {
+            mode = H_COLUMN;
+            cost = colCost;
+        }
+        if (toX > fromX) {
+            int reprint = reprintCost(frame, y, fromX, toX, state, Math.min(cost, limit));
+            if (reprint >= 0) {
+                mode = H_REPRINT;
+                cost = reprint;
+            }
+        }
+        return cost < limit ? (cost << 2) | mode : -1;
+    }
+
+    private static int hMode(int h) {
+        return h & 3;
+    }
+
+    private static int hCost(int h) {
+        return h >>> 2;
+    }
+
+    /**
+     * Determine how many bytes it takes to print the cells from <code>fromX</code> up to (but not
+     * including) <code>toX</code> again. This is only possible if they all use the currently active
+     * style and link and if they are simple single-width characters.
+     *
+     * @return the number of bytes or -1 if the cells can't be re-printed within the given limit
+     */
+    private static int reprintCost(
+            Buffer frame, int y, int fromX, int toX, EncoderState state, int limit) {
+        Buffer.InternalBuffers buffers = frame.buffers;
+        long style = state.style.state();
+        int linkId = buffers.links.find(state.link);
+        int cost = 0;
+        for (int x = fromX; x < toX; x++) {
+            int cp = buffers.cp(x, y);
+            if (cp < 0
+                    || buffers.style(x, y) != style
+                    || buffers.linkId(x, y) != linkId
+                    || buffers.graphemeId(x, y) != GraphemePool.NONE
+                    || Unicode.isWide(cp)) {
+                return -1;
+            }
+            cost += cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (cost >= limit) {
+                return -1;
+            }
+        }
+        return cost;
+    }
+
+    private void emit(
+            Appendable appendable,
+            int vMode,
+            boolean cr,
+            int hMode,
+            int x,
+            int y,
+            Buffer frame,
+            EncoderState state) {
+        int dy = y - cursorY;
+        if (vMode == V_RELATIVE) {
+            append(appendable, dy > 0 ? Ansi.cursorDown(dy) : Ansi.cursorUp(-dy));
+        } else if (vMode == V_NEWLINES) {
+            for (int i = 0; i < dy; i++) {
+                append(appendable, "\r\n");
+            }
+        }
+        if (cr) {
+            append(appendable, "\r");
+        }
+        int fromX = (cr || vMode == V_NEWLINES) ? 0 : cursorX;
+        if (hMode == H_RELATIVE) {
+            append(
+                    appendable,
+                    x > fromX ? Ansi.cursorForward(x - fromX) : Ansi.cursorBackward(fromX - x));
+        } else if (hMode == H_COLUMN) {
+            append(appendable, Ansi.cursorToColumn(x));
+        } else if (hMode == H_REPRINT) {
+            frame.toAnsi(y, fromX, x - 1, frame.size().width() - 1, appendable, state);
+        }
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    private static void append(Appendable appendable, String str) {
+        try {
+            appendable.append(str);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package org.codejive.twinkle.screen;
+
+import java.io.IOException;
+import org.codejive.twinkle.ansi.Ansi;
+import org.codejive.twinkle.ansi.Hyperlink;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.ansi.util.Utf8Output;
+import org.codejive.twinkle.screen.Buffer.EncoderState;
+import org.codejive.twinkle.text.Size;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * Renders successive frames to a terminal by only emitting the cells that changed since the
+ * previous frame. The renderer keeps a copy of the last frame it flushed, compares each new frame
+ * against it and outputs only the spans of cells that differ, prefixed with the necessary cursor
+ * positioning, style and hyperlink transitions. The cursor is moved between those spans using
+ * whichever movement takes the fewest bytes, which matters most on slow connections where only a
+ * few scattered cells change per frame.
+ *
+ * <p>The renderer assumes that it is the only one writing to the terminal. If anything else was
+ * written in the meantime (or the screen was cleared) call {@link #invalidate()} so the next frame
+ * will be fully repainted.
+ *
+ * <p>When the content of rows moved up or down, like in a log view that scrolls by a line, the
+ * renderer detects this using hashes of the rows and lets the terminal move them itself using a
+ * scrolling region instead of repainting them. In the same way cells that were inserted into or
+ * deleted from the middle of a row are handled by inserting or deleting characters.
+ *
+ * <p>To avoid encoding the output twice, first to a String and then to bytes, pass a {@link
+ * Utf8Output} as the Appendable and write its bytes straight to the terminal's output stream.
+ */
+public class ScreenRenderer {
+    private final Buffer screen;
+    private final EncoderState state;
+    private final CursorMotion cursor;
+    private boolean valid;
+    // Which rows of the frame being rendered differ from the screen
+    private boolean[] changedRows;
+    // Row hashes of the frame being rendered and of the screen, only used to detect scrolling
+    private int[] frameHashes;
+    private int[] screenHashes;
+
+    // Scrolling is only worth it if it saves repainting at least this many cells
+    private static final int MIN_SCROLL_GAIN = 32;
+    // The maximum number of cells that will be considered for insertion or deletion in a row
+    private static final int MAX_SHIFT = 8;
+    // Inserting or deleting is only worth it if it saves repainting at least this many cells
+    private static final int MIN_SHIFT_GAIN = 8;
+
+    public static @NonNull ScreenRenderer create() {
+        return new ScreenRenderer();
+    }
+
+    protected ScreenRenderer() {
+        this.screen = Buffer.of(1, 1);
+        this.state = new EncoderState(Style.UNKNOWN, null);
+        this.cursor = new CursorMotion();
+        this.changedRows = new boolean[0];
+        this.frameHashes = new int[0];
+        this.screenHashes = new int[0];
+        invalidate();
+    }
+
+    /**
+     * Forget everything that is known about the contents of the terminal, the next frame will be
+     * rendered in full.
+     *
+     * @return a reference to this ScreenRenderer, for chaining
+     */
+    public @NonNull ScreenRenderer invalidate() {
+        valid = false;
+        state.style = Style.UNKNOWN;
+        state.link = null;
+        cursor.unknown();
+        return this;
+    }
+
+    /**
+     * Render the given frame, returning the ANSI output needed to update the terminal.
+     *
+     * @param frame the frame to render
+     * @return the ANSI string that will update the terminal to show the given frame
+     */
+    public @NonNull String render(@NonNull Buffer frame) {
+        return render(frame, new StringBuilder()).toString();
+    }
+
+    /**
+     * Render the given frame, writing the ANSI output needed to update the terminal to the given
+     * Appendable. Only the cells that are different from the previously rendered frame will be
+     * output. If the size of the frame is different from the previous one, or if the renderer was
+     * invalidated, the entire frame will be output.
+     *
+     * @param frame the frame to render
+     * @param appendable the Appendable to write the ANSI output to
+     * @return the Appendable passed as parameter
+     */
+    public @NonNull Appendable render(@NonNull Buffer frame, @NonNull Appendable appendable) {
+        Size size = frame.size();
+        boolean repaint = !valid || !size.equals(screen.size());
+        if (repaint) {
+            screen.resize(size);
+        }
+        if (state.style == Style.UNKNOWN) {
+            append(appendable, Ansi.reset());
+            state.style = Style.DEFAULT;
+        }
+        int width = size.width();
+        int changed = findChangedRows(frame, repaint);
+        if (!repaint && changed * width >= MIN_SCROLL_GAIN) {
+            scroll(frame, appendable);
+        }
+        for (int y = 0; y < size.height(); y++) {
+            if (!changedRows[y]) {
+                continue;
+            }
+            boolean shiftTried = repaint;
+            int x = 0;
+            while (x < width) {
+                if (!repaint && frame.buffers.sameCell(x, y, screen.buffers)) {
+                    x++;
+                    continue;
+                }
+                if (!shiftTried) {
+                    shiftTried = true;
+                    if (shift(frame, x, y, appendable)) {
+                        // The screen now has different contents at this position, look again
+                        continue;
+                    }
+                }
+                int start = x;
+                if (frame.shouldSkipAt(start, y) && start > 0) {
+                    // Part of a wide character changed, so we re-emit the entire character
+                    start--;
+                }
+                int end = x;
+                while (end + 1 < width
+                        && (repaint || !frame.buffers.sameCell(end + 1, y, screen.buffers))) {
+                    end++;
+                }
+                cursor.moveTo(appendable, start, y, frame, state);
+                frame.toAnsi(y, start, end, width - 1, appendable, state);
+                updateCursor(frame, end, y);
+                x = end + 1;
+            }
+        }
+        if (state.link != null) {
+            // Make sure a hyperlink doesn't remain active outside of the frame
+            Hyperlink.END.toAnsi(appendable);
+            state.link = null;
+        }
+        frame.buffers.copyTo(screen.buffers, frame.rect(), 0, 0, null);
+        valid = true;
+        return appendable;
+    }
+
+    private int findChangedRows(Buffer frame, boolean repaint) {
+        int width = frame.size().width();
+        int height = frame.size().height();
+        if (changedRows.length != height) {
+            changedRows = new boolean[height];
+        }
+        int changed = 0;
+        for (int y = 0; y < height; y++) {
+            changedRows[y] = repaint || !frame.buffers.sameCells(0, y, screen.buffers, 0, y, width);
+            if (changedRows[y]) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private void updateHashes(Buffer frame) {
+        int height = frame.size().height();
+        if (frameHashes.length != height) {
+            frameHashes = new int[height];
+            screenHashes = new int[height];
+        }
+        for (int y = 0; y < height; y++) {
+            if (changedRows[y]) {
+                frameHashes[y] = frame.buffers.rowHash(y);
+                screenHashes[y] = screen.buffers.rowHash(y);
+            } else {
+                frameHashes[y] = screenHashes[y] = frame.buffers.rowHash(y);
+            }
+        }
+    }
+
+    /**
+     * Look for the largest block of rows whose contents moved up or down since the previous frame
+     * and if found let the terminal scroll them into place. The screen will be updated to reflect
+     * the new situation so the normal rendering only has to take care of the rows that were
+     * uncovered.
+     */
+    private void scroll(Buffer frame, Appendable appendable) {
+        updateHashes(frame);
+        int height = frameHashes.length;
+        int bestGain = 0;
+        int bestShift = 0;
+        int bestStart = 0;
+        int bestLength = 0;
+        for (int shift = 1 - height; shift < height; shift++) {
+            if (shift == 0) {
+                continue;
+            }
+            // Frame row y would be filled by screen row y + shift
+            int from = Math.max(0, -shift);
+            int to = Math.min(height, height - shift);
+            int start = from;
+            int gain = 0;
+            for (int y = from; y <= to; y++) {
+                if (y < to && frameHashes[y] == screenHashes[y + shift]) {
+                    if (frameHashes[y] != screenHashes[y]) {
+                        gain++;
+                    }
+                    continue;
+                }
+                if (gain > bestGain) {
+                    bestGain = gain;
+                    bestShift = shift;
+                    bestStart = start;
+                    bestLength = y - start;
+                }
+                start = y + 1;
+                gain = 0;
+            }
+        }
+        int width = frame.size().width();
+        if (bestGain * width < MIN_SCROLL_GAIN) {
+            return;
+        }
+        for (int y = bestStart; y < bestStart + bestLength; y++) {
+            if (!frame.buffers.sameCells(0, y, screen.buffers, 0, y + bestShift, width)) {
+                // Hash collision
+                return;
+            }
+        }
+        int top = Math.min(bestStart, bestStart + bestShift);
+        int bottom = Math.max(bestStart, bestStart + bestShift) + bestLength - 1;
+        prepareForBlanks(appendable);
+        append(appendable, Ansi.scrollRegion(top, bottom));
+        append(appendable, bestShift > 0 ? Ansi.scrollUp(bestShift) : Ansi.scrollDown(-bestShift));
+        append(appendable, Ansi.scrollRegionReset());
+        // Changing the scrolling region moves the cursor to the home position
+        cursor.unknown();
+        screen.buffers.scrollRows(top, bottom, bestShift);
+        for (int y = top; y <= bottom; y++) {
+            changedRows[y] = !frame.buffers.sameCells(0, y, screen.buffers, 0, y, width);
+        }
+    }
+
+    /**
+     * Determine if the cells of row <code>y</code>, starting at the first changed cell <code>x
+     * </code>, are the same as on the screen but shifted a couple of positions to the left or
+     * right. If so let the terminal insert or delete characters to move them into place and update
+     * the screen to reflect the new situation.
+     *
+     * @return true if characters were inserted or deleted, false otherwise
+     */
+    private boolean shift(Buffer frame, int x, int y, Appendable appendable) {
+        int width = frame.size().width();
+        if (frame.shouldSkipAt(x, y) || screen.shouldSkipAt(x, y)) {
+            return false;
+        }
+        for (int n = 1; n <= MAX_SHIFT && x + n + MIN_SHIFT_GAIN <= width; n++) {
+            int len = width - x - n;
+            // Cells pushed off the right edge (or deleted) must not split a wide character
+            if (!screen.shouldSkipAt(width - n, y)
+                    && frame.buffers.sameCells(x + n, y, screen.buffers, x, y, len)
+                    && shiftGain(frame, x + n, y, len) >= MIN_SHIFT_GAIN) {
+                moveForShift(frame, x, y, appendable);
+                append(appendable, Ansi.insertChars(n));
+                screen.buffers.shiftCells(y, x, n);
+                return true;
+            }
+            if (!screen.shouldSkipAt(x + n, y)
+                    && frame.buffers.sameCells(x, y, screen.buffers, x + n, y, len)
+                    && shiftGain(frame, x, y, len) >= MIN_SHIFT_GAIN) {
+                moveForShift(frame, x, y, appendable);
+                append(appendable, Ansi.deleteChars(n));
+                screen.buffers.shiftCells(y, x, -n);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The number of cells that would have to be repainted if they were not shifted into place
+    private int shiftGain(Buffer frame, int x, int y, int len) {
+        int gain = 0;
+        for (int i = x; i < x + len; i++) {
+            if (!frame.buffers.sameCell(i, y, screen.buffers)) {
+                gain++;
+            }
+        }
+        return gain;
+    }
+
+    private void moveForShift(Buffer frame, int x, int y, Appendable appendable) {
+        prepareForBlanks(appendable);
+        cursor.moveTo(appendable, x, y, frame, state);
+    }
+
+    /**
+     * Blank cells that are created by scrolling, inserting or deleting get the current background
+     * color, so make sure the default style is active. Hyperlinks are closed as well.
+     */
+    private void prepareForBlanks(Appendable appendable) {
+        if (state.link != null) {
+            Hyperlink.END.toAnsi(appendable);
+            state.link = null;
+        }
+        if (!state.style.equals(Style.DEFAULT)) {
+            append(appendable, Ansi.reset());
+            state.style = Style.DEFAULT;
+        }
+    }
+
+    private void updateCursor(Buffer frame, int lastX, int y) {
+        int nextX = lastX + (frame.isWideAt(lastX, y) ? 2 : 1);
+        if (nextX >= frame.size().width()) {
+            // The terminal might be waiting to wrap to the next line, or not, we can't be sure
+            cursor.unknown();
+        } else {
+            cursor.set(nextX, y);
+        }
+    }
+
+    private static void append(Appendable appendable, String str) {
+        try {
+            appendable.append(str);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
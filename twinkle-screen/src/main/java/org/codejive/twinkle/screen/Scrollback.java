@@ -0,0 +1,347 @@
+package org.codejive.twinkle.screen;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.codejive.twinkle.ansi.Hyperlink;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.screen.util.GraphemePool;
+import org.codejive.twinkle.screen.util.LinkTable;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * A fixed-size history of the lines that scrolled off the top of a {@link Buffer}. The lines are
+ * kept in a ring, so adding a line is O(1) and once the ring is full each new line replaces the
+ * oldest one. To keep the memory footprint of a long history small each line is stored in a compact
+ * encoded form instead of as cells: trailing blank cells are dropped, styles and hyperlinks are
+ * stored as runs and each distinct grapheme is stored only once per line. Lines are only decoded
+ * again when they get copied back into a Buffer to be viewed.
+ *
+ * <p>A Scrollback gets filled by attaching it to a Buffer using {@link
+ * Buffer#scrollback(Scrollback)}, from then on every time the top rows of the buffer get scrolled
+ * up they are added to the history.
+ */
+public class Scrollback {
+    private final byte[][] lines;
+    // The hyperlinks referenced by each line, null for lines without any
+    private final Hyperlink[][] lineLinks;
+    private int first;
+    private int count;
+    private long encodedSize;
+
+    // Scratch space used while encoding a line
+    private byte[] scratch = new byte[256];
+    private int length;
+    private final LinkTable rowLinks = new LinkTable();
+
+    // The ways a cell's content can be encoded, everything else is a codepoint + CELL_CP
+    private static final int CELL_SKIP = 0;
+    private static final int CELL_GRAPHEME = 1;
+    private static final int CELL_CP = 2;
+
+    /**
+     * Create a Scrollback that can hold the given amount of lines.
+     *
+     * @param capacity the maximum amount of lines to keep
+     */
+    public Scrollback(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.lines = new byte[capacity][];
+        this.lineLinks = new Hyperlink[capacity][];
+    }
+
+    /**
+     * The maximum amount of lines this Scrollback can hold.
+     *
+     * @return the capacity
+     */
+    public int capacity() {
+        return lines.length;
+    }
+
+    /**
+     * The amount of lines currently held.
+     *
+     * @return the amount of lines
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The total amount of bytes used by the encoded lines, not counting the fixed overhead of the
+     * ring itself.
+     *
+     * @return the size of the encoded lines in bytes
+     */
+    public long encodedSize() {
+        return encodedSize;
+    }
+
+    /** Remove all lines. */
+    public void clear() {
+        Arrays.fill(lines, null);
+        Arrays.fill(lineLinks, null);
+        first = 0;
+        count = 0;
+        encodedSize = 0;
+    }
+
+    /**
+     * Add the given row of the buffer as the newest line, dropping the oldest one if the Scrollback
+     * is full.
+     *
+     * @param buffer the buffer to take the row from
+     * @param y the row to add
+     */
+    public void add(@NonNull Buffer buffer, int y) {
+        add(buffer.buffers, y);
+    }
+
+    void add(Buffer.@NonNull InternalBuffers buffers, int y) {
+        int slot;
+        if (count < lines.length) {
+            slot = (first + count++) % lines.length;
+        } else {
+            slot = first;
+            first = (first + 1) % lines.length;
+            encodedSize -= lines[slot].length;
+        }
+        lineLinks[slot] = encode(buffers, y);
+        lines[slot] = Arrays.copyOf(scratch, length);
+        encodedSize += length;
+    }
+
+    /**
+     * Copy a line from the history into a row of the given buffer. The row is cleared first, any
+     * part of the line that doesn't fit the width of the buffer is left out.
+     *
+     * @param line the line to copy, 0 being the oldest and <code>size() - 1</code> the newest
+     * @param target the buffer to copy the line to
+     * @param targetY the row of the buffer to copy the line to
+     */
+    public void copyTo(int line, @NonNull Buffer target, int targetY) {
+        if (line < 0 || line >= count) {
+            throw new IndexOutOfBoundsException("Line " + line + " out of range 0-" + count);
+        }
+        int slot = (first + line) % lines.length;
+        decode(lines[slot], lineLinks[slot], target.buffers, targetY);
+    }
+
+    /*
+     * A line is encoded as:
+     *   - the amount of cells
+     *   - the amount of distinct graphemes, followed by each grapheme as UTF-8 prefixed by its
+     *     length in bytes
+     *   - the amount of style runs, followed by the length and the style of each run
+     *   - the amount of link runs, followed by the length and the link index (0 for none) of
+     *     each run
+     *   - the content of each cell, either CELL_SKIP, CELL_GRAPHEME followed by the index of
+     *     the grapheme or the codepoint + CELL_CP
+     * All numbers are unsigned variable-length integers, styles are zigzag encoded.
+     */
+
+    private Hyperlink[] encode(Buffer.InternalBuffers buffers, int y) {
+        length = 0;
+        int cells = buffers.width;
+        while (cells > 0 && isBlank(buffers, cells - 1, y)) {
+            cells--;
+        }
+        writeVarInt(cells);
+
+        // Distinct graphemes
+        String[] graphemes = null;
+        int graphemeCount = 0;
+        for (int x = 0; x < cells; x++) {
+            if (buffers.graphemeId(x, y) != GraphemePool.NONE) {
+                String grapheme = buffers.grapheme(x, y);
+                if (graphemes == null) {
+                    graphemes = new String[4];
+                }
+                if (indexOf(graphemes, graphemeCount, grapheme) < 0) {
+                    if (graphemeCount == graphemes.length) {
+                        graphemes = Arrays.copyOf(graphemes, graphemeCount * 2);
+                    }
+                    graphemes[graphemeCount++] = grapheme;
+                }
+            }
+        }
+        writeVarInt(graphemeCount);
+        for (int i = 0; i < graphemeCount; i++) {
+            byte[] bytes = graphemes[i].getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            writeBytes(bytes);
+        }
+
+        // Style runs, the amount of runs gets patched in afterwards
+        int runsPos = reserve();
+        int runs = 0;
+        for (int x = 0; x < cells; ) {
+            long style = buffers.style(x, y);
+            int end = x + 1;
+            while (end < cells && buffers.style(end, y) == style) {
+                end++;
+            }
+            writeVarInt(end - x);
+            writeVarLong((style << 1) ^ (style >> 63));
+            runs++;
+            x = end;
+        }
+        patch(runsPos, runs);
+
+        // Link runs, using indexes into the line's own table of links
+        rowLinks.clear();
+        runsPos = reserve();
+        runs = 0;
+        for (int x = 0; x < cells; ) {
+            int linkId = buffers.linkId(x, y);
+            int end = x + 1;
+            while (end < cells && buffers.linkId(end, y) == linkId) {
+                end++;
+            }
+            writeVarInt(end - x);
+            writeVarInt(
+                    linkId == LinkTable.NONE
+                            ? LinkTable.NONE
+                            : rowLinks.idOf(buffers.links.get(linkId)));
+            runs++;
+            x = end;
+        }
+        patch(runsPos, runs);
+
+        // Cell contents
+        for (int x = 0; x < cells; x++) {
+            if (buffers.graphemeId(x, y) != GraphemePool.NONE) {
+                writeVarInt(CELL_GRAPHEME);
+                writeVarInt(indexOf(graphemes, graphemeCount, buffers.grapheme(x, y)));
+            } else {
+                int cp = buffers.cp(x, y);
+                writeVarInt(cp < 0 ? CELL_SKIP : cp + CELL_CP);
+            }
+        }
+
+        if (rowLinks.size() <= 1) {
+            return null;
+        }
+        Hyperlink[] links = new Hyperlink[rowLinks.size()];
+        for (int i = 1; i < links.length; i++) {
+            links[i] = rowLinks.get(i);
+        }
+        return links;
+    }
+
+    private static boolean isBlank(Buffer.InternalBuffers buffers, int x, int y) {
+        return buffers.cp(x, y) == 0
+                && buffers.style(x, y) == Style.F_UNSTYLED
+                && buffers.graphemeId(x, y) == GraphemePool.NONE
+                && buffers.linkId(x, y) == LinkTable.NONE;
+    }
+
+    private static int indexOf(String[] strs, int count, String str) {
+        for (int i = 0; i < count; i++) {
+            if (strs[i].equals(str)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void decode(
+            byte[] data, Hyperlink[] links, Buffer.InternalBuffers buffers, int y) {
+        buffers.clearCells(y, 0, buffers.width);
+        int[] pos = new int[1];
+        int cells = readVarInt(data, pos);
+        int width = Math.min(cells, buffers.width);
+
+        String[] graphemes = new String[readVarInt(data, pos)];
+        for (int i = 0; i < graphemes.length; i++) {
+            int len = readVarInt(data, pos);
+            graphemes[i] = new String(data, pos[0], len, StandardCharsets.UTF_8);
+            pos[0] += len;
+        }
+
+        long[] styles = new long[cells];
+        int runs = readVarInt(data, pos);
+        for (int i = 0, x = 0; i < runs; i++) {
+            int len = readVarInt(data, pos);
+            long zigzag = readVarLong(data, pos);
+            Arrays.fill(styles, x, x + len, (zigzag >>> 1) ^ -(zigzag & 1));
+            x += len;
+        }
+
+        int[] linkIds = new int[cells];
+        runs = readVarInt(data, pos);
+        for (int i = 0, x = 0; i < runs; i++) {
+            int len = readVarInt(data, pos);
+            Arrays.fill(linkIds, x, x + len, readVarInt(data, pos));
+            x += len;
+        }
+
+        for (int x = 0; x < width; x++) {
+            int cell = readVarInt(data, pos);
+            Hyperlink link = linkIds[x] != LinkTable.NONE ? links[linkIds[x]] : null;
+            if (cell == CELL_GRAPHEME) {
+                buffers.set(x, y, styles[x], -1, graphemes[readVarInt(data, pos)], link);
+            } else {
+                int cp = cell == CELL_SKIP ? -1 : cell - CELL_CP;
+                buffers.set(x, y, styles[x], cp, null, link);
+            }
+        }
+    }
+
+    private int reserve() {
+        // Counts are patched in as fixed-size varints so they can be filled in afterwards
+        int pos = length;
+        ensureCapacity(3);
+        length += 3;
+        return pos;
+    }
+
+    private void patch(int pos, int value) {
+        scratch[pos] = (byte) (0x80 | (value & 0x7F));
+        scratch[pos + 1] = (byte) (0x80 | ((value >>> 7) & 0x7F));
+        scratch[pos + 2] = (byte) (value >>> 14);
+    }
+
+    private void writeVarInt(int value) {
+        writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            scratch[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        scratch[length++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, scratch, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, length + extra));
+        }
+    }
+
+    private static int readVarInt(byte[] data, int[] pos) {
+        return (int) readVarLong(data, pos);
+    }
+
+    private static long readVarLong(byte[] data, int[] pos) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
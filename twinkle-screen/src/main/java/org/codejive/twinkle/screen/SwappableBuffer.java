@@ -45,6 +45,12 @@ public class SwappableBuffer extends Buffer {
         return this;
     }
 
+    @Override
+    protected Scrollback activeScrollback() {
+        // Just like terminals, don't keep any history for the alternate buffer
+        return savedBuffers == null ? super.activeScrollback() : null;
+    }
+
     /**
      * Saves the current buffer state and switches to the alternate buffer.
      *
@@ -54,10 +60,12 @@ public class SwappableBuffer extends Buffer {
     public @NonNull boolean save() {
         if (savedBuffers == null) {
             if (altBuffers == null) {
-                altBuffers = new InternalBuffers(size());
+                altBuffers = new InternalBuffers(size(), buffers.storage);
             }
             savedBuffers = buffers;
             buffers = altBuffers;
+            // The entire visible content changed
+            buffers.changes.markAll();
             return true;
         }
         return false;
@@ -73,6 +81,7 @@ public class SwappableBuffer extends Buffer {
         if (savedBuffers != null) {
             buffers = savedBuffers;
             savedBuffers = null;
+            buffers.changes.markAll();
             return true;
         }
         return false;
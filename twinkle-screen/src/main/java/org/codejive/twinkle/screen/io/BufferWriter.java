@@ -22,7 +22,12 @@ public class BufferWriter extends Writer {
     Hyperlink currentLink;
     LinkPrintOption linkPrintOption;
     boolean lineWrap;
+    boolean autoScroll;
+    // The scrolling region, a bottom of -1 means the last row of the buffer
+    private int scrollTop;
+    private int scrollBottom;
     @NonNull String transparantCharacters;
+    private AnsiOutputParser parser;
 
     public BufferWriter(@NonNull Buffer buffer) {
         this.buffer = buffer;
@@ -35,6 +40,9 @@ public class BufferWriter extends Writer {
         this.currentLink = null;
         this.linkPrintOption = LinkPrintOption.NONE;
         this.lineWrap = true;
+        this.autoScroll = true;
+        this.scrollTop = 0;
+        this.scrollBottom = -1;
         this.transparantCharacters = "\0";
     }
 
@@ -74,10 +82,17 @@ public class BufferWriter extends Writer {
         decoder.finish();
         if (decoder.isReady()) {
             if (decoder.state() == UnicodeDecoder.ANSI) {
-                handleAnsiSequence(decoder.toString());
+                CharSequence sequence = decoder.sequence();
+                if (Style.isStyleSequence(sequence, 0, sequence.length())) {
+                    // Style changes are by far the most common, so they are parsed directly
+                    // from the decoder without creating any Strings
+                    curStyle = Style.parse(curStyle, sequence, 0, sequence.length());
+                } else {
+                    handleAnsiSequence(sequence.toString());
+                }
             } else if (decoder.codepoint() == '\n') {
                 cursorX = 0;
-                cursorY++;
+                lineFeed();
             } else if (transparantCharacters.indexOf(decoder.codepoint()) >= 0) {
                 // Do not write transparant characters to the buffer, but do update the cursor
                 // position by one, as they should never be wide.
@@ -85,7 +100,7 @@ public class BufferWriter extends Writer {
             } else {
                 if (lineWrap && cursorX >= size().width()) {
                     cursorX = 0;
-                    cursorY++;
+                    lineFeed();
                 }
                 buffer.putAt(
                         cursorX,
@@ -99,8 +114,40 @@ public class BufferWriter extends Writer {
         decoder.reset();
     }
 
+    /**
+     * Move the cursor down one line. When auto-scrolling is enabled and the cursor is on the last
+     * line of the scrolling region, the region gets scrolled up instead, and the cursor never moves
+     * past the last row of the buffer. When auto-scrolling is disabled the cursor simply moves
+     * down, even past the end of the buffer, so anything written after that gets dropped.
+     */
+    private void lineFeed() {
+        if (!autoScroll) {
+            cursorY++;
+        } else if (cursorY == scrollBottom()) {
+            buffer.scroll(scrollTop(), scrollBottom(), 1);
+        } else if (cursorY < size().height() - 1) {
+            cursorY++;
+        }
+    }
+
+    private int scrollTop() {
+        return Math.min(scrollTop, size().height() - 1);
+    }
+
+    private int scrollBottom() {
+        int last = size().height() - 1;
+        return scrollBottom < 0 || scrollBottom > last ? last : scrollBottom;
+    }
+
     protected void handleAnsiSequence(String sequence) {
-        AnsiOutputParser.parse(sequence, new Handler());
+        if (parser == null) {
+            parser = new AnsiOutputParser(createHandler());
+        }
+        parser.parse(sequence);
+    }
+
+    protected @NonNull AnsiSequenceHandler createHandler() {
+        return new Handler();
     }
 
     @Override
@@ -218,6 +265,83 @@ public class BufferWriter extends Writer {
             return true;
         }
 
+        @Override
+        public boolean onScrollRegion(int top, int bottom) {
+            int newTop = top > 0 ? top - 1 : 0;
+            int newBottom = bottom > 0 ? Math.min(bottom, size().height()) - 1 : -1;
+            if (newTop >= (newBottom < 0 ? size().height() - 1 : newBottom)) {
+                // Terminals ignore regions of less than two rows
+                return true;
+            }
+            scrollTop = newTop;
+            scrollBottom = newBottom;
+            cursorX = 0;
+            cursorY = 0;
+            return true;
+        }
+
+        // Like terminals, the handlers below treat an explicit count of 0 as 1
+
+        @Override
+        public boolean onScrollUp(int num) {
+            buffer.scroll(scrollTop(), scrollBottom(), Math.max(1, num));
+            return true;
+        }
+
+        @Override
+        public boolean onScrollDown(int num) {
+            buffer.scroll(scrollTop(), scrollBottom(), -Math.max(1, num));
+            return true;
+        }
+
+        @Override
+        public boolean onInsertLines(int num) {
+            // Only has effect when the cursor is inside the scrolling region
+            if (cursorY >= scrollTop() && cursorY <= scrollBottom()) {
+                buffer.insertLines(cursorY, scrollBottom(), Math.max(1, num));
+                cursorX = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onDeleteLines(int num) {
+            // Only has effect when the cursor is inside the scrolling region
+            if (cursorY >= scrollTop() && cursorY <= scrollBottom()) {
+                buffer.deleteLines(cursorY, scrollBottom(), Math.max(1, num));
+                cursorX = 0;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean onInsertChars(int num) {
+            buffer.insertCells(Math.min(cursorX, size().width() - 1), cursorY, Math.max(1, num));
+            return true;
+        }
+
+        @Override
+        public boolean onDeleteChars(int num) {
+            buffer.deleteCells(Math.min(cursorX, size().width() - 1), cursorY, Math.max(1, num));
+            return true;
+        }
+
+        @Override
+        public boolean onEraseChars(int num) {
+            buffer.eraseCells(Math.min(cursorX, size().width() - 1), cursorY, Math.max(1, num));
+            return true;
+        }
+
+        @Override
+        public boolean onCursorUpWithScroll() {
+            if (cursorY == scrollTop()) {
+                buffer.scroll(scrollTop(), scrollBottom(), -1);
+            } else if (cursorY > 0) {
+                cursorY--;
+            }
+            return true;
+        }
+
         @Override
         public boolean onHyperlink(Hyperlink link) {
             currentLink = link;
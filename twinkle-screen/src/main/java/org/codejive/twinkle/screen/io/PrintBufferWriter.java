@@ -72,6 +72,29 @@ public class PrintBufferWriter extends PrintWriter {
         return this;
     }
 
+    /**
+     * Check if auto-scrolling is enabled.
+     *
+     * @return true if auto-scrolling is enabled, false otherwise
+     */
+    public boolean scroll() {
+        return writer.autoScroll;
+    }
+
+    /**
+     * Enable or disable auto-scrolling. When auto-scrolling is enabled, moving to the next line
+     * while the cursor is on the last line of the scrolling region (which by default is the entire
+     * buffer) will scroll the contents of the region up by one line, just like a terminal does.
+     * When it is disabled, anything written past the last line of the buffer is dropped.
+     *
+     * @param autoScroll true to enable auto-scrolling, false to disable it
+     * @return a reference to this BufferWriter, for chaining
+     */
+    public @NonNull PrintBufferWriter scroll(boolean autoScroll) {
+        writer.autoScroll = autoScroll;
+        return this;
+    }
+
     /**
      * Get the current style.
      *
@@ -1,6 +1,6 @@
 package org.codejive.twinkle.screen.io;
 
-import org.codejive.twinkle.ansi.util.AnsiOutputParser;
+import org.codejive.twinkle.ansi.util.AnsiOutputParser.AnsiSequenceHandler;
 import org.codejive.twinkle.screen.SwappableBuffer;
 import org.jspecify.annotations.NonNull;
 
@@ -11,8 +11,8 @@ public class SwappableBufferWriter extends BufferWriter {
     }
 
     @Override
-    protected void handleAnsiSequence(String sequence) {
-        AnsiOutputParser.parse(sequence, new SwappableHandler());
+    protected @NonNull AnsiSequenceHandler createHandler() {
+        return new SwappableHandler();
     }
 
     protected class SwappableHandler extends Handler {
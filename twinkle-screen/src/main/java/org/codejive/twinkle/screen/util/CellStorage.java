@@ -0,0 +1,640 @@
+package org.codejive.twinkle.screen.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * The storage for the codepoints and packed styles of all the cells of a buffer, addressed by cell
+ * index. The default storage keeps them in plain arrays on the heap. For very large buffers the
+ * cells can instead be kept in off-heap memory, either allocated directly or mapped to a file, so
+ * the garbage collector never has to look at them and GC pauses don't grow with the size of the
+ * buffer. Huge buffers that are mostly empty can use sparse storage, which only allocates memory
+ * for the parts of the buffer that actually get written to.
+ *
+ * <p>Newly created storage always has all cells in their cleared state: a codepoint of 0 and an
+ * unstyled style.
+ *
+ * <p>Heap and sparse storage can be snapshotted cheaply: the snapshot shares its memory with the
+ * original, and whichever of the two gets written to first copies just the chunk or tile being
+ * written. Off-heap storage gets copied in full.
+ */
+public abstract class CellStorage {
+
+    /** Creates the storage for a buffer, called again each time the buffer gets resized. */
+    public interface Factory {
+        /**
+         * Create storage for the given amount of cells.
+         *
+         * @param cells the amount of cells
+         * @return the new storage
+         */
+        @NonNull CellStorage create(int cells);
+
+        /**
+         * Create storage for a buffer of the given size, for storage that cares about the layout of
+         * the cells.
+         *
+         * @param width the width of the buffer
+         * @param height the height of the buffer
+         * @return the new storage
+         */
+        default @NonNull CellStorage create(int width, int height) {
+            return create(width * height);
+        }
+    }
+
+    /** Keeps the cells in arrays on the heap, this is the default. */
+    public static final Factory HEAP = HeapStorage::new;
+
+    /** Keeps the cells in direct (off-heap) memory. */
+    public static final Factory DIRECT =
+            cells -> new DirectStorage(allocate(cells, 4), allocate(cells, 8));
+
+    /**
+     * Keeps the cells in off-heap memory that is mapped to a temporary file in the given directory.
+     * This way the operating system can page out the cells of buffers that are larger than the
+     * available memory.
+     *
+     * @param directory the directory to create the temporary files in
+     * @return a factory for file-backed storage
+     */
+    public static @NonNull Factory mapped(@NonNull Path directory) {
+        return cells -> {
+            try {
+                Path file = Files.createTempFile(directory, "twinkle", ".cells");
+                try (FileChannel channel =
+                        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    ByteBuffer cps = channel.map(FileChannel.MapMode.READ_WRITE, 0, cells * 4L);
+                    ByteBuffer styles =
+                            channel.map(FileChannel.MapMode.READ_WRITE, cells * 4L, cells * 8L);
+                    return new DirectStorage(cps, styles);
+                } finally {
+                    // The mapping stays valid after the file is gone, at least on POSIX systems
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        file.toFile().deleteOnExit();
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    /**
+     * Keeps the cells in tiles that only get allocated when a cell in them is first written.
+     * Unallocated tiles read as cleared cells, so the memory used only depends on the area of the
+     * buffer that was actually written to, not on its size.
+     */
+    public static final Factory SPARSE =
+            new Factory() {
+                @Override
+                public @NonNull CellStorage create(int cells) {
+                    return new SparseStorage(cells, 1);
+                }
+
+                @Override
+                public @NonNull CellStorage create(int width, int height) {
+                    return new SparseStorage(width, height);
+                }
+            };
+
+    private static ByteBuffer allocate(int cells, int bytesPerCell) {
+        long size = (long) cells * bytesPerCell;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many cells for off-heap storage: " + cells);
+        }
+        return ByteBuffer.allocateDirect((int) size);
+    }
+
+    /**
+     * The amount of cells in this storage.
+     *
+     * @return the amount of cells
+     */
+    public abstract int size();
+
+    public abstract int cp(int idx);
+
+    public abstract long style(int idx);
+
+    public abstract void set(int idx, int cp, long style);
+
+    /**
+     * Set the cells <code>from</code> (inclusive) up to <code>to</code> (exclusive) to the given
+     * codepoint and style.
+     */
+    public abstract void fill(int from, int to, int cp, long style);
+
+    /**
+     * Copy <code>len</code> cells starting at <code>from</code> to the given storage starting at
+     * <code>to</code>. The target can be this same storage, in which case the ranges are allowed to
+     * overlap.
+     */
+    public abstract void copyTo(int from, @NonNull CellStorage target, int to, int len);
+
+    /**
+     * Determine if the <code>len</code> cells starting at <code>from</code> have the same
+     * codepoints and styles as the cells starting at <code>otherFrom</code> in the other storage.
+     */
+    public boolean sameCells(int from, @NonNull CellStorage other, int otherFrom, int len) {
+        for (int i = 0; i < len; i++) {
+            if (cp(from + i) != other.cp(otherFrom + i)
+                    || style(from + i) != other.style(otherFrom + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create a snapshot of the current contents of this storage. Changes made to this storage
+     * afterwards are not visible in the snapshot and vice versa.
+     *
+     * @return the snapshot
+     */
+    public abstract @NonNull CellStorage snapshot();
+
+    /**
+     * The amount of cells that actually take up memory, which is less than {@link #size()} for
+     * sparse storage.
+     *
+     * @return the amount of allocated cells
+     */
+    public long allocatedCells() {
+        return size();
+    }
+
+    /**
+     * Determine if this storage only allocates memory for the cells that get written. Callers
+     * should avoid creating anything that is sized by the total amount of cells for such storage.
+     *
+     * @return true if this is sparse storage
+     */
+    public boolean isSparse() {
+        return false;
+    }
+
+    /** Copy cells one by one, for storage types that have no faster way of doing it. */
+    void copyCells(int from, @NonNull CellStorage target, int to, int len) {
+        if (target == this && to > from) {
+            for (int i = len - 1; i >= 0; i--) {
+                target.set(to + i, cp(from + i), style(from + i));
+            }
+        } else {
+            for (int i = 0; i < len; i++) {
+                target.set(to + i, cp(from + i), style(from + i));
+            }
+        }
+    }
+
+    /**
+     * Limit the given buffer to <code>len</code> elements starting at <code>from</code>. The casts
+     * to Buffer keep the code compatible with Java 8 where these methods aren't covariant yet.
+     */
+    private static <B extends Buffer> B range(B buffer, int from, int len) {
+        ((Buffer) buffer).limit(from + len);
+        ((Buffer) buffer).position(from);
+        return buffer;
+    }
+
+    /**
+     * Keeps the cells in fixed-size chunks so a snapshot only has to copy the references to the
+     * chunks, which then get copied on the first write.
+     */
+    private static class HeapStorage extends CellStorage {
+        private final int size;
+        private final int[][] cps;
+        private final long[][] styles;
+        // The chunks that are shared with a snapshot and must be copied before being written
+        private final boolean[] shared;
+
+        private static final int CHUNK_SHIFT = 9;
+        private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+        HeapStorage(int cells) {
+            int chunks = (cells + CHUNK_MASK) >>> CHUNK_SHIFT;
+            this.size = cells;
+            this.cps = new int[chunks][];
+            this.styles = new long[chunks][];
+            this.shared = new boolean[chunks];
+            for (int c = 0; c < chunks; c++) {
+                int len = Math.min(CHUNK_SIZE, cells - (c << CHUNK_SHIFT));
+                cps[c] = new int[len];
+                styles[c] = new long[len];
+            }
+        }
+
+        private HeapStorage(HeapStorage other) {
+            this.size = other.size;
+            this.cps = other.cps.clone();
+            this.styles = other.styles.clone();
+            this.shared = new boolean[cps.length];
+            Arrays.fill(shared, true);
+        }
+
+        @Override
+        public @NonNull CellStorage snapshot() {
+            Arrays.fill(shared, true);
+            return new HeapStorage(this);
+        }
+
+        /** Make sure chunk <code>c</code> isn't shared anymore so it can be written. */
+        private void own(int c) {
+            if (shared[c]) {
+                cps[c] = cps[c].clone();
+                styles[c] = styles[c].clone();
+                shared[c] = false;
+            }
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int cp(int idx) {
+            return cps[idx >>> CHUNK_SHIFT][idx & CHUNK_MASK];
+        }
+
+        @Override
+        public long style(int idx) {
+            return styles[idx >>> CHUNK_SHIFT][idx & CHUNK_MASK];
+        }
+
+        @Override
+        public void set(int idx, int cp, long style) {
+            int c = idx >>> CHUNK_SHIFT;
+            own(c);
+            cps[c][idx & CHUNK_MASK] = cp;
+            styles[c][idx & CHUNK_MASK] = style;
+        }
+
+        @Override
+        public void fill(int from, int to, int cp, long style) {
+            while (from < to) {
+                int c = from >>> CHUNK_SHIFT;
+                int offset = from & CHUNK_MASK;
+                int len = Math.min(to - from, cps[c].length - offset);
+                if (shared[c] && len == cps[c].length) {
+                    // The whole chunk gets overwritten, so there's no need to copy it
+                    cps[c] = new int[len];
+                    styles[c] = new long[len];
+                    shared[c] = false;
+                } else {
+                    own(c);
+                }
+                Arrays.fill(cps[c], offset, offset + len, cp);
+                Arrays.fill(styles[c], offset, offset + len, style);
+                from += len;
+            }
+        }
+
+        @Override
+        public void copyTo(int from, @NonNull CellStorage target, int to, int len) {
+            if (target instanceof HeapStorage) {
+                HeapStorage heap = (HeapStorage) target;
+                if (heap == this && to > from) {
+                    // Overlapping ranges, copied back to front so the source isn't overwritten
+                    int end = len;
+                    while (end > 0) {
+                        int src = from + end - 1;
+                        int dst = to + end - 1;
+                        int n = Math.min(end, Math.min(src & CHUNK_MASK, dst & CHUNK_MASK) + 1);
+                        heap.copyChunk(this, src - n + 1, dst - n + 1, n);
+                        end -= n;
+                    }
+                } else {
+                    int done = 0;
+                    while (done < len) {
+                        int src = from + done;
+                        int dst = to + done;
+                        int n =
+                                Math.min(
+                                        len - done,
+                                        CHUNK_SIZE - Math.max(src & CHUNK_MASK, dst & CHUNK_MASK));
+                        heap.copyChunk(this, src, dst, n);
+                        done += n;
+                    }
+                }
+            } else if (target instanceof DirectStorage) {
+                DirectStorage direct = (DirectStorage) target;
+                IntBuffer targetCps = direct.cps.duplicate();
+                LongBuffer targetStyles = direct.styles.duplicate();
+                int done = 0;
+                while (done < len) {
+                    int src = from + done;
+                    int n = Math.min(len - done, CHUNK_SIZE - (src & CHUNK_MASK));
+                    int c = src >>> CHUNK_SHIFT;
+                    range(targetCps, to + done, n).put(cps[c], src & CHUNK_MASK, n);
+                    range(targetStyles, to + done, n).put(styles[c], src & CHUNK_MASK, n);
+                    done += n;
+                }
+            } else {
+                copyCells(from, target, to, len);
+            }
+        }
+
+        @Override
+        public boolean sameCells(int from, @NonNull CellStorage other, int otherFrom, int len) {
+            if (!(other instanceof HeapStorage)) {
+                return super.sameCells(from, other, otherFrom, len);
+            }
+            HeapStorage heap = (HeapStorage) other;
+            int done = 0;
+            while (done < len) {
+                int idx = from + done;
+                int otherIdx = otherFrom + done;
+                int n =
+                        Math.min(
+                                len - done,
+                                CHUNK_SIZE - Math.max(idx & CHUNK_MASK, otherIdx & CHUNK_MASK));
+                int[] cs = cps[idx >>> CHUNK_SHIFT];
+                long[] ss = styles[idx >>> CHUNK_SHIFT];
+                int[] otherCs = heap.cps[otherIdx >>> CHUNK_SHIFT];
+                long[] otherSs = heap.styles[otherIdx >>> CHUNK_SHIFT];
+                int c = idx & CHUNK_MASK;
+                int oc = otherIdx & CHUNK_MASK;
+                if (cs != otherCs || ss != otherSs || c != oc) {
+                    // Chunks that are still shared with a snapshot don't need to be compared
+                    for (int i = 0; i < n; i++) {
+                        if (cs[c + i] != otherCs[oc + i] || ss[c + i] != otherSs[oc + i]) {
+                            return false;
+                        }
+                    }
+                }
+                done += n;
+            }
+            return true;
+        }
+
+        /**
+         * Copy <code>len</code> cells that fall within a single chunk of the source and of this
+         * storage.
+         */
+        private void copyChunk(HeapStorage source, int from, int to, int len) {
+            int c = to >>> CHUNK_SHIFT;
+            own(c);
+            int sc = from >>> CHUNK_SHIFT;
+            System.arraycopy(source.cps[sc], from & CHUNK_MASK, cps[c], to & CHUNK_MASK, len);
+            System.arraycopy(source.styles[sc], from & CHUNK_MASK, styles[c], to & CHUNK_MASK, len);
+        }
+    }
+
+    private static class DirectStorage extends CellStorage {
+        private final IntBuffer cps;
+        private final LongBuffer styles;
+
+        DirectStorage(ByteBuffer cps, ByteBuffer styles) {
+            this.cps = cps.order(ByteOrder.nativeOrder()).asIntBuffer();
+            this.styles = styles.order(ByteOrder.nativeOrder()).asLongBuffer();
+        }
+
+        @Override
+        public @NonNull CellStorage snapshot() {
+            CellStorage copy = DIRECT.create(size());
+            copyTo(0, copy, 0, size());
+            return copy;
+        }
+
+        @Override
+        public int size() {
+            return cps.capacity();
+        }
+
+        @Override
+        public int cp(int idx) {
+            return cps.get(idx);
+        }
+
+        @Override
+        public long style(int idx) {
+            return styles.get(idx);
+        }
+
+        @Override
+        public void set(int idx, int cp, long style) {
+            cps.put(idx, cp);
+            styles.put(idx, style);
+        }
+
+        @Override
+        public void fill(int from, int to, int cp, long style) {
+            for (int idx = from; idx < to; idx++) {
+                cps.put(idx, cp);
+                styles.put(idx, style);
+            }
+        }
+
+        @Override
+        public void copyTo(int from, @NonNull CellStorage target, int to, int len) {
+            if (target == this) {
+                // Overlapping ranges, copied in the direction that doesn't overwrite the source
+                copyCells(from, target, to, len);
+            } else if (target instanceof HeapStorage) {
+                HeapStorage heap = (HeapStorage) target;
+                IntBuffer sourceCps = cps.duplicate();
+                LongBuffer sourceStyles = styles.duplicate();
+                int done = 0;
+                while (done < len) {
+                    int dst = to + done;
+                    int n =
+                            Math.min(
+                                    len - done,
+                                    HeapStorage.CHUNK_SIZE - (dst & HeapStorage.CHUNK_MASK));
+                    int c = dst >>> HeapStorage.CHUNK_SHIFT;
+                    heap.own(c);
+                    range(sourceCps, from + done, n)
+                            .get(heap.cps[c], dst & HeapStorage.CHUNK_MASK, n);
+                    range(sourceStyles, from + done, n)
+                            .get(heap.styles[c], dst & HeapStorage.CHUNK_MASK, n);
+                    done += n;
+                }
+            } else if (target instanceof DirectStorage) {
+                DirectStorage direct = (DirectStorage) target;
+                range(direct.cps.duplicate(), to, len).put(range(cps.duplicate(), from, len));
+                range(direct.styles.duplicate(), to, len).put(range(styles.duplicate(), from, len));
+            } else {
+                copyCells(from, target, to, len);
+            }
+        }
+    }
+
+    private static class SparseStorage extends CellStorage {
+        private final int width;
+        private final int height;
+        private final int tilesPerRow;
+        private final Tile[] tiles;
+        // The tiles that are shared with a snapshot and must be copied before being written
+        private final boolean[] shared;
+        private int allocatedTiles;
+
+        private static final int TILE_WIDTH = 64;
+        private static final int TILE_HEIGHT = 16;
+
+        private static class Tile {
+            final int[] cps;
+            final long[] styles;
+
+            Tile() {
+                this.cps = new int[TILE_WIDTH * TILE_HEIGHT];
+                this.styles = new long[TILE_WIDTH * TILE_HEIGHT];
+            }
+
+            Tile(Tile other) {
+                this.cps = other.cps.clone();
+                this.styles = other.styles.clone();
+            }
+        }
+
+        SparseStorage(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.tilesPerRow = (width + TILE_WIDTH - 1) / TILE_WIDTH;
+            this.tiles = new Tile[tilesPerRow * ((height + TILE_HEIGHT - 1) / TILE_HEIGHT)];
+            this.shared = new boolean[tiles.length];
+        }
+
+        private SparseStorage(SparseStorage other) {
+            this.width = other.width;
+            this.height = other.height;
+            this.tilesPerRow = other.tilesPerRow;
+            this.tiles = other.tiles.clone();
+            this.shared = new boolean[tiles.length];
+            this.allocatedTiles = other.allocatedTiles;
+            Arrays.fill(shared, true);
+        }
+
+        @Override
+        public @NonNull CellStorage snapshot() {
+            Arrays.fill(shared, true);
+            return new SparseStorage(this);
+        }
+
+        private int tileIndex(int x, int y) {
+            return (y / TILE_HEIGHT) * tilesPerRow + x / TILE_WIDTH;
+        }
+
+        private static int cellIndex(int x, int y) {
+            return (y % TILE_HEIGHT) * TILE_WIDTH + x % TILE_WIDTH;
+        }
+
+        @Override
+        public int size() {
+            return width * height;
+        }
+
+        @Override
+        public long allocatedCells() {
+            return (long) allocatedTiles * TILE_WIDTH * TILE_HEIGHT;
+        }
+
+        @Override
+        public boolean isSparse() {
+            return true;
+        }
+
+        @Override
+        public int cp(int idx) {
+            int y = idx / width;
+            int x = idx - y * width;
+            Tile tile = tiles[tileIndex(x, y)];
+            return tile != null ? tile.cps[cellIndex(x, y)] : 0;
+        }
+
+        @Override
+        public long style(int idx) {
+            int y = idx / width;
+            int x = idx - y * width;
+            Tile tile = tiles[tileIndex(x, y)];
+            return tile != null ? tile.styles[cellIndex(x, y)] : 0L;
+        }
+
+        @Override
+        public void set(int idx, int cp, long style) {
+            int y = idx / width;
+            int x = idx - y * width;
+            int t = tileIndex(x, y);
+            Tile tile = tiles[t];
+            if (tile == null) {
+                if (cp == 0 && style == 0L) {
+                    // Unallocated tiles already consist of cleared cells
+                    return;
+                }
+                tile = tiles[t] = new Tile();
+                shared[t] = false;
+                allocatedTiles++;
+            } else if (shared[t]) {
+                tile = tiles[t] = new Tile(tile);
+                shared[t] = false;
+            }
+            int c = cellIndex(x, y);
+            tile.cps[c] = cp;
+            tile.styles[c] = style;
+        }
+
+        @Override
+        public void fill(int from, int to, int cp, long style) {
+            boolean cleared = cp == 0 && style == 0L;
+            if (cleared && from == 0 && to == size()) {
+                Arrays.fill(tiles, null);
+                Arrays.fill(shared, false);
+                allocatedTiles = 0;
+                return;
+            }
+            // Go through the range one tile-sized row segment at a time
+            int idx = from;
+            while (idx < to) {
+                int y = idx / width;
+                int x = idx - y * width;
+                int len = Math.min(to - idx, Math.min(width - x, TILE_WIDTH - x % TILE_WIDTH));
+                if (!cleared || tiles[tileIndex(x, y)] != null) {
+                    for (int i = 0; i < len; i++) {
+                        set(idx + i, cp, style);
+                    }
+                }
+                idx += len;
+            }
+        }
+
+        @Override
+        public void copyTo(int from, @NonNull CellStorage target, int to, int len) {
+            if (target == this) {
+                copyCells(from, target, to, len);
+                return;
+            }
+            // Go through the range one tile-sized row segment at a time
+            int done = 0;
+            while (done < len) {
+                int idx = from + done;
+                int y = idx / width;
+                int x = idx - y * width;
+                int n = Math.min(len - done, Math.min(width - x, TILE_WIDTH - x % TILE_WIDTH));
+                Tile tile = tiles[tileIndex(x, y)];
+                if (tile == null) {
+                    target.fill(to + done, to + done + n, 0, 0L);
+                } else {
+                    int c = cellIndex(x, y);
+                    for (int i = 0; i < n; i++) {
+                        target.set(to + done + i, tile.cps[c + i], tile.styles[c + i]);
+                    }
+                }
+                done += n;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.codejive.twinkle.screen.util;
+
+import java.util.Arrays;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * Keeps track of which cells of a buffer have changed. For each row a single dirty flag is kept
+ * together with the range of columns that were changed in that row, which makes it possible for
+ * consumers to only look at the parts of a buffer that actually changed.
+ */
+public class ChangeSet {
+    private final int width;
+    private final int height;
+    private final long[] rows;
+    private final int[] fromX;
+    private final int[] toX;
+    private int dirtyRows;
+
+    public ChangeSet(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.rows = new long[(height + 63) >>> 6];
+        this.fromX = new int[height];
+        this.toX = new int[height];
+        reset();
+    }
+
+    /**
+     * Create a copy of the given change set.
+     *
+     * @param other the change set to copy
+     */
+    public ChangeSet(ChangeSet other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.rows = other.rows.clone();
+        this.fromX = other.fromX.clone();
+        this.toX = other.toX.clone();
+        this.dirtyRows = other.dirtyRows;
+    }
+
+    /**
+     * Mark the cell at the given position as changed.
+     *
+     * @param x the x-coordinate of the cell
+     * @param y the y-coordinate of the cell
+     */
+    public void mark(int x, int y) {
+        mark(y, x, x);
+    }
+
+    /**
+     * Mark the cells of row <code>y</code> from <code>from</code> up to and including <code>to
+     * </code> as changed.
+     *
+     * @param y the row
+     * @param from the first changed column
+     * @param to the last changed column
+     */
+    public void mark(int y, int from, int to) {
+        long bit = 1L << y;
+        int word = y >>> 6;
+        if ((rows[word] & bit) == 0) {
+            rows[word] |= bit;
+            fromX[y] = from;
+            toX[y] = to;
+            dirtyRows++;
+        } else {
+            if (from < fromX[y]) {
+                fromX[y] = from;
+            }
+            if (to > toX[y]) {
+                toX[y] = to;
+            }
+        }
+    }
+
+    /**
+     * Mark all cells of the rows <code>fromY</code> (inclusive) up to <code>toY</code> (exclusive)
+     * as changed.
+     *
+     * @param fromY the first changed row
+     * @param toY the row after the last changed row
+     */
+    public void markRows(int fromY, int toY) {
+        for (int y = fromY; y < toY; y++) {
+            mark(y, 0, width - 1);
+        }
+    }
+
+    /** Mark all cells as changed. */
+    public void markAll() {
+        markRows(0, height);
+    }
+
+    /** Forget all changes. */
+    public void reset() {
+        Arrays.fill(rows, 0);
+        dirtyRows = 0;
+    }
+
+    /**
+     * Determine if anything changed at all.
+     *
+     * @return true if at least one cell changed, false otherwise
+     */
+    public boolean isDirty() {
+        return dirtyRows > 0;
+    }
+
+    /**
+     * Determine if anything changed in the given row.
+     *
+     * @param y the row
+     * @return true if at least one cell in the row changed, false otherwise
+     */
+    public boolean isDirty(int y) {
+        return y >= 0 && y < height && (rows[y >>> 6] & (1L << y)) != 0;
+    }
+
+    /**
+     * The number of rows that have changes.
+     *
+     * @return the number of dirty rows
+     */
+    public int dirtyRowCount() {
+        return dirtyRows;
+    }
+
+    /**
+     * Find the first row at or after the given row that has changes.
+     *
+     * @param fromY the row to start looking from
+     * @return the first dirty row or -1 if there are no more dirty rows
+     */
+    public int nextDirtyRow(int fromY) {
+        if (fromY < 0) {
+            fromY = 0;
+        }
+        if (fromY >= height) {
+            return -1;
+        }
+        int word = fromY >>> 6;
+        long bits = rows[word] & (-1L << fromY);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == rows.length) {
+                return -1;
+            }
+            bits = rows[word];
+        }
+    }
+
+    /**
+     * The first column that changed in the given row. Only valid if the row is dirty.
+     *
+     * @param y the row
+     * @return the first changed column
+     */
+    public int dirtyFrom(int y) {
+        return fromX[y];
+    }
+
+    /**
+     * The last column that changed in the given row. Only valid if the row is dirty.
+     *
+     * @param y the row
+     * @return the last changed column
+     */
+    public int dirtyTo(int y) {
+        return toX[y];
+    }
+
+    /**
+     * The smallest rectangle that contains all changes or null if there are no changes.
+     *
+     * @return a Rect or null
+     */
+    public Rect bounds() {
+        int top = nextDirtyRow(0);
+        if (top < 0) {
+            return null;
+        }
+        int bottom = top;
+        int left = fromX[top];
+        int right = toX[top];
+        for (int y = nextDirtyRow(top + 1); y >= 0; y = nextDirtyRow(y + 1)) {
+            bottom = y;
+            left = Math.min(left, fromX[y]);
+            right = Math.max(right, toX[y]);
+        }
+        return Rect.of(left, top, right - left + 1, bottom - top + 1);
+    }
+
+    @Override
+    public @NonNull String toString() {
+        return "ChangeSet{dirtyRows=" + dirtyRows + ", bounds=" + bounds() + "}";
+    }
+}
@@ -0,0 +1,296 @@
+package org.codejive.twinkle.screen.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.codejive.twinkle.text.Unicode;
+
+/**
+ * A pool of interned grapheme clusters, each identified by a small integer id. The characters of
+ * all graphemes are stored one after the other in a single char arena, so identical clusters share
+ * their storage and looking up a cluster that's already in the pool doesn't allocate. The id {@link
+ * #NONE} is reserved to indicate the absence of a grapheme.
+ */
+public class GraphemePool {
+    private char[] arena;
+    private int arenaLength;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] hashes;
+    private boolean[] wide;
+    private String[] strings;
+    private int count;
+    private int[] table;
+    private final Sequence arenaSequence;
+
+    public static final int NONE = 0;
+
+    public GraphemePool() {
+        this.arena = new char[64];
+        this.offsets = new int[16];
+        this.lengths = new int[16];
+        this.hashes = new int[16];
+        this.wide = new boolean[16];
+        this.strings = new String[16];
+        this.table = new int[32];
+        this.arenaSequence = new Sequence();
+        clear();
+    }
+
+    /**
+     * Create a copy of the given pool, in which all graphemes have the same ids.
+     *
+     * @param other the pool to copy
+     */
+    public GraphemePool(GraphemePool other) {
+        this.arena = Arrays.copyOf(other.arena, other.arena.length);
+        this.arenaLength = other.arenaLength;
+        this.offsets = other.offsets.clone();
+        this.lengths = other.lengths.clone();
+        this.hashes = other.hashes.clone();
+        this.wide = other.wide.clone();
+        this.strings = other.strings.clone();
+        this.count = other.count;
+        this.table = other.table.clone();
+        this.arenaSequence = new Sequence();
+    }
+
+    /**
+     * Get the id for the given grapheme, adding it to the pool if it's not present yet.
+     *
+     * @param grapheme the grapheme to look up, can be null
+     * @return the id of the grapheme or {@link #NONE} if the grapheme is null
+     */
+    public int idOf(CharSequence grapheme) {
+        if (grapheme == null) {
+            return NONE;
+        }
+        return idOf(grapheme, 0, grapheme.length());
+    }
+
+    /**
+     * Get the id for the grapheme with the given id in another pool, adding it to this pool if it's
+     * not present yet.
+     *
+     * @param pool the pool the id belongs to
+     * @param id the id of the grapheme in the other pool
+     * @return the id of the grapheme in this pool
+     */
+    public int idOf(GraphemePool pool, int id) {
+        if (id == NONE) {
+            return NONE;
+        }
+        if (pool == this) {
+            return id;
+        }
+        int offset = pool.offsets[id];
+        return idOf(pool.arenaSequence, offset, offset + pool.lengths[id]);
+    }
+
+    private int idOf(CharSequence chars, int start, int end) {
+        int hash = hash(chars, start, end);
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        int id;
+        while ((id = table[slot]) != NONE) {
+            if (hashes[id] == hash && matches(id, chars, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        id = add(chars, start, end, hash);
+        table[slot] = id;
+        if (count * 2 > table.length) {
+            rehash(table.length * 2);
+        }
+        return id;
+    }
+
+    private int add(CharSequence chars, int start, int end, int hash) {
+        int len = end - start;
+        if (arenaLength + len > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + len));
+        }
+        if (count == offsets.length) {
+            int newLength = count * 2;
+            offsets = Arrays.copyOf(offsets, newLength);
+            lengths = Arrays.copyOf(lengths, newLength);
+            hashes = Arrays.copyOf(hashes, newLength);
+            wide = Arrays.copyOf(wide, newLength);
+            strings = Arrays.copyOf(strings, newLength);
+        }
+        for (int i = start; i < end; i++) {
+            arena[arenaLength + i - start] = chars.charAt(i);
+        }
+        int id = count++;
+        offsets[id] = arenaLength;
+        lengths[id] = len;
+        hashes[id] = hash;
+        wide[id] = Unicode.isWide(get(id));
+        arenaLength += len;
+        return id;
+    }
+
+    private boolean matches(int id, CharSequence chars, int start, int end) {
+        int len = lengths[id];
+        if (len != end - start) {
+            return false;
+        }
+        int offset = offsets[id];
+        for (int i = 0; i < len; i++) {
+            if (arena[offset + i] != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int size) {
+        table = new int[size];
+        int mask = size - 1;
+        for (int id = 1; id < count; id++) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+
+    private static int hash(CharSequence chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + chars.charAt(i);
+        }
+        // Spread the bits so the low bits used for the table slots are well distributed
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Get the grapheme with the given id as a String. The String is created once and then reused
+     * for subsequent calls.
+     *
+     * @param id the id of the grapheme
+     * @return the grapheme or null if the id is {@link #NONE}
+     */
+    public String get(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        String str = strings[id];
+        if (str == null) {
+            str = strings[id] = new String(arena, offsets[id], lengths[id]);
+        }
+        return str;
+    }
+
+    /**
+     * Append the grapheme with the given id to the given Appendable, directly from the arena.
+     *
+     * @param appendable the Appendable to write the grapheme to
+     * @param id the id of the grapheme
+     * @throws IOException if the Appendable throws an IOException
+     */
+    public void appendTo(Appendable appendable, int id) throws IOException {
+        if (id == NONE) {
+            return;
+        }
+        int offset = offsets[id];
+        if (appendable instanceof StringBuilder) {
+            ((StringBuilder) appendable).append(arena, offset, lengths[id]);
+        } else {
+            appendable.append(arenaSequence, offset, offset + lengths[id]);
+        }
+    }
+
+    /**
+     * Determine if the grapheme with the given id is a wide (double width) grapheme.
+     *
+     * @param id the id of the grapheme
+     * @return true if the grapheme is wide, false otherwise
+     */
+    public boolean isWide(int id) {
+        return wide[id];
+    }
+
+    /**
+     * The number of ids in use, including {@link #NONE}. All valid ids are smaller than this value.
+     *
+     * @return the number of ids in use
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * The number of characters stored in the arena.
+     *
+     * @return the number of characters in use
+     */
+    public int arenaSize() {
+        return arenaLength;
+    }
+
+    /**
+     * Remove all graphemes that are no longer in use from the pool, reclaiming their space in the
+     * arena. The remaining graphemes will be assigned new ids, the returned array maps old ids to
+     * new ones (unused ids map to {@link #NONE}).
+     *
+     * @param used an array indicating for each id if it's still in use
+     * @return an array mapping the old ids to the new ones
+     */
+    public int[] compact(boolean[] used) {
+        int[] remap = new int[count];
+        int oldCount = count;
+        int newCount = 1;
+        int newLength = 0;
+        for (int id = 1; id < oldCount; id++) {
+            if (used[id]) {
+                int len = lengths[id];
+                System.arraycopy(arena, offsets[id], arena, newLength, len);
+                offsets[newCount] = newLength;
+                lengths[newCount] = len;
+                hashes[newCount] = hashes[id];
+                wide[newCount] = wide[id];
+                strings[newCount] = strings[id];
+                remap[id] = newCount++;
+                newLength += len;
+            }
+        }
+        Arrays.fill(strings, newCount, oldCount, null);
+        count = newCount;
+        arenaLength = newLength;
+        rehash(table.length);
+        return remap;
+    }
+
+    /** Remove all graphemes from the pool. */
+    public void clear() {
+        Arrays.fill(strings, null);
+        Arrays.fill(table, NONE);
+        count = 1;
+        arenaLength = 0;
+    }
+
+    /** A view of the arena as a CharSequence, used to copy graphemes without allocating. */
+    private class Sequence implements CharSequence {
+        @Override
+        public int length() {
+            return arenaLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return arena[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(arena, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(arena, 0, arenaLength);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.codejive.twinkle.screen.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.codejive.twinkle.ansi.Hyperlink;
+
+/**
+ * A table of interned hyperlinks, each identified by a small integer id. This allows cells to refer
+ * to a hyperlink by id so that link transitions can be detected by simple integer comparisons. The
+ * id {@link #NONE} is reserved to indicate the absence of a hyperlink.
+ */
+public class LinkTable {
+    private Hyperlink[] links;
+    private final Map<Hyperlink, Integer> ids;
+    private int count;
+    // Kept together so concurrent readers never see a link paired with the id of another one
+    private Lookup last;
+
+    public static final int NONE = 0;
+
+    public LinkTable() {
+        this.links = new Hyperlink[8];
+        this.ids = new HashMap<>();
+        clear();
+    }
+
+    /**
+     * Create a copy of the given table, in which all hyperlinks have the same ids.
+     *
+     * @param other the table to copy
+     */
+    public LinkTable(LinkTable other) {
+        this.links = other.links.clone();
+        this.ids = new HashMap<>(other.ids);
+        this.count = other.count;
+        this.last = Lookup.NONE;
+    }
+
+    /**
+     * Get the id for the given hyperlink, adding it to the table if it's not present yet.
+     *
+     * @param link the hyperlink to look up, can be null
+     * @return the id of the hyperlink or {@link #NONE} if the link is null
+     */
+    public int idOf(Hyperlink link) {
+        int id = find(link);
+        if (id < 0) {
+            if (count == links.length) {
+                links = Arrays.copyOf(links, count * 2);
+            }
+            id = count++;
+            links[id] = link;
+            ids.put(link, id);
+            last = new Lookup(link, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the id for the given hyperlink without adding it to the table.
+     *
+     * @param link the hyperlink to look up, can be null
+     * @return the id of the hyperlink, {@link #NONE} if the link is null or -1 if the link is not
+     *     present in the table
+     */
+    public int find(Hyperlink link) {
+        if (link == null) {
+            return NONE;
+        }
+        Lookup lookup = last;
+        if (link == lookup.link) {
+            return lookup.id;
+        }
+        Integer id = ids.get(link);
+        if (id == null) {
+            return -1;
+        }
+        last = new Lookup(link, id);
+        return id;
+    }
+
+    /**
+     * Get the hyperlink with the given id.
+     *
+     * @param id the id of the hyperlink
+     * @return the hyperlink or null if the id is {@link #NONE}
+     */
+    public Hyperlink get(int id) {
+        return links[id];
+    }
+
+    /**
+     * The number of ids in use, including {@link #NONE}. All valid ids are smaller than this value.
+     *
+     * @return the number of ids in use
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Remove all hyperlinks that are no longer in use from the table. The remaining hyperlinks will
+     * be assigned new ids, the returned array maps old ids to new ones (unused ids map to {@link
+     * #NONE}).
+     *
+     * @param used an array indicating for each id if it's still in use
+     * @return an array mapping the old ids to the new ones
+     */
+    public int[] compact(boolean[] used) {
+        int[] remap = new int[count];
+        Hyperlink[] oldLinks = links;
+        int oldCount = count;
+        links = new Hyperlink[Math.max(8, oldLinks.length)];
+        clear();
+        for (int id = 1; id < oldCount; id++) {
+            if (used[id]) {
+                remap[id] = idOf(oldLinks[id]);
+            }
+        }
+        return remap;
+    }
+
+    /** Remove all hyperlinks from the table. */
+    public void clear() {
+        Arrays.fill(links, null);
+        ids.clear();
+        count = 1;
+        last = Lookup.NONE;
+    }
+
+    private static final class Lookup {
+        final Hyperlink link;
+        final int id;
+
+        static final Lookup NONE = new Lookup(null, LinkTable.NONE);
+
+        Lookup(Hyperlink link, int id) {
+            this.link = link;
+            this.id = id;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.codejive.twinkle.screen.util;
 
+import java.util.Objects;
 import org.codejive.twinkle.text.Position;
 import org.codejive.twinkle.text.Size;
 import org.jspecify.annotations.NonNull;
@@ -112,6 +113,18 @@ public class Rect implements Sized {
         return of(rect.left() + left(), rect.top() + top(), size);
     }
 
+    @Override
+    public boolean equals(Object o) {
+        if (o == null || getClass() != o.getClass()) return false;
+        Rect rect = (Rect) o;
+        return pos.equals(rect.pos) && size.equals(rect.size);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(pos, size);
+    }
+
     @Override
     public String toString() {
         return "Rect{"
@@ -0,0 +1,120 @@
+package org.codejive.twinkle.screen.util;
+
+import org.jspecify.annotations.NonNull;
+
+/**
+ * A bitset that marks which cells of a buffer are transparent for a given set of transparent
+ * characters. Cells are identified by their index in the buffer's row-major storage. The mask is
+ * meant to be kept up-to-date while the buffer is being written so it can be reused every time the
+ * buffer gets overlaid onto another one.
+ */
+public class TransparencyMask {
+    private final String chars;
+    private final long[] bits;
+
+    /**
+     * Create a mask for the given codepoints using the given transparent characters.
+     *
+     * @param chars the characters that are considered transparent
+     * @param cells the cells of the buffer
+     */
+    public TransparencyMask(@NonNull String chars, @NonNull CellStorage cells) {
+        this.chars = chars;
+        this.bits = new long[(cells.size() + 63) >>> 6];
+        update(cells, 0, cells.size());
+    }
+
+    /**
+     * Determine if this mask was created for the given transparent characters.
+     *
+     * @param transparantCharacters the transparent characters
+     * @return true if this mask can be used for the given characters, false otherwise
+     */
+    public boolean isFor(@NonNull String transparantCharacters) {
+        return chars.equals(transparantCharacters);
+    }
+
+    /**
+     * Update the mask for the cell with the given index.
+     *
+     * @param idx the index of the cell
+     * @param cp the new codepoint of the cell
+     */
+    public void set(int idx, int cp) {
+        if (chars.indexOf(cp) >= 0) {
+            bits[idx >>> 6] |= 1L << idx;
+        } else {
+            bits[idx >>> 6] &= ~(1L << idx);
+        }
+    }
+
+    /**
+     * Update the mask for the cells <code>from</code> (inclusive) up to <code>to</code> (exclusive)
+     * that all have the same codepoint.
+     *
+     * @param from the index of the first cell
+     * @param to the index after the last cell
+     * @param cp the new codepoint of the cells
+     */
+    public void fill(int from, int to, int cp) {
+        boolean transparent = chars.indexOf(cp) >= 0;
+        for (int idx = from; idx < to; idx++) {
+            if (transparent) {
+                bits[idx >>> 6] |= 1L << idx;
+            } else {
+                bits[idx >>> 6] &= ~(1L << idx);
+            }
+        }
+    }
+
+    /**
+     * Update the mask for the cells <code>from</code> (inclusive) up to <code>to</code>
+     * (exclusive).
+     *
+     * @param cells the cells of the buffer
+     * @param from the index of the first cell
+     * @param to the index after the last cell
+     */
+    public void update(@NonNull CellStorage cells, int from, int to) {
+        for (int idx = from; idx < to; idx++) {
+            set(idx, cells.cp(idx));
+        }
+    }
+
+    /**
+     * Find the first opaque cell at or after <code>from</code>.
+     *
+     * @param from the index to start looking from
+     * @param to the index after the last cell to look at
+     * @return the index of the first opaque cell or <code>to</code> if there is none
+     */
+    public int nextOpaque(int from, int to) {
+        return next(from, to, -1L);
+    }
+
+    /**
+     * Find the first transparent cell at or after <code>from</code>.
+     *
+     * @param from the index to start looking from
+     * @param to the index after the last cell to look at
+     * @return the index of the first transparent cell or <code>to</code> if there is none
+     */
+    public int nextTransparent(int from, int to) {
+        return next(from, to, 0L);
+    }
+
+    private int next(int from, int to, long flip) {
+        if (from >= to) {
+            return to;
+        }
+        int word = from >>> 6;
+        long w = (bits[word] ^ flip) & (-1L << from);
+        while (w == 0) {
+            if (++word << 6 >= to) {
+                return to;
+            }
+            w = bits[word] ^ flip;
+        }
+        return Math.min((word << 6) + Long.numberOfTrailingZeros(w), to);
+    }
+}
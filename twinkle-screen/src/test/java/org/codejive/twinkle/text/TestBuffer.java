@@ -2,12 +2,19 @@ package org.codejive.twinkle.text;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.codejive.twinkle.ansi.Ansi;
 import org.codejive.twinkle.ansi.Color;
+import org.codejive.twinkle.ansi.ColorProfile;
 import org.codejive.twinkle.ansi.Style;
 import org.codejive.twinkle.ansi.util.StyleBuilder;
+import org.codejive.twinkle.ansi.util.Utf8Output;
 import org.codejive.twinkle.screen.Buffer;
 import org.codejive.twinkle.screen.io.PrintBufferWriter;
+import org.codejive.twinkle.screen.util.ChangeSet;
+import org.codejive.twinkle.screen.util.Rect;
 import org.junit.jupiter.api.Test;
 
 public class TestBuffer {
@@ -180,6 +187,28 @@ public class TestBuffer {
         assertThat(buffer.toString()).isEqualTo("abcde\nfgehi\njklmn\nopq12\ntuv4x");
     }
 
+    @Test
+    public void testBufferOverlayAfterChanges() {
+        Buffer buffer = Buffer.of(5, 2);
+        Buffer buffer2 = Buffer.of(5, 2);
+        buffer.printAt(0, 0, "abcde\nfghij");
+        buffer2.printAt(0, 0, "1.3.5\n.7.9.");
+
+        buffer2.overlayOn(buffer, 0, 0, ".");
+        assertThat(buffer.toString()).isEqualTo("1b3d5\nf7h9j");
+
+        buffer2.putAt(1, 0, '2');
+        buffer2.putAt(2, 0, '.');
+        buffer2.clear(0, 1, 4, 1);
+        buffer.printAt(0, 0, "abcde\nfghij");
+        buffer2.overlayOn(buffer, 0, 0, ".");
+        assertThat(buffer.toString()).isEqualTo("12cd5\n     ");
+
+        buffer.printAt(0, 0, "abcde\nfghij");
+        buffer2.overlayOn(buffer, 0, 0, "\0");
+        assertThat(buffer.toString()).isEqualTo("12..5\nfghij");
+    }
+
     @Test
     public void testPrintAtBasic() {
         Buffer buffer = Buffer.of(10, 3);
@@ -191,6 +220,26 @@ public class TestBuffer {
         assertThat(buffer.toString()).isEqualTo("          \n  hello   \n          ");
     }
 
+    @Test
+    public void testPutAtComplexGraphemes() {
+        Buffer buffer = Buffer.of(6, 1);
+        String thumbsUp = "👍🏽";
+        String accented = "";
+        for (int i = 0; i < 5000; i++) {
+            accented = "x" + "\u0301".repeat(1 + i % 500);
+            buffer.putAt(0, 0, "é");
+            buffer.putAt(1, 0, accented);
+            buffer.putAt(2, 0, thumbsUp);
+        }
+        buffer.resize(Size.of(5, 1));
+
+        assertThat(buffer.graphemeAt(0, 0)).isEqualTo("é");
+        assertThat(buffer.graphemeAt(1, 0)).isEqualTo(accented);
+        assertThat(buffer.graphemeAt(2, 0)).isEqualTo(thumbsUp);
+        assertThat(buffer.isWideAt(2, 0)).isTrue();
+        assertThat(buffer.toString()).isEqualTo("é" + accented + thumbsUp + " ");
+    }
+
     @Test
     public void testPrintAtWithStyle() {
         Buffer buffer = Buffer.of(10, 3);
@@ -329,6 +378,23 @@ public class TestBuffer {
                                 + "  ");
     }
 
+    @Test
+    public void testManyOverwrittenHyperlinks() {
+        Buffer buffer = Buffer.of(2, 1);
+        buffer.putAt(0, 0, 'a', Buffer.linkOpt("https://first.com"));
+        for (int i = 0; i < 1000; i++) {
+            buffer.putAt(1, 0, 'b', Buffer.linkOpt("https://example.com/" + i));
+        }
+
+        assertThat(buffer.toAnsi(Style.DEFAULT))
+                .isEqualTo(
+                        Ansi.link("https://first.com")
+                                + "a"
+                                + Ansi.linkEnd()
+                                + Ansi.link("https://example.com/999")
+                                + "b");
+    }
+
     @Test
     public void testHyperlinkWithStyle() {
         Buffer buffer = Buffer.of(8, 1);
@@ -459,6 +525,105 @@ public class TestBuffer {
         assertThat(buffer.charAt(1, 0)).isEqualTo('Q');
     }
 
+    @Test
+    public void testCachedRowsToAnsi() {
+        Buffer buffer = Buffer.of(6, 3).cacheRows(true);
+        buffer.printAt(0, 0, "abc", Buffer.styleOpt(Style.BOLD));
+        buffer.putAt(0, 1, 'd', Buffer.linkOpt("https://example.com"));
+        buffer.putAt(1, 1, 'e', Buffer.linkOpt("https://example.com"));
+        buffer.printAt(0, 2, "ghi", Buffer.styleOpt(Style.ITALIC));
+        Buffer uncached = Buffer.of(6, 3);
+        buffer.overlayOn(uncached, 0, 0, null);
+
+        String first = buffer.toAnsi();
+        assertThat(first).isEqualTo(uncached.toAnsi());
+        assertThat(buffer.toAnsi()).isEqualTo(first);
+        assertThat(buffer.toAnsi(Style.BOLD)).isEqualTo(uncached.toAnsi(Style.BOLD));
+
+        buffer.putAt(1, 1, 'x');
+        uncached.putAt(1, 1, 'x');
+        assertThat(buffer.toAnsi()).isEqualTo(uncached.toAnsi());
+
+        buffer.resize(Size.of(4, 2));
+        uncached.resize(Size.of(4, 2));
+        assertThat(buffer.toAnsi()).isEqualTo(uncached.toAnsi());
+    }
+
+    @Test
+    public void testToUtf8LoneSurrogate() {
+        Buffer buffer = Buffer.of(3, 1);
+        buffer.putAt(0, 0, 0xD800);
+        buffer.putAt(1, 0, 'a');
+        buffer.putAt(2, 0, 'b', Buffer.styleOpt(Style.BOLD));
+
+        // The surrogate can't be encoded, but it must still take up its column
+        String ansi = buffer.toAnsi(Style.UNKNOWN);
+        assertThat(ansi).contains("\uD800a");
+        assertThat(buffer.toUtf8(new Utf8Output(), Style.UNKNOWN).toString())
+                .isEqualTo(ansi.replace('\uD800', Buffer.REPLACEMENT_CHAR));
+    }
+
+    @Test
+    public void testToUtf8() {
+        Buffer buffer = Buffer.of(6, 2);
+        buffer.printAt(0, 0, "ab世界", Buffer.styleOpt(Style.BOLD));
+        buffer.putAt(0, 1, "😀", Buffer.linkOpt("https://example.com"));
+        buffer.printAt(2, 1, "é", Buffer.styleOpt(Style.ITALIC));
+
+        Utf8Output out = buffer.toUtf8(new Utf8Output(), Style.UNKNOWN);
+        assertThat(out.toByteArray())
+                .isEqualTo(buffer.toAnsi(Style.UNKNOWN).getBytes(StandardCharsets.UTF_8));
+
+        buffer.cacheRows(true);
+        buffer.toAnsi();
+        out.reset();
+        buffer.toUtf8(out, Style.UNKNOWN);
+        buffer.cacheRows(false);
+        assertThat(out.toByteArray())
+                .isEqualTo(buffer.toAnsi(Style.UNKNOWN).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testChangesTrackWrittenCells() {
+        Buffer buffer = Buffer.of(10, 5);
+        assertThat(buffer.changes().dirtyRowCount()).isEqualTo(5);
+
+        buffer.resetChanges();
+        assertThat(buffer.changes().isDirty()).isFalse();
+
+        buffer.printAt(2, 1, "abc");
+        buffer.putAt(7, 3, 'x');
+        buffer.putAt(5, 1, 'y');
+
+        ChangeSet changes = buffer.changes();
+        assertThat(changes.dirtyRowCount()).isEqualTo(2);
+        assertThat(changes.isDirty(0)).isFalse();
+        assertThat(changes.nextDirtyRow(0)).isEqualTo(1);
+        assertThat(changes.dirtyFrom(1)).isEqualTo(2);
+        assertThat(changes.dirtyTo(1)).isEqualTo(5);
+        assertThat(changes.nextDirtyRow(2)).isEqualTo(3);
+        assertThat(changes.nextDirtyRow(4)).isEqualTo(-1);
+        assertThat(changes.bounds()).isEqualTo(Rect.of(2, 1, 6, 3));
+    }
+
+    @Test
+    public void testChangesTrackOverlayClearAndResize() {
+        Buffer buffer = Buffer.of(10, 5).resetChanges();
+        Buffer overlay = Buffer.of(3, 2);
+        overlay.printAt(0, 0, "abc");
+
+        overlay.overlayOn(buffer, 4, 2, "");
+        assertThat(buffer.changes().bounds()).isEqualTo(Rect.of(4, 2, 3, 2));
+
+        buffer.resetChanges();
+        buffer.clear(0, 1, 2, 3);
+        assertThat(buffer.changes().bounds()).isEqualTo(Rect.of(0, 1, 10, 3));
+
+        buffer.resetChanges();
+        buffer.resize(Size.of(12, 6));
+        assertThat(buffer.changes().dirtyRowCount()).isEqualTo(6);
+    }
+
     private Buffer createBuffer() {
         Buffer buffer = Buffer.of(5, 5);
         Size size = buffer.size();
@@ -473,4 +638,211 @@ public class TestBuffer {
         }
         return buffer;
     }
+
+    @Test
+    public void testScrollRotatesRows() {
+        Buffer buffer = Buffer.of(4, 4);
+        buffer.printAt(0, 0, "aaaa\nbbbb\ncccc\ndddd");
+        buffer.putAt(0, 1, "e\u0301");
+        buffer.putAt(1, 2, 'X', Buffer.linkOpt("https://example.com"));
+        buffer.resetChanges();
+
+        buffer.scroll(0, 2, 1);
+        assertThat(buffer.toString()).isEqualTo("e\u0301bbb\ncXcc\n    \ndddd");
+        assertThat(buffer.graphemeAt(0, 0)).isEqualTo("e\u0301");
+        assertThat(buffer.changes().bounds()).isEqualTo(Rect.of(0, 0, 4, 3));
+
+        buffer.scroll(0, 3, -2);
+        assertThat(buffer.toString()).isEqualTo("    \n    \ne\u0301bbb\ncXcc");
+        assertThat(buffer.graphemeAt(0, 2)).isEqualTo("e\u0301");
+
+        // Writing after scrolling ends up in the right rows
+        buffer.printAt(0, 0, "zz");
+        buffer.putAt(3, 3, 'y');
+        assertThat(buffer.toString()).isEqualTo("zz  \n    \ne\u0301bbb\ncXcy");
+
+        // Copying from and to rotated buffers
+        Buffer copy = Buffer.of(4, 4);
+        copy.scroll(0, 3, 1);
+        buffer.overlayOn(copy, 0, 0);
+        assertThat(copy.toString()).isEqualTo(buffer.toString());
+        assertThat(copy.toAnsi(Style.DEFAULT)).isEqualTo(buffer.toAnsi(Style.DEFAULT));
+    }
+
+    @Test
+    public void testInsertAndDeleteCells() {
+        Buffer buffer = Buffer.of(6, 1);
+        buffer.printAt(0, 0, "abcdef");
+
+        buffer.insertCells(1, 0, 2);
+        assertThat(buffer.toString()).isEqualTo("a  bcd");
+
+        buffer.deleteCells(1, 0, 3);
+        assertThat(buffer.toString()).isEqualTo("acd   ");
+
+        buffer.eraseCells(1, 0, 10);
+        assertThat(buffer.toString()).isEqualTo("a     ");
+    }
+
+    @Test
+    public void testInsertAndDeleteCellsClearSplitWideCharacters() {
+        Buffer buffer = Buffer.of(6, 1);
+        buffer.printAt(0, 0, "ab\u4E2Dcd");
+
+        // Inserting in the middle of a wide character clears it
+        buffer.insertCells(3, 0, 1);
+        assertThat(buffer.toString()).isEqualTo("ab   c");
+        assertThat(buffer.shouldSkipAt(4, 0)).isFalse();
+
+        // A wide character pushed to the end of the row loses its right half
+        buffer.printAt(0, 0, "abcd\u4E2D");
+        buffer.insertCells(0, 0, 1);
+        assertThat(buffer.toString()).isEqualTo(" abcd ");
+        assertThat(buffer.isWideAt(5, 0)).isFalse();
+
+        // Deleting the left half of a wide character clears its right half
+        buffer.printAt(0, 0, "a\u4E2Dbcd");
+        buffer.deleteCells(0, 0, 2);
+        assertThat(buffer.toString()).isEqualTo(" bcd  ");
+        assertThat(buffer.shouldSkipAt(0, 0)).isFalse();
+
+        // Erasing the right half of a wide character clears its left half
+        buffer.printAt(0, 0, "a\u4E2Dbcd");
+        buffer.eraseCells(2, 0, 2);
+        assertThat(buffer.toString()).isEqualTo("a   cd");
+    }
+
+    @Test
+    public void testInsertAndDeleteLines() {
+        Buffer buffer = Buffer.of(2, 4);
+        buffer.printAt(0, 0, "aa\nbb\ncc\ndd");
+
+        buffer.insertLines(1, 2);
+        assertThat(buffer.toString()).isEqualTo("aa\n  \n  \nbb");
+
+        buffer.deleteLines(0, 3);
+        assertThat(buffer.toString()).isEqualTo("bb\n  \n  \n  ");
+    }
+
+    @Test
+    public void testSnapshotDoesNotSeeLaterChanges() {
+        Buffer buffer = Buffer.of(6, 3);
+        buffer.printAt(0, 0, "ab\u4E2Dcd\nefghij");
+        buffer.putAt(0, 2, "\u00E9", Buffer.linkOpt("https://example.com"));
+        Buffer snapshot = buffer.snapshot();
+        String ansi = snapshot.toAnsi(Style.DEFAULT);
+        assertThat(snapshot.toAnsi(Style.DEFAULT)).isEqualTo(buffer.toAnsi(Style.DEFAULT));
+
+        buffer.printAt(0, 0, "XY");
+        buffer.putAt(0, 2, "\uD83D\uDC4D");
+        buffer.insertCells(0, 1, 2);
+        buffer.scroll(0, 2, 1);
+        assertThat(buffer.toString()).isEqualTo("  efgh\n\uD83D\uDC4D    \n      ");
+        assertThat(snapshot.toString()).isEqualTo("ab\u4E2Dcd\nefghij\n\u00E9     ");
+        assertThat(snapshot.toAnsi(Style.DEFAULT)).isEqualTo(ansi);
+
+        // Writing to the snapshot doesn't affect the buffer either
+        snapshot.clear();
+        snapshot.printAt(0, 1, "zz");
+        assertThat(buffer.toString()).isEqualTo("  efgh\n\uD83D\uDC4D    \n      ");
+    }
+
+    @Test
+    public void testSnapshotsAreConsistentWhileWriting() throws InterruptedException {
+        Buffer buffer = Buffer.of(80, 24);
+        AtomicReference<Buffer> frame = new AtomicReference<>(buffer.snapshot());
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer =
+                new Thread(
+                        () -> {
+                            for (int i = 0; i < 2000; i++) {
+                                // Every frame fills the entire buffer with a single character
+                                char c = (char) ('a' + i % 26);
+                                for (int y = 0; y < 24; y++) {
+                                    for (int x = 0; x < 80; x++) {
+                                        buffer.putAt(x, y, c);
+                                    }
+                                }
+                                frame.set(buffer.snapshot());
+                            }
+                            done.set(true);
+                        });
+        writer.start();
+        int frames = 0;
+        while (!done.get() || frames == 0) {
+            Buffer snapshot = frame.get();
+            char c = snapshot.charAt(0, 0);
+            for (int y = 0; y < 24; y++) {
+                for (int x = 0; x < 80; x++) {
+                    assertThat(snapshot.charAt(x, y)).isEqualTo(c);
+                }
+            }
+            frames++;
+        }
+        writer.join();
+    }
+
+    @Test
+    public void testParallelEncodingMatchesSequentialEncoding() {
+        // Wide enough to get bands of only a few rows
+        Buffer buffer = Buffer.of(4000, 30);
+        for (int y = 0; y < 30; y++) {
+            Style style = Style.DEFAULT.fgColor(Color.indexed(y % 4 == 0 ? 1 : y));
+            for (int x = 0; x < 4000; x += 50) {
+                buffer.printAt(x, y, "row " + y + " \u4E2D", Buffer.styleOpt(style));
+            }
+            if (y % 3 == 0) {
+                buffer.putAt(3998, y, "\uD83D\uDC4D", Buffer.linkOpt("https://example.com"));
+            }
+            if (y % 5 == 0) {
+                buffer.putAt(3999, y, '\u6587', Buffer.styleOpt(Style.BOLD));
+            }
+        }
+        String sequential = buffer.toAnsi(Style.DEFAULT);
+        Rect area = Rect.of(7, 2, 3000, 27);
+        String sequentialArea = buffer.toAnsi(area, new StringBuilder(), Style.DEFAULT).toString();
+        String sequentialUtf8 = buffer.toUtf8(new Utf8Output(), Style.UNKNOWN).toString();
+
+        buffer.parallelEncoding(1000);
+        assertThat(buffer.toAnsi(Style.DEFAULT)).isEqualTo(sequential);
+        assertThat(buffer.toAnsi(area, new StringBuilder(), Style.DEFAULT).toString())
+                .isEqualTo(sequentialArea);
+        assertThat(buffer.toUtf8(new Utf8Output(), Style.UNKNOWN).toString())
+                .isEqualTo(sequentialUtf8);
+    }
+
+    @Test
+    public void testMinimalStyles() {
+        Style fancy =
+                Style.DEFAULT.bold().italic().underlined().inverse().fgColor(Color.rgb(255, 0, 0));
+        Style plain = Style.DEFAULT.fgColor(Color.indexed(2));
+        Buffer buffer = Buffer.of(4, 1);
+        buffer.printAt(0, 0, "ab", Buffer.styleOpt(fancy));
+        buffer.printAt(2, 0, "cd", Buffer.styleOpt(plain));
+        String regular = buffer.toAnsi(Style.DEFAULT);
+
+        buffer.minimalStyles(true);
+        String minimal = buffer.toAnsi(Style.DEFAULT);
+        assertThat(minimal).isEqualTo("\u001b[1;3;4;7;38;5;196mab\u001b[0;32mcd");
+        assertThat(minimal.length()).isLessThan(regular.length());
+        assertThat(buffer.toUtf8(new Utf8Output(), Style.DEFAULT).toString()).isEqualTo(minimal);
+    }
+
+    @Test
+    public void testColorProfile() {
+        Style orange = Style.DEFAULT.fgColor(Color.rgb(255, 135, 0));
+        Buffer buffer = Buffer.of(4, 1);
+        buffer.printAt(0, 0, "ab", Buffer.styleOpt(orange));
+        buffer.printAt(2, 0, "cd", Buffer.styleOpt(Style.DEFAULT.fgColor(Color.indexed(208))));
+
+        buffer.colorProfile(ColorProfile.ANSI256);
+        // Both cells end up with the same color, so there's no style change in between
+        assertThat(buffer.toAnsi(Style.DEFAULT)).isEqualTo("\u001b[38;5;208mabcd");
+        assertThat(buffer.styleAt(0, 0)).isEqualTo(orange);
+
+        buffer.colorProfile(ColorProfile.MONO);
+        assertThat(buffer.toAnsi(Style.DEFAULT)).isEqualTo("abcd");
+        buffer.parallelEncoding(0);
+        assertThat(buffer.toAnsi(Style.DEFAULT)).isEqualTo("abcd");
+    }
 }
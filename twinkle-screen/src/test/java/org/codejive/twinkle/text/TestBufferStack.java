@@ -0,0 +1,131 @@
+package org.codejive.twinkle.text;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.BufferStack;
+import org.codejive.twinkle.screen.util.Rect;
+import org.junit.jupiter.api.Test;
+
+public class TestBufferStack {
+
+    @Test
+    public void testCombined() {
+        BufferStack stack = BufferStack.of(Size.of(6, 3));
+        stack.primary().printAt(0, 0, "abcdef\nghijkl\nmnopqr");
+        Buffer popup = Buffer.of(2, 2);
+        popup.printAt(0, 0, "12\n3");
+        stack.add(popup, 1, 1, 1);
+
+        assertThat(stack.combined().toString()).isEqualTo("abcdef\ng12jkl\nm3opqr");
+    }
+
+    @Test
+    public void testCombinedOnlyCompositesDamage() {
+        BufferStack stack = BufferStack.of(Size.of(6, 3));
+        stack.primary().printAt(0, 0, "abcdef\nghijkl\nmnopqr");
+        Buffer popup = Buffer.of(2, 2);
+        popup.printAt(0, 0, "12\n34");
+        stack.add(popup, 1, 1, 1);
+        Buffer combined = stack.combined().resetChanges();
+
+        assertThat(stack.combined().changes().isDirty()).isFalse();
+
+        popup.putAt(1, 0, 'x');
+        stack.combined();
+        // Only the changed row of the popup is composited again
+        assertThat(combined.changes().bounds()).isEqualTo(Rect.of(1, 1, 2, 1));
+        assertThat(combined.toString()).isEqualTo("abcdef\ng1xjkl\nm34pqr");
+    }
+
+    @Test
+    public void testOpaqueLayerOccludesLowerLayers() {
+        BufferStack stack = BufferStack.of(Size.of(6, 3));
+        stack.primary().printAt(0, 0, "abcdef\nghijkl\nmnopqr");
+        Buffer popup = Buffer.of(2, 2);
+        popup.printAt(0, 0, "12\n3");
+        Buffer modal = Buffer.of(3, 2);
+        modal.printAt(0, 0, "xyz\nw");
+        stack.add(popup, 1, 0, 1);
+        BufferStack.BufferElement modalElem = stack.add(modal, 2, 1, 2);
+        modalElem.transparancy = "";
+        Buffer combined = stack.combined();
+        assertThat(combined.toString()).isEqualTo("a12def\ng3xyzl\nmnw  r");
+
+        stack.primary().printAt(2, 2, "OPQ");
+        popup.printAt(0, 1, "45");
+        assertThat(stack.combined().toString()).isEqualTo("a12def\ng4xyzl\nmnw  r");
+
+        modalElem.visible = false;
+        assertThat(stack.combined().toString()).isEqualTo("a12def\ng45jkl\nmnOPQr");
+    }
+
+    @Test
+    public void testCombinedFollowsReplacedLayerBuffer() {
+        BufferStack stack = BufferStack.of(Size.of(4, 1));
+        Buffer layer1 = Buffer.of(2, 1);
+        layer1.printAt(0, 0, "ab");
+        BufferStack.BufferElement elem = stack.add(layer1, 0, 0, 1);
+        assertThat(stack.combined().toString()).isEqualTo("ab  ");
+
+        Buffer layer2 = Buffer.of(2, 1);
+        layer2.printAt(0, 0, "xy");
+        layer2.resetChanges();
+        elem.buffer = layer2;
+        assertThat(stack.combined().toString()).isEqualTo("xy  ");
+    }
+
+    @Test
+    public void testCombinedLeavesChangeSetsAlone() {
+        BufferStack stack = BufferStack.of(Size.of(4, 2));
+        Buffer popup = Buffer.of(2, 1);
+        stack.add(popup, 1, 1, 1);
+        stack.combined();
+        stack.primary().resetChanges();
+        popup.resetChanges();
+
+        stack.primary().putAt(0, 0, 'a');
+        popup.putAt(0, 0, 'x');
+        assertThat(stack.combined().toString()).isEqualTo("a   \n x  ");
+        assertThat(stack.primary().changes().bounds()).isEqualTo(Rect.of(0, 0, 1, 1));
+        assertThat(popup.changes().bounds()).isEqualTo(Rect.of(0, 0, 1, 1));
+
+        // Changes are still picked up when another consumer resets the change sets
+        popup.resetChanges();
+        popup.putAt(1, 0, 'y');
+        popup.resetChanges();
+        assertThat(stack.combined().toString()).isEqualTo("a   \n xy ");
+    }
+
+    @Test
+    public void testCombinedFollowsLayerChanges() {
+        BufferStack stack = BufferStack.of(Size.of(6, 3));
+        stack.primary().printAt(0, 0, "abcdef\nghijkl\nmnopqr");
+        Buffer popup1 = Buffer.of(2, 2);
+        popup1.printAt(0, 0, "12\n34");
+        Buffer popup2 = Buffer.of(3, 1);
+        popup2.printAt(0, 0, "xyz");
+        BufferStack.BufferElement elem1 = stack.add(popup1, 0, 0, 1);
+        BufferStack.BufferElement elem2 = stack.add(popup2, 1, 1, 2);
+        assertThat(stack.combined().toString()).isEqualTo("12cdef\n3xyzkl\nmnopqr");
+
+        elem1.zIndex = 3;
+        assertThat(stack.combined().toString()).isEqualTo("12cdef\n34yzkl\nmnopqr");
+
+        elem1.pos = Position.of(4, 1);
+        assertThat(stack.combined().toString()).isEqualTo("abcdef\ngxyz12\nmnop34");
+
+        elem2.visible = false;
+        assertThat(stack.combined().toString()).isEqualTo("abcdef\nghij12\nmnop34");
+
+        stack.primary().printAt(0, 2, "MNOPQR");
+        assertThat(stack.combined().toString()).isEqualTo("abcdef\nghij12\nMNOP34");
+
+        stack.remove(elem1);
+        elem2.visible = true;
+        assertThat(stack.combined().toString()).isEqualTo("abcdef\ngxyzkl\nMNOPQR");
+
+        stack.primary().resize(Size.of(4, 2));
+        assertThat(stack.combined().toString()).isEqualTo("abcd\ngxyz");
+    }
+}
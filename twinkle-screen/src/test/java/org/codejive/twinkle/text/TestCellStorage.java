@@ -0,0 +1,110 @@
+package org.codejive.twinkle.text;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import org.codejive.twinkle.ansi.Color;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.util.CellStorage;
+import org.codejive.twinkle.screen.util.Rect;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TestCellStorage {
+
+    @Test
+    public void testDirectStorageMatchesHeapStorage() {
+        assertSameAsHeap(CellStorage.DIRECT);
+    }
+
+    @Test
+    public void testMappedStorageMatchesHeapStorage(@TempDir Path dir) {
+        assertSameAsHeap(CellStorage.mapped(dir));
+    }
+
+    @Test
+    public void testSparseStorageMatchesHeapStorage() {
+        assertSameAsHeap(CellStorage.SPARSE);
+    }
+
+    @Test
+    public void testSparseStorageOnlyAllocatesWrittenTiles() {
+        CellStorage cells = CellStorage.SPARSE.create(5000, 5000);
+        assertThat(cells.size()).isEqualTo(25_000_000);
+        assertThat(cells.allocatedCells()).isZero();
+
+        cells.fill(0, 5000 * 10, 0, Style.F_UNSTYLED);
+        cells.set(5000 * 4000 + 2500, 'x', Style.F_UNSTYLED);
+        cells.set(5000 * 4000 + 2501, 'y', Style.F_UNSTYLED);
+        assertThat(cells.allocatedCells()).isEqualTo(1024);
+        assertThat(cells.cp(5000 * 4000 + 2501)).isEqualTo('y');
+        assertThat(cells.cp(5000 * 10 + 7)).isZero();
+
+        cells.fill(0, cells.size(), 0, Style.F_UNSTYLED);
+        assertThat(cells.allocatedCells()).isZero();
+    }
+
+    @Test
+    public void testSparseBufferViewport() {
+        Buffer canvas = Buffer.of(Size.of(5000, 5000), CellStorage.SPARSE);
+        canvas.printAt(2000, 3000, "node A");
+        canvas.printAt(2004, 3001, "node B", Buffer.styleOpt(Style.BOLD));
+
+        Buffer viewport = Buffer.of(8, 3);
+        viewport.printAt(0, 0, "........\n........\n........");
+        canvas.overlayOn(viewport, Rect.of(2000, 3000, 8, 3), 0, 0, "\0");
+        assertThat(viewport.toString()).isEqualTo("node A..\n....node\n........");
+
+        canvas.overlayOn(viewport, Rect.of(2000, 3000, 8, 3), 0, 0, "");
+        assertThat(viewport.toString()).isEqualTo("node A  \n    node\n        ");
+        assertThat(
+                        canvas.toAnsi(Rect.of(2004, 3001, 4, 1), new StringBuilder(), Style.DEFAULT)
+                                .toString())
+                .isEqualTo(
+                        viewport.toAnsi(Rect.of(4, 1, 4, 1), new StringBuilder(), Style.DEFAULT)
+                                .toString());
+    }
+
+    @Test
+    public void testOverlayBetweenStorages() {
+        Buffer heap = Buffer.of(Size.of(6, 2));
+        Buffer direct = Buffer.of(Size.of(6, 2), CellStorage.DIRECT);
+        direct.printAt(0, 0, "ab中cd\nefghij", Buffer.styleOpt(Style.BOLD));
+
+        direct.overlayOn(heap, 0, 0);
+        assertThat(heap.toAnsi(Style.DEFAULT)).isEqualTo(direct.toAnsi(Style.DEFAULT));
+
+        heap.printAt(1, 1, "XY");
+        Buffer other = Buffer.of(Size.of(6, 2), CellStorage.DIRECT);
+        heap.overlayOn(other, 0, 0);
+        assertThat(other.toString()).isEqualTo("ab中cd\neXYhij");
+    }
+
+    private static void assertSameAsHeap(CellStorage.Factory storage) {
+        Buffer heap = Buffer.of(Size.of(8, 4));
+        Buffer other = Buffer.of(Size.of(8, 4), storage);
+        Buffer[] snapshots = new Buffer[2];
+        for (int i = 0; i < 2; i++) {
+            Buffer buffer = i == 0 ? heap : other;
+            Style red = Style.DEFAULT.fgColor(Color.BasicColor.RED);
+            buffer.printAt(0, 0, "line 1\nline 2", Buffer.styleOpt(red));
+            buffer.printAt(0, 2, "wide 中");
+            buffer.putAt(7, 3, "é");
+            snapshots[i] = buffer.snapshot();
+            buffer.scroll(0, 3, 1);
+            buffer.insertCells(2, 0, 2);
+            buffer.deleteCells(0, 1, 1);
+            buffer.printAt(0, 3, "after");
+            buffer.resize(Size.of(10, 5));
+        }
+
+        assertThat(other.toString()).isEqualTo(heap.toString());
+        assertThat(other.toAnsi(Style.DEFAULT)).isEqualTo(heap.toAnsi(Style.DEFAULT));
+        assertThat(other.styleAt(0, 0)).isEqualTo(heap.styleAt(0, 0));
+        assertThat(other.isWideAt(4, 1)).isTrue();
+        assertThat(snapshots[1].toAnsi(Style.DEFAULT))
+                .isEqualTo(snapshots[0].toAnsi(Style.DEFAULT));
+        assertThat(snapshots[1].toString()).startsWith("line 1  \nline 2");
+    }
+}
@@ -0,0 +1,107 @@
+package org.codejive.twinkle.text;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.ConcurrentBuffer;
+import org.codejive.twinkle.screen.RenderTarget;
+import org.codejive.twinkle.screen.util.Rect;
+import org.junit.jupiter.api.Test;
+
+public class TestConcurrentBuffer {
+
+    @Test
+    public void testWritesMatchBuffer() {
+        ConcurrentBuffer concurrent = ConcurrentBuffer.of(Size.of(8, 5), 2);
+        Buffer buffer = Buffer.of(8, 5);
+        Style bold = Style.BOLD;
+        for (RenderTarget target : new RenderTarget[] {concurrent, buffer}) {
+            // Crosses the band boundaries, both by newlines and by wrapping
+            target.printAt(2, 0, "line 1\nline 2 wraps中", Buffer.styleOpt(bold));
+            target.putAt(6, 4, '文');
+            target.putAt(0, 4, "👍");
+            target.clearAt(1, 4);
+            target.printAt(3, 3, "xyz", Buffer.SimplePrintOption.NOWRAP);
+        }
+
+        assertThat(concurrent.toString()).isEqualTo(buffer.toString());
+        assertThat(concurrent.toAnsi(Style.DEFAULT)).isEqualTo(buffer.toAnsi(Style.DEFAULT));
+        Buffer target = Buffer.of(8, 5);
+        concurrent.overlayOn(target, 0, 0);
+        assertThat(target.toString()).isEqualTo(buffer.toString());
+
+        concurrent.clear();
+        assertThat(concurrent.snapshot().toString()).isEqualTo(Buffer.of(8, 5).toString());
+    }
+
+    @Test
+    public void testParallelWritersKeepRowsAndWideCharactersIntact() throws Exception {
+        int threads = 4;
+        int rowsPerThread = 6;
+        int width = 24;
+        // Bands of 4 rows don't line up with the panels, so some bands are shared by two threads
+        ConcurrentBuffer buffer = ConcurrentBuffer.of(Size.of(width, threads * rowsPerThread), 4);
+        String[] versions = {"中文 abc 中", "a中文 bc文 d", "plain text"};
+        Set<String> validRows = new HashSet<>();
+        validRows.add(Buffer.of(width, 1).toString());
+        for (String version : versions) {
+            Buffer row = Buffer.of(width, 1);
+            row.printAt(0, 0, version);
+            validRows.add(row.toString());
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int top = t * rowsPerThread;
+            Thread writer =
+                    new Thread(
+                            () -> {
+                                try {
+                                    for (int i = 0; i < 20_000; i++) {
+                                        int y = top + i % rowsPerThread;
+                                        // Wide characters move around between versions
+                                        buffer.printAt(0, y, versions[i % versions.length]);
+                                    }
+                                } catch (Throwable e) {
+                                    failure.set(e);
+                                }
+                            });
+            writers.add(writer);
+            writer.start();
+        }
+
+        int snapshots = 0;
+        while (writers.stream().anyMatch(Thread::isAlive) || snapshots == 0) {
+            Buffer snapshot = buffer.snapshot();
+            assertConsistent(snapshot, validRows);
+            snapshots++;
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertThat(failure.get()).isNull();
+        assertConsistent(buffer.snapshot(), validRows);
+    }
+
+    private static void assertConsistent(Buffer snapshot, Set<String> validRows) {
+        Size size = snapshot.size();
+        for (int y = 0; y < size.height(); y++) {
+            assertThat(validRows).contains(snapshot.toString(Rect.of(0, y, size.width(), 1)));
+            for (int x = 0; x < size.width(); x++) {
+                if (snapshot.shouldSkipAt(x, y)) {
+                    assertThat(snapshot.isWideAt(x - 1, y)).isTrue();
+                } else if (snapshot.isWideAt(x, y) && x + 1 < size.width()) {
+                    assertThat(snapshot.shouldSkipAt(x + 1, y)).isTrue();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package org.codejive.twinkle.text;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.codejive.twinkle.ansi.Ansi;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.ansi.util.Utf8Output;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.ScreenRenderer;
+import org.junit.jupiter.api.Test;
+
+public class TestScreenRenderer {
+
+    @Test
+    public void testFirstFrameIsRenderedInFull() {
+        Buffer buffer = Buffer.of(3, 2);
+        buffer.printAt(0, 0, "abc");
+        buffer.printAt(0, 1, "def");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+
+        assertThat(renderer.render(buffer))
+                .isEqualTo(
+                        Ansi.reset() + Ansi.cursorPos(0, 0) + "abc" + Ansi.cursorPos(0, 1) + "def");
+    }
+
+    @Test
+    public void testUnchangedFrameRendersNothing() {
+        Buffer buffer = Buffer.of(3, 2);
+        buffer.printAt(0, 0, "abc");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        assertThat(renderer.render(buffer)).isEmpty();
+    }
+
+    @Test
+    public void testOnlyChangedCellsAreRendered() {
+        Buffer buffer = Buffer.of(10, 3);
+        buffer.printAt(0, 0, "12:00:00");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.printAt(0, 0, "12:00:01");
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.cursorPos(7, 0) + "1");
+
+        buffer.printAt(0, 0, "12:01:02");
+        buffer.printAt(2, 2, "x");
+        // Moving back is cheaper relatively and the unchanged ":0" is simply printed again
+        assertThat(renderer.render(buffer))
+                .isEqualTo(Ansi.cursorBackward(4) + "1:02" + Ansi.cursorPos(2, 2) + "x");
+    }
+
+    @Test
+    public void testAdjacentChangesDoNotRepositionCursor() {
+        Buffer buffer = Buffer.of(10, 1);
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.printAt(2, 0, "abc");
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.cursorPos(2, 0) + "abc");
+
+        buffer.printAt(5, 0, "d");
+        assertThat(renderer.render(buffer)).isEqualTo("d");
+    }
+
+    @Test
+    public void testStyleTransitionsAreRendered() {
+        Buffer buffer = Buffer.of(5, 1);
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.putAt(1, 0, 'x', Buffer.styleOpt(Style.BOLD));
+        buffer.putAt(3, 0, 'y');
+        assertThat(renderer.render(buffer))
+                .isEqualTo(
+                        Ansi.cursorPos(1, 0)
+                                + Ansi.bold()
+                                + "x"
+                                + Ansi.cursorForward(1)
+                                + Ansi.normal()
+                                + "y");
+    }
+
+    @Test
+    public void testHyperlinkIsClosedAtEndOfFrame() {
+        Buffer buffer = Buffer.of(5, 1);
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.putAt(1, 0, 'a', Buffer.linkOpt("https://example.com"));
+        assertThat(renderer.render(buffer))
+                .isEqualTo(
+                        Ansi.cursorPos(1, 0)
+                                + Ansi.link("https://example.com")
+                                + "a"
+                                + Ansi.linkEnd());
+    }
+
+    @Test
+    public void testChangedWideCharacterIsRenderedWhole() {
+        Buffer buffer = Buffer.of(6, 1);
+        buffer.printAt(0, 0, "ab界cd");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.printAt(2, 0, "世");
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.cursorPos(2, 0) + "世");
+    }
+
+    @Test
+    public void testResizeRendersFullFrame() {
+        Buffer buffer = Buffer.of(2, 1);
+        buffer.printAt(0, 0, "ab");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.resize(Size.of(3, 1));
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.cursorPos(0, 0) + "ab ");
+    }
+
+    @Test
+    public void testInvalidateRendersFullFrame() {
+        Buffer buffer = Buffer.of(2, 1);
+        buffer.printAt(0, 0, "ab");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        renderer.invalidate();
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.reset() + Ansi.cursorPos(0, 0) + "ab");
+    }
+
+    @Test
+    public void testRenderToUtf8Output() {
+        Buffer buffer = Buffer.of(10, 3);
+        buffer.printAt(0, 0, "héllo", Buffer.styleOpt(Style.BOLD));
+        buffer.printAt(3, 2, "世界");
+
+        ScreenRenderer expected = ScreenRenderer.create();
+        ScreenRenderer renderer = ScreenRenderer.create();
+        Utf8Output out = new Utf8Output();
+        renderer.render(buffer, out);
+        assertThat(out.toString()).isEqualTo(expected.render(buffer));
+
+        buffer.printAt(7, 1, "xyz");
+        out.reset();
+        renderer.render(buffer, out);
+        assertThat(out.toString()).isEqualTo(expected.render(buffer));
+    }
+
+    @Test
+    public void testCheapestCursorMotionIsUsed() {
+        Buffer buffer = Buffer.of(200, 5);
+        buffer.printAt(0, 0, "spinner: -");
+        buffer.printAt(150, 1, "a");
+        buffer.printAt(151, 2, "b");
+        buffer.printAt(0, 3, "count: 9");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        // Absolute positioning when nothing else is cheaper, then moving down relatively
+        buffer.printAt(9, 0, "\\");
+        buffer.printAt(150, 1, "A");
+        buffer.printAt(151, 2, "B");
+        assertThat(renderer.render(buffer))
+                .isEqualTo(
+                        Ansi.cursorPos(9, 0)
+                                + "\\"
+                                + Ansi.cursorPos(150, 1)
+                                + "A"
+                                + Ansi.cursorDown(1)
+                                + "B");
+
+        // Moving to a column on the same line, then a line feed followed by re-printing an
+        // unchanged cell
+        buffer.printAt(3, 2, "x");
+        buffer.printAt(1, 3, "O");
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.cursorToColumn(3) + "x\r\ncO");
+
+        // A relative movement, absolute positioning is preferred when equally cheap
+        buffer.printAt(150, 3, "c");
+        buffer.printAt(5, 4, "d");
+        assertThat(renderer.render(buffer))
+                .isEqualTo(Ansi.cursorForward(148) + "c" + Ansi.cursorPos(5, 4) + "d");
+    }
+
+    @Test
+    public void testStyledCellsAreNotReprinted() {
+        Buffer buffer = Buffer.of(10, 1);
+        buffer.printAt(0, 0, "ab");
+        buffer.putAt(2, 0, 'c', Buffer.styleOpt(Style.BOLD));
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.printAt(0, 0, "x");
+        buffer.printAt(3, 0, "y");
+        assertThat(renderer.render(buffer))
+                .isEqualTo(Ansi.cursorPos(0, 0) + "x" + Ansi.cursorForward(2) + "y");
+    }
+
+    @Test
+    public void testScrolledRowsAreNotRepainted() {
+        Buffer buffer = Buffer.of(10, 5);
+        for (int i = 0; i < 5; i++) {
+            buffer.printAt(0, i, "line " + (i + 1));
+        }
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.clear();
+        for (int i = 0; i < 5; i++) {
+            buffer.printAt(0, i, "line " + (i + 2));
+        }
+        assertThat(renderer.render(buffer))
+                .isEqualTo(
+                        Ansi.scrollRegion(0, 4)
+                                + Ansi.scrollUp(1)
+                                + Ansi.scrollRegionReset()
+                                + Ansi.cursorPos(0, 4)
+                                + "line 6");
+
+        buffer.clear();
+        buffer.printAt(0, 0, "header");
+        for (int i = 1; i < 5; i++) {
+            buffer.printAt(0, i, "line " + (i + 1));
+        }
+        assertThat(renderer.render(buffer))
+                .isEqualTo(
+                        Ansi.scrollRegion(0, 4)
+                                + Ansi.scrollDown(1)
+                                + Ansi.scrollRegionReset()
+                                + Ansi.cursorPos(0, 0)
+                                + "header");
+
+        // Repainting only the last character of a few rows is cheaper than scrolling them
+        buffer.clear();
+        buffer.printAt(0, 0, "a");
+        buffer.printAt(0, 1, "b");
+        for (int i = 2; i < 5; i++) {
+            buffer.printAt(0, i, "line " + i);
+        }
+        assertThat(renderer.render(buffer)).doesNotContain(Ansi.scrollRegionReset());
+    }
+
+    @Test
+    public void testInsertedAndDeletedCellsAreNotRepainted() {
+        Buffer buffer = Buffer.of(30, 1);
+        buffer.printAt(0, 0, "hello world, how are you?");
+
+        ScreenRenderer renderer = ScreenRenderer.create();
+        renderer.render(buffer);
+
+        buffer.printAt(0, 0, "hello big world, how are you?");
+        assertThat(renderer.render(buffer))
+                .isEqualTo(Ansi.cursorPos(6, 0) + Ansi.insertChars(4) + "big ");
+
+        buffer.clear();
+        buffer.printAt(0, 0, "hello world, how are you?");
+        assertThat(renderer.render(buffer)).isEqualTo(Ansi.cursorBackward(4) + Ansi.deleteChars(4));
+    }
+}
@@ -0,0 +1,112 @@
+package org.codejive.twinkle.text;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.codejive.twinkle.ansi.Color;
+import org.codejive.twinkle.ansi.Style;
+import org.codejive.twinkle.screen.Buffer;
+import org.codejive.twinkle.screen.Scrollback;
+import org.codejive.twinkle.screen.SwappableBuffer;
+import org.codejive.twinkle.screen.io.PrintBufferWriter;
+import org.junit.jupiter.api.Test;
+
+public class TestScrollback {
+
+    @Test
+    public void testScrolledRowsAreKept() {
+        Scrollback scrollback = new Scrollback(10);
+        Buffer buffer = Buffer.of(5, 2).scrollback(scrollback);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.write("one\ntwo\nthree\nfour");
+        }
+
+        assertThat(buffer.toString()).isEqualTo("three\nfour ");
+        assertThat(scrollback.size()).isEqualTo(2);
+        assertThat(line(scrollback, 0, 5)).isEqualTo("one  ");
+        assertThat(line(scrollback, 1, 5)).isEqualTo("two  ");
+    }
+
+    @Test
+    public void testOldestLinesAreDropped() {
+        Scrollback scrollback = new Scrollback(3);
+        Buffer buffer = Buffer.of(3, 1).scrollback(scrollback);
+
+        for (int i = 0; i < 5; i++) {
+            buffer.printAt(0, 0, "#" + i);
+            buffer.scroll(0, 0, 1);
+        }
+
+        assertThat(scrollback.size()).isEqualTo(3);
+        assertThat(line(scrollback, 0, 3)).isEqualTo("#2 ");
+        assertThat(line(scrollback, 2, 3)).isEqualTo("#4 ");
+    }
+
+    @Test
+    public void testLinesKeepStylesGraphemesAndLinks() {
+        Scrollback scrollback = new Scrollback(10);
+        Buffer buffer = Buffer.of(8, 2).scrollback(scrollback);
+        Style red = Style.DEFAULT.fgColor(Color.BasicColor.RED);
+        buffer.printAt(0, 0, "ab", Buffer.styleOpt(red));
+        buffer.putAt(2, 0, "é");
+        buffer.putAt(3, 0, "👍");
+        buffer.putAt(5, 0, "é", Buffer.linkOpt("https://example.com"));
+        buffer.putAt(6, 0, 'x', Buffer.styleOpt(Style.BOLD));
+        Buffer expected = Buffer.of(8, 1);
+        buffer.overlayOn(expected, 0, 0);
+
+        buffer.scroll(0, 1, 1);
+        Buffer view = Buffer.of(8, 1);
+        scrollback.copyTo(0, view, 0);
+
+        assertThat(view.toString()).isEqualTo(expected.toString());
+        assertThat(view.toAnsi(Style.DEFAULT)).isEqualTo(expected.toAnsi(Style.DEFAULT));
+        assertThat(view.isWideAt(3, 0)).isTrue();
+        assertThat(view.shouldSkipAt(4, 0)).isTrue();
+    }
+
+    @Test
+    public void testOnlyRowsLeavingTheTopAreKept() {
+        Scrollback scrollback = new Scrollback(10);
+        Buffer buffer = Buffer.of(2, 3).scrollback(scrollback);
+        buffer.printAt(0, 0, "aa\nbb\ncc");
+
+        buffer.scroll(1, 2, 1);
+        buffer.deleteLines(0, 1);
+        buffer.scroll(0, 2, -1);
+        assertThat(scrollback.size()).isZero();
+
+        SwappableBuffer swappable = SwappableBuffer.of(2, 2);
+        swappable.scrollback(scrollback);
+        swappable.save();
+        swappable.scroll(0, 1, 1);
+        assertThat(scrollback.size()).isZero();
+        swappable.restore();
+        swappable.scroll(0, 1, 1);
+        assertThat(scrollback.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEncodedLinesAreCompact() {
+        Scrollback scrollback = new Scrollback(100_000);
+        Buffer buffer = Buffer.of(80, 1).scrollback(scrollback);
+        Style style = Style.DEFAULT.fgColor(Color.BasicColor.GREEN);
+        for (int i = 0; i < 100_000; i++) {
+            buffer.printAt(
+                    0, 0, "line " + i + ": some colored command output", Buffer.styleOpt(style));
+            buffer.scroll(0, 0, 1);
+        }
+
+        assertThat(scrollback.size()).isEqualTo(100_000);
+        // A fraction of the 12 bytes per cell that the same rows take up in a Buffer
+        assertThat(scrollback.encodedSize() / scrollback.size()).isLessThan(80);
+        assertThat(line(scrollback, 99_999, 80).trim())
+                .isEqualTo("line 99999: some colored command output");
+    }
+
+    private static String line(Scrollback scrollback, int line, int width) {
+        Buffer view = Buffer.of(width, 1);
+        scrollback.copyTo(line, view, 0);
+        return view.toString();
+    }
+}
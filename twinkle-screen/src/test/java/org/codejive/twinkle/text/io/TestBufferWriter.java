@@ -304,4 +304,118 @@ public class TestBufferWriter {
         assertThat(buffer.toAnsi(Style.DEFAULT))
                 .isEqualTo(linkStart + "click here" + linkEnd + "  ");
     }
+
+    @Test
+    public void testWriterScrollsPastLastRow() {
+        Buffer buffer = Buffer.of(3, 2);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.write("abc\ndef\nghi");
+
+            writer.flush(); // Necessary to get up-to-date cursor position
+            assertThat(writer.cursorY()).isEqualTo(1);
+        }
+
+        assertThat(buffer.toString()).isEqualTo("def\nghi");
+    }
+
+    @Test
+    public void testWriterDropsPastLastRowWhenScrollDisabled() {
+        Buffer buffer = Buffer.of(3, 2);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.scroll(false);
+            writer.write("abc\ndef\nghi");
+        }
+
+        assertThat(buffer.toString()).isEqualTo("abc\ndef");
+    }
+
+    @Test
+    public void testWriterScrollRegion() {
+        Buffer buffer = Buffer.of(3, 4);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.write("hdr\n111\n222\nftr");
+            writer.write(Ansi.scrollRegion(1, 2));
+            writer.write(Ansi.cursorPos(0, 2) + "\n333");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("hdr\n222\n333\nftr");
+
+            writer.write(Ansi.scrollUp(1));
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("hdr\n333\n   \nftr");
+
+            writer.write(Ansi.scrollDown(1));
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("hdr\n   \n333\nftr");
+
+            writer.write(Ansi.cursorPos(0, 1) + Ansi.cursorUpWithScroll() + "000");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("hdr\n000\n   \nftr");
+
+            writer.write(Ansi.scrollRegionReset());
+            writer.write(Ansi.cursorPos(0, 3) + "\nend");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("000\n   \nftr\nend");
+        }
+    }
+
+    @Test
+    public void testWriterScrollRegionWithEmptyParameters() {
+        Buffer buffer = Buffer.of(3, 4);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.write("111\n222\n333\nftr");
+            // An empty top means the first row
+            writer.write("\u001b[;3r");
+            writer.write(Ansi.cursorPos(0, 2) + "\n444");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("222\n333\n444\nftr");
+
+            // An empty bottom means the last row
+            writer.write("\u001b[2;r");
+            writer.write(Ansi.cursorPos(0, 3) + "\n555");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("222\n444\nftr\n555");
+        }
+    }
+
+    @Test
+    public void testWriterInsertsAndDeletesCharsAndLines() {
+        Buffer buffer = Buffer.of(4, 3);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.write("abcd\nefgh\nijkl");
+            writer.write(Ansi.cursorPos(1, 0) + Ansi.insertChars(2) + "XY");
+            writer.write(Ansi.cursorPos(1, 1) + Ansi.deleteChars(2));
+            writer.write(Ansi.cursorPos(2, 2) + Ansi.eraseChars(1));
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("aXYb\neh  \nij l");
+
+            writer.write(Ansi.cursorPos(3, 1) + Ansi.insertLines(1) + "new");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("aXYb\nnew \neh  ");
+
+            writer.write(Ansi.cursorPos(2, 0) + Ansi.deleteLines(2) + "top");
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("top \n    \n    ");
+        }
+    }
+
+    @Test
+    public void testWriterTreatsZeroCountAsOne() {
+        Buffer buffer = Buffer.of(4, 3);
+
+        try (PrintBufferWriter writer = buffer.writer()) {
+            writer.write("abcd\nefgh\nijkl");
+            writer.write(Ansi.cursorPos(1, 0) + Ansi.deleteChars(0));
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("acd \nefgh\nijkl");
+
+            writer.write(Ansi.cursorPos(0, 1) + Ansi.insertLines(0));
+            writer.flush();
+            assertThat(buffer.toString()).isEqualTo("acd \n    \nefgh");
+        }
+    }
 }
@@ -299,6 +299,17 @@ public class Ansi {
         return "" + ESC + CURSOR_RESTORE_CMD;
     }
 
+    /**
+     * Returns the ANSI escape sequence to move the cursor up one line (RI). When the cursor is
+     * already at the top of the scrolling region the contents of the region are scrolled down
+     * instead.
+     *
+     * @return the ANSI escape sequence to move the cursor up, scrolling if necessary
+     */
+    public static String cursorUpWithScroll() {
+        return "" + ESC + CURSOR_UP_WITH_SCROLL_CMD;
+    }
+
     /**
      * Returns the ANSI escape sequence to clear the entire screen.
      *
@@ -308,6 +319,106 @@ public class Ansi {
         return CSI + SCREEN_ERASE_FULL;
     }
 
+    /**
+     * Returns the ANSI escape sequence to set the scrolling region (DECSTBM) to the rows from the
+     * <code>top</code> up to and including the <code>bottom</code> one. Rows are 0-based (0 is
+     * topmost). Setting the scrolling region also moves the cursor to the home position.
+     *
+     * @param top the first row of the scrolling region (0-based)
+     * @param bottom the last row of the scrolling region (0-based)
+     * @return the ANSI escape sequence to set the scrolling region
+     */
+    public static String scrollRegion(int top, int bottom) {
+        return CSI + (top + 1) + ";" + (bottom + 1) + SCROLL_REGION_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to reset the scrolling region to the entire screen. This
+     * also moves the cursor to the home position.
+     *
+     * @return the ANSI escape sequence to reset the scrolling region
+     */
+    public static String scrollRegionReset() {
+        return CSI + SCROLL_REGION_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to scroll the contents of the scrolling region up by the
+     * specified number of lines (SU). New blank lines appear at the bottom.
+     *
+     * @param amount the number of lines to scroll
+     * @return the ANSI escape sequence to scroll up
+     */
+    public static String scrollUp(int amount) {
+        return CSI + amount + SCROLL_UP_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to scroll the contents of the scrolling region down by the
+     * specified number of lines (SD). New blank lines appear at the top.
+     *
+     * @param amount the number of lines to scroll
+     * @return the ANSI escape sequence to scroll down
+     */
+    public static String scrollDown(int amount) {
+        return CSI + amount + SCROLL_DOWN_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to insert the specified number of blank lines at the
+     * cursor's row (IL). The lines below it are pushed down within the scrolling region.
+     *
+     * @param amount the number of lines to insert
+     * @return the ANSI escape sequence to insert lines
+     */
+    public static String insertLines(int amount) {
+        return CSI + amount + INSERT_LINES_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to delete the specified number of lines starting at the
+     * cursor's row (DL). The lines below it are pulled up within the scrolling region.
+     *
+     * @param amount the number of lines to delete
+     * @return the ANSI escape sequence to delete lines
+     */
+    public static String deleteLines(int amount) {
+        return CSI + amount + DELETE_LINES_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to insert the specified number of blank characters at the
+     * cursor position (ICH). The characters to the right of the cursor are pushed to the right.
+     *
+     * @param amount the number of characters to insert
+     * @return the ANSI escape sequence to insert characters
+     */
+    public static String insertChars(int amount) {
+        return CSI + amount + INSERT_CHARS_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to delete the specified number of characters at the cursor
+     * position (DCH). The characters to the right of the cursor are pulled to the left.
+     *
+     * @param amount the number of characters to delete
+     * @return the ANSI escape sequence to delete characters
+     */
+    public static String deleteChars(int amount) {
+        return CSI + amount + DELETE_CHARS_CMD;
+    }
+
+    /**
+     * Returns the ANSI escape sequence to erase the specified number of characters at the cursor
+     * position (ECH), without moving the characters to the right of them.
+     *
+     * @param amount the number of characters to erase
+     * @return the ANSI escape sequence to erase characters
+     */
+    public static String eraseChars(int amount) {
+        return CSI + amount + ERASE_CHARS_CMD;
+    }
+
     /**
      * Returns the ANSI escape sequence to switch to the alternate screen buffer.
      *
@@ -323,8 +323,20 @@ public interface Color {
         private final String fgAnsi;
         private final String bgAnsi;
 
+        // Instances are created on first use and then shared, which is safe without locking
+        // because they are immutable
+        private static final IndexedColor[] instances = new IndexedColor[256];
+
         public static IndexedColor of(int index) {
-            return new IndexedColor(index);
+            if (index < 0 || index > 255) {
+                return new IndexedColor(index); // Will throw
+            }
+            IndexedColor color = instances[index];
+            if (color == null) {
+                color = new IndexedColor(index);
+                instances[index] = color;
+            }
+            return color;
         }
 
         private IndexedColor(int index) {
@@ -390,8 +402,20 @@ public interface Color {
         private final String fgAnsi;
         private final String bgAnsi;
 
+        // A small direct-mapped cache of recently used colors, entries are immutable so the
+        // cache can be shared between threads without locking
+        private static final int CACHE_SIZE = 1024;
+        private static final RgbColor[] cache = new RgbColor[CACHE_SIZE];
+
         public static RgbColor of(int r, int g, int b) {
-            return new RgbColor(r, g, b);
+            int h = ((r << 16) | (g << 8) | b) * 0x9E3779B1;
+            int idx = (h >>> 22) & (CACHE_SIZE - 1);
+            RgbColor color = cache[idx];
+            if (color == null || color.r != r || color.g != g || color.b != b) {
+                color = new RgbColor(r, g, b);
+                cache[idx] = color;
+            }
+            return color;
         }
 
         private RgbColor(int r, int g, int b) {
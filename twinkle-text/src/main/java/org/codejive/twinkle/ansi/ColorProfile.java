@@ -0,0 +1,145 @@
+package org.codejive.twinkle.ansi;
+
+/**
+ * The colors a terminal is able to display. Styles can be downsampled to a profile (see {@link
+ * Style#downsample(ColorProfile)}) when they are written to a terminal that doesn't support all of
+ * their colors. RGB colors are mapped to the nearest color of the 256 or 16 color palette using
+ * lookup tables with 5 bits per channel, so converting a color never requires searching the
+ * palette.
+ */
+public enum ColorProfile {
+    /** All colors are supported, including 24-bit RGB colors. */
+    TRUECOLOR,
+    /** Only the colors of the 256 color palette are supported. */
+    ANSI256,
+    /** Only the 8 basic colors and their bright variants are supported. */
+    ANSI16,
+    /** No colors are supported, only attributes like bold or underlined. */
+    MONO;
+
+    // The default RGB values of the first 16 palette entries as used by xterm
+    private static final int[][] BASIC_RGB = {
+        {0, 0, 0}, {205, 0, 0}, {0, 205, 0}, {205, 205, 0},
+        {0, 0, 238}, {205, 0, 205}, {0, 205, 205}, {229, 229, 229},
+        {127, 127, 127}, {255, 0, 0}, {0, 255, 0}, {255, 255, 0},
+        {92, 92, 255}, {255, 0, 255}, {0, 255, 255}, {255, 255, 255}
+    };
+
+    // The levels of the 6x6x6 color cube of the 256 color palette
+    private static final int[] CUBE_LEVELS = {0, 95, 135, 175, 215, 255};
+
+    /**
+     * Returns the index of the color of the 256 color palette that is closest to the given RGB
+     * value, not counting the first 16 entries because their values differ between terminals.
+     */
+    static int toIndexed(int r, int g, int b) {
+        return Lut256.TABLE[lutIndex(r, g, b)] & 0xff;
+    }
+
+    /** Returns the index (0-15) of the basic color that is closest to the given RGB value. */
+    static int toBasic(int r, int g, int b) {
+        return Lut16.TABLE[lutIndex(r, g, b)];
+    }
+
+    /** Returns the index (0-15) of the basic color that is closest to the given palette entry. */
+    static int toBasic(int index) {
+        return Lut16.INDEXED[index];
+    }
+
+    private static int lutIndex(int r, int g, int b) {
+        return ((r >> 3) << 10) | ((g >> 3) << 5) | (b >> 3);
+    }
+
+    private static int nearestIndexed(int r, int g, int b) {
+        int ri = nearestLevel(r);
+        int gi = nearestLevel(g);
+        int bi = nearestLevel(b);
+        int cube = 16 + 36 * ri + 6 * gi + bi;
+        int cubeDist = distance(r, g, b, CUBE_LEVELS[ri], CUBE_LEVELS[gi], CUBE_LEVELS[bi]);
+        // The grayscale ramp runs from 8 to 238 in steps of 10
+        int gray = Math.max(0, Math.min(23, ((r + g + b) / 3 - 3) / 10));
+        int level = 8 + 10 * gray;
+        if (distance(r, g, b, level, level, level) < cubeDist) {
+            return 232 + gray;
+        }
+        return cube;
+    }
+
+    private static int nearestLevel(int value) {
+        int best = 0;
+        for (int i = 1; i < CUBE_LEVELS.length; i++) {
+            if (Math.abs(CUBE_LEVELS[i] - value) < Math.abs(CUBE_LEVELS[best] - value)) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static int nearestBasic(int r, int g, int b) {
+        int best = 0;
+        int bestDist = Integer.MAX_VALUE;
+        for (int i = 0; i < BASIC_RGB.length; i++) {
+            int[] c = BASIC_RGB[i];
+            int dist = distance(r, g, b, c[0], c[1], c[2]);
+            if (dist < bestDist) {
+                best = i;
+                bestDist = dist;
+            }
+        }
+        return best;
+    }
+
+    private static int[] indexedToRgb(int index) {
+        if (index < 16) {
+            return BASIC_RGB[index];
+        } else if (index < 232) {
+            int i = index - 16;
+            return new int[] {CUBE_LEVELS[i / 36], CUBE_LEVELS[(i / 6) % 6], CUBE_LEVELS[i % 6]};
+        } else {
+            int level = 8 + 10 * (index - 232);
+            return new int[] {level, level, level};
+        }
+    }
+
+    // A weighted distance that roughly follows how sensitive the eye is to each channel
+    private static int distance(int r1, int g1, int b1, int r2, int g2, int b2) {
+        int dr = r1 - r2;
+        int dg = g1 - g2;
+        int db = b1 - b2;
+        return 2 * dr * dr + 4 * dg * dg + 3 * db * db;
+    }
+
+    // The tables are only built when a profile that needs them is first used
+
+    private static final class Lut256 {
+        static final byte[] TABLE = new byte[32 * 32 * 32];
+
+        static {
+            for (int i = 0; i < TABLE.length; i++) {
+                // Use the center of each cell of the table
+                int r = ((i >> 10) << 3) + 4;
+                int g = (((i >> 5) & 31) << 3) + 4;
+                int b = ((i & 31) << 3) + 4;
+                TABLE[i] = (byte) nearestIndexed(r, g, b);
+            }
+        }
+    }
+
+    private static final class Lut16 {
+        static final byte[] TABLE = new byte[32 * 32 * 32];
+        static final byte[] INDEXED = new byte[256];
+
+        static {
+            for (int i = 0; i < TABLE.length; i++) {
+                int r = ((i >> 10) << 3) + 4;
+                int g = (((i >> 5) & 31) << 3) + 4;
+                int b = ((i & 31) << 3) + 4;
+                TABLE[i] = (byte) nearestBasic(r, g, b);
+            }
+            for (int i = 0; i < INDEXED.length; i++) {
+                int[] rgb = indexedToRgb(i);
+                INDEXED[i] = (byte) (i < 16 ? i : nearestBasic(rgb[0], rgb[1], rgb[2]));
+            }
+        }
+    }
+}
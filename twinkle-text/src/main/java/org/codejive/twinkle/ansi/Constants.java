@@ -65,6 +65,15 @@ public class Constants {
     public static final char CURSOR_RESTORE_CMD = '8'; // Note: ESC+8, not CSI+8 !
     public static final char CURSOR_UP_WITH_SCROLL_CMD = 'M'; // Note: ESC+M, not CSI+M !
 
+    public static final char SCROLL_REGION_CMD = 'r';
+    public static final char SCROLL_UP_CMD = 'S';
+    public static final char SCROLL_DOWN_CMD = 'T';
+    public static final char INSERT_LINES_CMD = 'L';
+    public static final char DELETE_LINES_CMD = 'M';
+    public static final char INSERT_CHARS_CMD = '@';
+    public static final char DELETE_CHARS_CMD = 'P';
+    public static final char ERASE_CHARS_CMD = 'X';
+
     public static final String SCREEN_ERASE_CMD = "J"; // Same as SCREEN_ERASE_END
     public static final String SCREEN_ERASE_END = "0J";
     public static final String SCREEN_ERASE_START = "1J";
@@ -3,14 +3,32 @@ package org.codejive.twinkle.ansi;
 import static org.codejive.twinkle.ansi.Constants.*;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import org.codejive.twinkle.ansi.util.Utf8Output;
 
 public class Hyperlink {
     public final String url;
     public final String id;
+    private final int hash;
+    // Volatile so the contents of the array are visible when it gets used by another thread
+    private volatile byte[] ansiBytes;
 
     public static final Hyperlink END = new Hyperlink(null, null);
 
+    private static final int PARSE_CACHE_SIZE = 64;
+
+    // Terminal output tends to repeat the same few links over and over, so we keep the most
+    // recently parsed ones around to avoid re-parsing and re-allocating them
+    private static final Map<String, Hyperlink> parseCache =
+            new LinkedHashMap<String, Hyperlink>(PARSE_CACHE_SIZE * 2, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Hyperlink> eldest) {
+                    return size() > PARSE_CACHE_SIZE;
+                }
+            };
+
     public static final Hyperlink of(String url) {
         if (url == null || url.isEmpty()) {
             return null;
@@ -31,6 +49,22 @@ public class Hyperlink {
     }
 
     public static Hyperlink parse(String sequence) {
+        synchronized (parseCache) {
+            Hyperlink link = parseCache.get(sequence);
+            if (link != null) {
+                return link;
+            }
+        }
+        Hyperlink link = parseSequence(sequence);
+        if (link != null) {
+            synchronized (parseCache) {
+                parseCache.put(sequence, link);
+            }
+        }
+        return link;
+    }
+
+    private static Hyperlink parseSequence(String sequence) {
         if (sequence.startsWith(OSC + HYPERLINK) && sequence.endsWith(OSC_END)) {
             // OSC 8 ; params ; URI BEL
             String params = sequence.substring((OSC + HYPERLINK).length(), sequence.length() - 1);
@@ -49,6 +83,7 @@ public class Hyperlink {
     private Hyperlink(String url, String id) {
         this.url = url;
         this.id = id;
+        this.hash = java.util.Objects.hash(url, id);
     }
 
     protected static Hyperlink parseHyperlink(String link) {
@@ -101,7 +136,7 @@ public class Hyperlink {
 
     @Override
     public int hashCode() {
-        return java.util.Objects.hash(url, id);
+        return hash;
     }
 
     public String toAnsi() {
@@ -111,6 +146,10 @@ public class Hyperlink {
     }
 
     public void toAnsi(Appendable appendable) {
+        if (appendable instanceof Utf8Output) {
+            ((Utf8Output) appendable).appendBytes(toAnsiBytes());
+            return;
+        }
         if (this == END) {
             append(appendable, OSC)
                     .append(appendable, HYPERLINK)
@@ -127,6 +166,22 @@ public class Hyperlink {
         append(appendable, OSC_END);
     }
 
+    /**
+     * Returns the ANSI sequence for this hyperlink encoded as UTF-8. The bytes are only calculated
+     * once, the returned array must not be modified.
+     *
+     * @return the UTF-8 encoded ANSI sequence
+     */
+    public byte[] toAnsiBytes() {
+        byte[] b = ansiBytes;
+        if (b == null) {
+            StringBuilder sb = new StringBuilder();
+            toAnsi(sb);
+            b = ansiBytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        return b;
+    }
+
     private Hyperlink append(Appendable appendable, String str) {
         try {
             appendable.append(str);
@@ -1,9 +1,9 @@
 package org.codejive.twinkle.ansi;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import org.codejive.twinkle.ansi.util.Printable;
-import org.codejive.twinkle.ansi.util.StyleBuilder;
+import org.codejive.twinkle.ansi.util.Utf8Output;
 import org.jspecify.annotations.NonNull;
 
 public class Style implements Printable {
@@ -135,7 +135,7 @@ public class Style implements Printable {
         if (state == F_UNSTYLED) {
             return DEFAULT;
         }
-        return new Style(state, MASK_ALL);
+        return Flyweights.get(state, MASK_ALL);
     }
 
     public static @NonNull Style of(long state, long mask) {
@@ -149,7 +149,7 @@ public class Style implements Printable {
                 return DEFAULT;
             }
         }
-        return new Style(state, mask);
+        return Flyweights.get(state, mask);
     }
 
     private Style(long state, long mask) {
@@ -405,41 +405,93 @@ public class Style implements Printable {
         return of(newState, mask | MASK_BG_COLOR);
     }
 
+    /**
+     * Returns this style with its colors replaced by the closest ones that are supported by the
+     * given color profile.
+     *
+     * @param profile the color profile of the terminal
+     * @return the downsampled style, which is this style itself if it didn't need any changes
+     */
+    public @NonNull Style downsample(@NonNull ColorProfile profile) {
+        long newState = downsample(state, profile);
+        return newState == state ? this : of(newState, mask);
+    }
+
+    /**
+     * Replaces the colors of the given packed style state by the closest ones that are supported by
+     * the given color profile. RGB colors that exactly match an entry of the 256 color palette are
+     * mapped to that entry, all other colors are mapped using the lookup tables of {@link
+     * ColorProfile}, so this never has to search a palette.
+     *
+     * @param state the state of the style to downsample
+     * @param profile the color profile of the terminal
+     * @return the downsampled state
+     */
+    public static long downsample(long state, @NonNull ColorProfile profile) {
+        if (state == F_UNKNOWN || profile == ColorProfile.TRUECOLOR) {
+            return state;
+        }
+        long fgc = (state & MASK_FG_COLOR) >> SHIFT_FG_COLOR;
+        long bgc = (state & MASK_BG_COLOR) >>> SHIFT_BG_COLOR;
+        state = withColor(state, downsampleColor(fgc, profile), true);
+        return withColor(state, downsampleColor(bgc, profile), false);
+    }
+
+    private static long downsampleColor(long color, ColorProfile profile) {
+        if (profile == ColorProfile.MONO) {
+            return 0;
+        }
+        if ((color & MASK_COLOR_MODE) == CM_RGB) {
+            int r = (int) ((color >> SHIFT_COLOR_R) & MASK_COLOR_PART);
+            int g = (int) ((color >> SHIFT_COLOR_G) & MASK_COLOR_PART);
+            int b = (int) ((color >> SHIFT_COLOR_B) & MASK_COLOR_PART);
+            if (profile == ColorProfile.ANSI256) {
+                int index = paletteIndex(r, g, b);
+                return indexedColor(index >= 0 ? index : ColorProfile.toIndexed(r, g, b));
+            }
+            return paletteColor(ColorProfile.toBasic(r, g, b));
+        }
+        if (profile == ColorProfile.ANSI16
+                && ((color >> SHIFT_PALETTE_TYPE) & MASK_PALETTE_TYPE) == PALETTE_INDEXED) {
+            int index = (int) ((color >> SHIFT_COLOR_INDEXED_INDEX) & MASK_COLOR_PART);
+            return paletteColor(ColorProfile.toBasic(index));
+        }
+        return color;
+    }
+
+    // Returns the basic color for one of the first 16 entries of the palette
+    private static long paletteColor(int index) {
+        return index < 8
+                ? basicColor(index, INTENSITY_NORMAL)
+                : basicColor(index - 8, INTENSITY_BRIGHT);
+    }
+
     private static long encodeColor(@NonNull Color color) {
-        long result = 0;
         if (color instanceof Color.RgbColor) {
             Color.RgbColor rgbColor = (Color.RgbColor) color;
-            result |= CM_RGB;
-            result |= ((long) rgbColor.r() & MASK_COLOR_PART) << SHIFT_COLOR_R;
-            result |= ((long) rgbColor.g() & MASK_COLOR_PART) << SHIFT_COLOR_G;
-            result |= ((long) rgbColor.b() & MASK_COLOR_PART) << SHIFT_COLOR_B;
+            return rgbColor(rgbColor.r(), rgbColor.g(), rgbColor.b());
         } else if (color instanceof Color.IndexedColor) {
-            Color.IndexedColor idxColor = (Color.IndexedColor) color;
-            result |= PALETTE_INDEXED << SHIFT_PALETTE_TYPE;
-            result |= ((long) idxColor.index() & MASK_COLOR_PART) << SHIFT_COLOR_INDEXED_INDEX;
+            return indexedColor(((Color.IndexedColor) color).index());
         } else if (color instanceof Color.BasicColor) {
             Color.BasicColor basicColor = (Color.BasicColor) color;
             int intensity;
             switch (basicColor.intensity()) {
                 case normal:
-                    intensity = 1;
+                    intensity = INTENSITY_NORMAL;
                     break;
                 case dark:
-                    intensity = 2;
+                    intensity = INTENSITY_DARK;
                     break;
                 case bright:
-                    intensity = 3;
+                    intensity = INTENSITY_BRIGHT;
                     break;
                 default:
-                    intensity = 0;
+                    intensity = INTENSITY_DEFAULT;
                     break;
             }
-            result |=
-                    ((long) intensity & MASK_COLOR_BASIC_INTENSITY) << SHIFT_COLOR_BASIC_INTENSITY;
-            result |=
-                    ((long) basicColor.index() & MASK_COLOR_BASIC_INDEX) << SHIFT_COLOR_BASIC_INDEX;
+            return basicColor(basicColor.index(), intensity);
         }
-        return result;
+        return 0;
     }
 
     private static @NonNull Color decodeColor(long color) {
@@ -481,8 +533,22 @@ public class Style implements Printable {
     }
 
     public static boolean isStyleSequence(@NonNull String ansiSequence) {
-        return ansiSequence.startsWith(Constants.CSI)
-                && ansiSequence.endsWith("" + Constants.STYLE_CMD);
+        return isStyleSequence(ansiSequence, 0, ansiSequence.length());
+    }
+
+    /**
+     * Checks if the given range of characters holds an ANSI sequence that changes the style.
+     *
+     * @param seq the characters to check
+     * @param start the index of the first character of the sequence
+     * @param end the index after the last character of the sequence
+     * @return true if the range holds a style sequence
+     */
+    public static boolean isStyleSequence(@NonNull CharSequence seq, int start, int end) {
+        return end - start >= 3
+                && seq.charAt(start) == Constants.ESC
+                && seq.charAt(start + 1) == '['
+                && seq.charAt(end - 1) == Constants.STYLE_CMD;
     }
 
     public static Style parse(@NonNull String ansiSequence) {
@@ -490,123 +556,263 @@ public class Style implements Printable {
     }
 
     public static Style parse(@NonNull Style startingStyle, @NonNull String ansiSequence) {
-        if (!isStyleSequence(ansiSequence)) {
-            return startingStyle;
-        }
+        return parse(startingStyle, ansiSequence, 0, ansiSequence.length());
+    }
 
-        String content = ansiSequence.substring(2, ansiSequence.length() - 1);
-        String[] parts = content.split("[;:]", -1);
-        int[] codes = new int[parts.length];
-        for (int i = 0; i < parts.length; i++) {
-            try {
-                // Empty parameters are assumed to be 0 otherwise parse as integer
-                codes[i] = parts[i].isEmpty() ? 0 : Integer.parseInt(parts[i]);
-            } catch (NumberFormatException e) {
-                codes[i] = -1; // Invalid code, will be ignored
-            }
+    /**
+     * Applies the style sequence found in the given range of characters to the starting style. The
+     * parameters are read directly from the characters and all changes are collected in the packed
+     * state before the resulting style is created, so no intermediate objects are created. Both
+     * <code>;</code> and <code>:</code> are accepted as separators, for 24-bit colors the <code>
+     * 38:2:&lt;colorspace&gt;:r:g:b</code> form is supported as well. Invalid parameters and out of
+     * range colors are ignored.
+     *
+     * @param startingStyle the style to apply the sequence to
+     * @param seq the characters holding the sequence
+     * @param start the index of the first character of the sequence
+     * @param end the index after the last character of the sequence
+     * @return the resulting style, or the starting style if the range doesn't hold a style sequence
+     *     or the sequence didn't change anything
+     */
+    public static Style parse(
+            @NonNull Style startingStyle, @NonNull CharSequence seq, int start, int end) {
+        if (!isStyleSequence(seq, start, end)) {
+            return startingStyle;
         }
-
-        Style style = startingStyle;
-        for (int i = 0; i < codes.length; i++) {
-            int code = codes[i];
+        long st = startingStyle.state;
+        long mk = startingStyle.mask;
+        int limit = end - 1;
+        int pos = start + 2;
+        while (pos <= limit) {
+            long param = nextParam(seq, pos, limit);
+            int code = paramValue(param);
+            int next = paramEnd(param);
             switch (code) {
                 case -1:
                     // Invalid code, ignore
                     break;
                 case 0:
-                    style = style.reset();
+                    st = F_UNSTYLED;
+                    mk = MASK_ALL;
                     break;
                 case 1:
-                    style = style.bold();
+                    st |= F_BOLD;
+                    mk |= F_BOLD;
                     break;
                 case 2:
-                    style = style.faint();
+                    st |= F_FAINT;
+                    mk |= F_FAINT;
                     break;
                 case 3:
-                    style = style.italic();
+                    st |= F_ITALIC;
+                    mk |= F_ITALIC;
                     break;
                 case 4:
-                    style = style.underlined();
+                    st |= F_UNDERLINED;
+                    mk |= F_UNDERLINED;
                     break;
                 case 5:
-                    style = style.blink();
+                    st |= F_BLINK;
+                    mk |= F_BLINK;
                     break;
                 case 7:
-                    style = style.inverse();
+                    st |= F_INVERSE;
+                    mk |= F_INVERSE;
                     break;
                 case 8:
-                    style = style.hidden();
+                    st |= F_HIDDEN;
+                    mk |= F_HIDDEN;
                     break;
                 case 9:
-                    style = style.strikethrough();
+                    st |= F_STRIKETHROUGH;
+                    mk |= F_STRIKETHROUGH;
                     break;
                 case 22:
-                    style = style.normal();
+                    st &= ~(F_BOLD | F_FAINT);
+                    mk |= F_BOLD | F_FAINT;
                     break;
                 case 23:
-                    style = style.italicOff();
+                    st &= ~F_ITALIC;
+                    mk |= F_ITALIC;
                     break;
                 case 24:
-                    style = style.underlinedOff();
+                    st &= ~F_UNDERLINED;
+                    mk |= F_UNDERLINED;
                     break;
                 case 25:
-                    style = style.blinkOff();
+                    st &= ~F_BLINK;
+                    mk |= F_BLINK;
                     break;
                 case 27:
-                    style = style.inverseOff();
+                    st &= ~F_INVERSE;
+                    mk |= F_INVERSE;
                     break;
                 case 28:
-                    style = style.hiddenOff();
+                    st &= ~F_HIDDEN;
+                    mk |= F_HIDDEN;
                     break;
                 case 29:
-                    style = style.strikethroughOff();
+                    st &= ~F_STRIKETHROUGH;
+                    mk |= F_STRIKETHROUGH;
                     break;
                 case 39:
-                    style = style.fgColor(Color.DEFAULT);
+                    st = withColor(st, 0, true);
+                    mk |= MASK_FG_COLOR;
                     break;
                 case 49:
-                    style = style.bgColor(Color.DEFAULT);
+                    st = withColor(st, 0, false);
+                    mk |= MASK_BG_COLOR;
+                    break;
+                case 38:
+                case 48:
+                    boolean isFg = (code == 38);
+                    long color = -1;
+                    if (next <= limit) {
+                        long type = nextParam(seq, next, limit);
+                        if (paramValue(type) == 5 && paramEnd(type) <= limit) {
+                            long idx = nextParam(seq, paramEnd(type), limit);
+                            color = indexedColor(paramValue(idx));
+                            next = paramEnd(idx);
+                        } else if (paramValue(type) == 2) {
+                            long rgb = parseRgb(seq, paramEnd(type), limit);
+                            if (rgb != -1) {
+                                color = (rgb & RGB_INVALID) == 0 ? rgb & MASK_COLOR : -1;
+                                next = (int) (rgb >>> 32);
+                            }
+                        }
+                    }
+                    if (color >= 0) {
+                        st = withColor(st, color, isFg);
+                        mk |= isFg ? MASK_FG_COLOR : MASK_BG_COLOR;
+                    }
                     break;
                 default:
                     if (code >= 30 && code <= 37) {
-                        Color c = Color.basic(code - 30, Color.BasicColor.Intensity.normal);
-                        style = style.fgColor(c);
+                        st = withColor(st, basicColor(code - 30, INTENSITY_NORMAL), true);
+                        mk |= MASK_FG_COLOR;
                     } else if (code >= 90 && code <= 97) {
-                        Color c = Color.basic(code - 90, Color.BasicColor.Intensity.bright);
-                        style = style.fgColor(c);
+                        st = withColor(st, basicColor(code - 90, INTENSITY_BRIGHT), true);
+                        mk |= MASK_FG_COLOR;
                     } else if (code >= 40 && code <= 47) {
-                        Color c = Color.basic(code - 40, Color.BasicColor.Intensity.normal);
-                        style = style.bgColor(c);
+                        st = withColor(st, basicColor(code - 40, INTENSITY_NORMAL), false);
+                        mk |= MASK_BG_COLOR;
                     } else if (code >= 100 && code <= 107) {
-                        Color c = Color.basic(code - 100, Color.BasicColor.Intensity.bright);
-                        style = style.bgColor(c);
-                    } else if (code == 38 || code == 48) {
-                        boolean isFg = (code == 38);
-                        if (i + 1 < codes.length) {
-                            int type = codes[i + 1];
-                            if (type == 5 && i + 2 < codes.length) {
-                                Color c = Color.indexed(codes[i + 2]);
-                                if (isFg) {
-                                    style = style.fgColor(c);
-                                } else {
-                                    style = style.bgColor(c);
-                                }
-                                i += 2;
-                            } else if (type == 2 && i + 4 < codes.length) {
-                                Color c = Color.rgb(codes[i + 2], codes[i + 3], codes[i + 4]);
-                                if (isFg) {
-                                    style = style.fgColor(c);
-                                } else {
-                                    style = style.bgColor(c);
-                                }
-                                i += 4;
-                            }
-                        }
+                        st = withColor(st, basicColor(code - 100, INTENSITY_BRIGHT), false);
+                        mk |= MASK_BG_COLOR;
                     }
                     break;
             }
+            if (st == F_UNKNOWN) {
+                // Changes to an unknown style leave it unknown
+                mk = 0;
+            }
+            pos = next;
+        }
+        if (st == startingStyle.state && mk == startingStyle.mask) {
+            return startingStyle;
+        }
+        return of(st, mk);
+    }
+
+    // Reads the parameter starting at pos, returning its value (0 if empty, -1 if invalid) in
+    // the upper half and the position after its separator in the lower half of the result
+    private static long nextParam(CharSequence seq, int pos, int limit) {
+        int value = 0;
+        int i = pos;
+        for (; i < limit; i++) {
+            char c = seq.charAt(i);
+            if (c == ';' || c == ':') {
+                break;
+            }
+            if (c < '0' || c > '9' || value > 0xffff) {
+                value = -1;
+            } else if (value >= 0) {
+                value = value * 10 + (c - '0');
+            }
+        }
+        return ((long) value << 32) | (i + 1);
+    }
+
+    private static int paramValue(long param) {
+        return (int) (param >> 32);
+    }
+
+    private static int paramEnd(long param) {
+        return (int) param;
+    }
+
+    private static boolean colonBefore(CharSequence seq, int end, int limit) {
+        return end - 1 < limit && seq.charAt(end - 1) == ':';
+    }
+
+    private static final long RGB_INVALID = 1L << 30;
+
+    // Reads the r, g and b parameters of a 24-bit color, skipping the color space id when the
+    // color was written in the colon separated form with all 4 parameters. Returns the encoded
+    // color (or RGB_INVALID) in the lower half and the position after the last parameter in the
+    // upper half, or -1 if there aren't enough parameters.
+    private static long parseRgb(CharSequence seq, int pos, int limit) {
+        boolean colons = colonBefore(seq, pos, limit);
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        int next = pos;
+        for (int i = 0; i < 3; i++) {
+            if (next > limit) {
+                return -1;
+            }
+            long param = nextParam(seq, next, limit);
+            next = paramEnd(param);
+            colons &= colonBefore(seq, next, limit);
+            if (i == 0) {
+                r = param;
+            } else if (i == 1) {
+                g = param;
+            } else {
+                b = param;
+            }
+        }
+        if (colons && next <= limit) {
+            // 38:2:<colorspace>:r:g:b
+            long param = nextParam(seq, next, limit);
+            next = paramEnd(param);
+            r = g;
+            g = b;
+            b = param;
+        }
+        long color = rgbColor(paramValue(r), paramValue(g), paramValue(b));
+        return ((long) next << 32) | (color == -1 ? RGB_INVALID : color);
+    }
+
+    private static long withColor(long state, long color, boolean fg) {
+        if (fg) {
+            return (state & ~MASK_FG_COLOR) | (color << SHIFT_FG_COLOR);
+        } else {
+            return (state & ~MASK_BG_COLOR) | (color << SHIFT_BG_COLOR);
+        }
+    }
+
+    private static long basicColor(int index, int intensity) {
+        return (((long) intensity & MASK_COLOR_BASIC_INTENSITY) << SHIFT_COLOR_BASIC_INTENSITY)
+                | (((long) index & MASK_COLOR_BASIC_INDEX) << SHIFT_COLOR_BASIC_INDEX);
+    }
+
+    private static long indexedColor(int index) {
+        if (index < 0 || index > 255) {
+            return -1;
+        }
+        return (PALETTE_INDEXED << SHIFT_PALETTE_TYPE)
+                | (((long) index & MASK_COLOR_PART) << SHIFT_COLOR_INDEXED_INDEX);
+    }
+
+    private static long rgbColor(int r, int g, int b) {
+        if (r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255) {
+            return -1;
         }
-        return style;
+        return CM_RGB
+                | (((long) r & MASK_COLOR_PART) << SHIFT_COLOR_R)
+                | (((long) g & MASK_COLOR_PART) << SHIFT_COLOR_G)
+                | (((long) b & MASK_COLOR_PART) << SHIFT_COLOR_B);
     }
 
     private static long applyFgColor(long state, Color color) {
@@ -666,80 +872,380 @@ public class Style implements Printable {
     }
 
     public @NonNull Appendable toAnsi(@NonNull Appendable appendable, @NonNull Style currentStyle) {
-        if (this.equals(UNKNOWN)) {
+        return toAnsi(appendable, currentStyle, false);
+    }
+
+    /**
+     * Appends the ANSI sequence that switches the terminal from the current style to this one. When
+     * <code>minimal</code> is true and both styles affect all attributes (or the current style is
+     * {@link #UNKNOWN}) the shortest of two encodings is used: the incremental one, or a reset
+     * followed by the attributes of this style. Colors are then also written using the shortest
+     * code that results in the same color, for example <code>31</code> instead of <code>
+     * 38;5;1</code> or <code>38;5;196</code> instead of <code>38;2;255;0;0</code>. In all other
+     * cases this behaves like {@link #toAnsi(Appendable, Style)}.
+     *
+     * @param appendable the Appendable to which the ANSI sequence will be appended
+     * @param currentStyle the current style
+     * @param minimal true to produce the shortest possible sequence
+     * @return the provided Appendable
+     */
+    public @NonNull Appendable toAnsi(
+            @NonNull Appendable appendable, @NonNull Style currentStyle, boolean minimal) {
+        if (mask == MASK_ALL && (currentStyle.mask == MASK_ALL || currentStyle == UNKNOWN)) {
+            return toAnsi(appendable, state, currentStyle.state, minimal);
+        }
+        return appendTransition(appendable, state, mask, currentStyle.state, currentStyle.mask);
+    }
+
+    /**
+     * Appends the ANSI sequence that switches the terminal from one style to another, where both
+     * styles are given by their packed state and are assumed to affect all attributes, like the
+     * styles returned by {@link #of(long)}. This produces the same output as <code>
+     * Style.of(state).toAnsi(appendable, Style.of(currentState))</code> but without creating any
+     * objects. When the output is a {@link Utf8Output} the encoded bytes of recent transitions are
+     * taken from a cache.
+     *
+     * @param appendable the Appendable to which the ANSI sequence will be appended
+     * @param state the state of the style to switch to
+     * @param currentState the state of the current style, or {@link #F_UNKNOWN}
+     * @return the provided Appendable
+     */
+    public static @NonNull Appendable toAnsi(
+            @NonNull Appendable appendable, long state, long currentState) {
+        return toAnsi(appendable, state, currentState, false);
+    }
+
+    /**
+     * Same as {@link #toAnsi(Appendable, long, long)} but when <code>minimal</code> is true the
+     * shortest possible sequence is produced, see {@link #toAnsi(Appendable, Style, boolean)}.
+     * Minimal transitions are always taken from the cache because finding the shortest one means
+     * encoding the transition twice.
+     *
+     * @param appendable the Appendable to which the ANSI sequence will be appended
+     * @param state the state of the style to switch to
+     * @param currentState the state of the current style, or {@link #F_UNKNOWN}
+     * @param minimal true to produce the shortest possible sequence
+     * @return the provided Appendable
+     */
+    public static @NonNull Appendable toAnsi(
+            @NonNull Appendable appendable, long state, long currentState, boolean minimal) {
+        if (state == F_UNKNOWN || state == currentState) {
+            return appendable;
+        }
+        try {
+            if (appendable instanceof Utf8Output) {
+                Transition t = Transition.of(state, currentState, minimal);
+                ((Utf8Output) appendable).appendBytes(t.bytes);
+            } else if (minimal) {
+                appendable.append(Transition.of(state, currentState, true).ansi);
+            } else {
+                long currentMask = currentState == F_UNKNOWN ? 0 : MASK_ALL;
+                appendTransition(appendable, state, MASK_ALL, currentState, currentMask);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return appendable;
+    }
+
+    private static final long[] TOGGLE_FLAGS = {
+        F_ITALIC, F_UNDERLINED, F_BLINK, F_INVERSE, F_HIDDEN, F_STRIKETHROUGH
+    };
+    private static final int[] TOGGLE_ON = {
+        Constants.ITALICIZED,
+        Constants.UNDERLINED,
+        Constants.BLINK,
+        Constants.INVERSE,
+        Constants.INVISIBLE,
+        Constants.CROSSEDOUT
+    };
+    private static final int[] TOGGLE_OFF = {
+        Constants.NOTITALICIZED,
+        Constants.NOTUNDERLINED,
+        Constants.STEADY,
+        Constants.POSITIVE,
+        Constants.VISIBLE,
+        Constants.NOTCROSSEDOUT
+    };
+
+    // The levels of the 6x6x6 color cube of the 256 color palette
+    private static final int[] CUBE_LEVELS = {0, 95, 135, 175, 215, 255};
+
+    private static Appendable appendTransition(
+            Appendable appendable, long state, long mask, long curState, long curMask) {
+        if (state == F_UNKNOWN) {
             // Do nothing, we keep the current state
             return appendable;
         }
-        List<Object> styles = new ArrayList<>();
-        if (shouldApply(currentStyle, F_BOLD) || shouldApply(currentStyle, F_FAINT)) {
+        try {
+            int args = appendArgs(appendable, 0, state, mask, curState, curMask, false);
+            if (args > 0) {
+                appendable.append(Constants.STYLE_CMD);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return appendable;
+    }
+
+    private static String minimalTransition(long state, long curState) {
+        StringBuilder incremental = new StringBuilder(32);
+        long curMask = curState == F_UNKNOWN ? 0 : MASK_ALL;
+        StringBuilder reset = new StringBuilder(32);
+        try {
+            int args = appendArgs(incremental, 0, state, MASK_ALL, curState, curMask, true);
+            if (args > 0) {
+                incremental.append(Constants.STYLE_CMD);
+            }
+            args = appendArg(reset, 0, Constants.RESET);
+            appendArgs(reset, args, state, MASK_ALL, F_UNSTYLED, MASK_ALL, true);
+            reset.append(Constants.STYLE_CMD);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return reset.length() < incremental.length() ? reset.toString() : incremental.toString();
+    }
+
+    private static int appendArgs(
+            Appendable appendable,
+            int args,
+            long state,
+            long mask,
+            long curState,
+            long curMask,
+            boolean minimal)
+            throws IOException {
+        if (shouldApply(state, mask, curState, curMask, F_BOLD)
+                || shouldApply(state, mask, curState, curMask, F_FAINT)) {
             boolean normal = false;
-            if (!currentStyle.equals(UNKNOWN)
-                    && ((!isBold() && currentStyle.isBold())
-                            || (!isFaint() && currentStyle.isFaint()))) {
+            if (curState != F_UNKNOWN
+                    && (((state & F_BOLD) == 0 && (curState & F_BOLD) != 0)
+                            || ((state & F_FAINT) == 0 && (curState & F_FAINT) != 0))) {
                 // First we switch to NORMAL to clear both BOLD and FAINT
-                styles.add(Constants.NORMAL);
+                args = appendArg(appendable, args, Constants.NORMAL);
                 normal = true;
             }
             // Now we set the needed styles
-            if (isBold() && (normal || !currentStyle.affectsBold() || !currentStyle.isBold()))
-                styles.add(Constants.BOLD);
-            if (isFaint() && (normal || !currentStyle.affectsFaint() || !currentStyle.isFaint()))
-                styles.add(Constants.FAINT);
-        }
-        if (shouldApply(currentStyle, F_ITALIC)) {
-            if (isItalic()) {
-                styles.add(Constants.ITALICIZED);
-            } else {
-                styles.add(Constants.NOTITALICIZED);
+            if ((state & F_BOLD) != 0
+                    && (normal || (curMask & F_BOLD) == 0 || (curState & F_BOLD) == 0)) {
+                args = appendArg(appendable, args, Constants.BOLD);
             }
-        }
-        if (shouldApply(currentStyle, F_UNDERLINED)) {
-            if (isUnderlined()) {
-                styles.add(Constants.UNDERLINED);
-            } else {
-                styles.add(Constants.NOTUNDERLINED);
+            if ((state & F_FAINT) != 0
+                    && (normal || (curMask & F_FAINT) == 0 || (curState & F_FAINT) == 0)) {
+                args = appendArg(appendable, args, Constants.FAINT);
             }
         }
-        if (shouldApply(currentStyle, F_BLINK)) {
-            if (isBlink()) {
-                styles.add(Constants.BLINK);
-            } else {
-                styles.add(Constants.STEADY);
+        for (int i = 0; i < TOGGLE_FLAGS.length; i++) {
+            long flag = TOGGLE_FLAGS[i];
+            if (shouldApply(state, mask, curState, curMask, flag)) {
+                int code = (state & flag) != 0 ? TOGGLE_ON[i] : TOGGLE_OFF[i];
+                args = appendArg(appendable, args, code);
             }
         }
-        if (shouldApply(currentStyle, F_INVERSE)) {
-            if (isInverse()) {
-                styles.add(Constants.INVERSE);
-            } else {
-                styles.add(Constants.POSITIVE);
+        long fgc = (state & MASK_FG_COLOR) >> SHIFT_FG_COLOR;
+        if ((mask & MASK_FG_COLOR) != 0
+                && ((curMask & MASK_FG_COLOR) == 0
+                        || fgc != ((curState & MASK_FG_COLOR) >> SHIFT_FG_COLOR))) {
+            args = appendColorArgs(appendable, args, fgc, true, minimal);
+        }
+        long bgc = (state & MASK_BG_COLOR) >>> SHIFT_BG_COLOR;
+        if ((mask & MASK_BG_COLOR) != 0
+                && ((curMask & MASK_BG_COLOR) == 0
+                        || bgc != ((curState & MASK_BG_COLOR) >>> SHIFT_BG_COLOR))) {
+            args = appendColorArgs(appendable, args, bgc, false, minimal);
+        }
+        return args;
+    }
+
+    private static boolean shouldApply(
+            long state, long mask, long curState, long curMask, long flag) {
+        return (mask & flag) != 0 && ((curMask & flag) == 0 || (state & flag) != (curState & flag));
+    }
+
+    private static int appendColorArgs(
+            Appendable appendable, int args, long color, boolean fg, boolean minimal)
+            throws IOException {
+        int base = fg ? Constants.FOREGROUND_COLORS : Constants.BACKGROUND_COLORS;
+        if ((color & MASK_COLOR_MODE) == CM_RGB) {
+            int r = (int) ((color >> SHIFT_COLOR_R) & MASK_COLOR_PART);
+            int g = (int) ((color >> SHIFT_COLOR_G) & MASK_COLOR_PART);
+            int b = (int) ((color >> SHIFT_COLOR_B) & MASK_COLOR_PART);
+            int index = minimal ? paletteIndex(r, g, b) : -1;
+            if (index >= 0) {
+                args = appendArg(appendable, args, base);
+                args = appendArg(appendable, args, Constants.COLORS_INDEXED);
+                return appendArg(appendable, args, index);
             }
+            args = appendArg(appendable, args, base);
+            args = appendArg(appendable, args, Constants.COLORS_RGB);
+            args = appendArg(appendable, args, r);
+            args = appendArg(appendable, args, g);
+            return appendArg(appendable, args, b);
         }
-        if (shouldApply(currentStyle, F_HIDDEN)) {
-            if (isHidden()) {
-                styles.add(Constants.INVISIBLE);
-            } else {
-                styles.add(Constants.VISIBLE);
+        if (((color >> SHIFT_PALETTE_TYPE) & MASK_PALETTE_TYPE) == PALETTE_INDEXED) {
+            int index = (int) ((color >> SHIFT_COLOR_INDEXED_INDEX) & MASK_COLOR_PART);
+            if (minimal && index < 8) {
+                // The first 16 palette entries are the basic colors
+                int normal = fg ? Constants.FOREGROUND_BASE : Constants.BACKGROUND_BASE;
+                return appendArg(appendable, args, normal + index);
+            } else if (minimal && index < 16) {
+                int bright =
+                        fg ? Constants.FOREGROUND_BRIGHT_BASE : Constants.BACKGROUND_BRIGHT_BASE;
+                return appendArg(appendable, args, bright + index - 8);
             }
+            args = appendArg(appendable, args, base);
+            args = appendArg(appendable, args, Constants.COLORS_INDEXED);
+            return appendArg(appendable, args, index);
         }
-        if (shouldApply(currentStyle, F_STRIKETHROUGH)) {
-            if (isStrikethrough()) {
-                styles.add(Constants.CROSSEDOUT);
-            } else {
-                styles.add(Constants.NOTCROSSEDOUT);
+        int intensity = (int) ((color >> SHIFT_COLOR_BASIC_INTENSITY) & MASK_COLOR_BASIC_INTENSITY);
+        int index = (int) ((color >> SHIFT_COLOR_BASIC_INDEX) & MASK_COLOR_BASIC_INDEX);
+        int code;
+        switch (intensity) {
+            case INTENSITY_NORMAL:
+                code = (fg ? Constants.FOREGROUND_BASE : Constants.BACKGROUND_BASE) + index;
+                break;
+            case INTENSITY_DARK:
+                code =
+                        (fg ? Constants.FOREGROUND_DARK_BASE : Constants.BACKGROUND_DARK_BASE)
+                                + index;
+                break;
+            case INTENSITY_BRIGHT:
+                code =
+                        (fg ? Constants.FOREGROUND_BRIGHT_BASE : Constants.BACKGROUND_BRIGHT_BASE)
+                                + index;
+                break;
+            case INTENSITY_DEFAULT:
+            default:
+                code = fg ? Constants.DEFAULT_FOREGROUND : Constants.DEFAULT_BACKGROUND;
+                break;
+        }
+        return appendArg(appendable, args, code);
+    }
+
+    // Returns the index of the color in the 256 color palette with exactly the given RGB value,
+    // leaving out the first 16 colors because their actual values differ between terminals
+    private static int paletteIndex(int r, int g, int b) {
+        int ri = cubeLevel(r);
+        int gi = cubeLevel(g);
+        int bi = cubeLevel(b);
+        if (ri >= 0 && gi >= 0 && bi >= 0) {
+            return 16 + 36 * ri + 6 * gi + bi;
+        }
+        if (r == g && g == b && r >= 8 && r <= 238 && (r - 8) % 10 == 0) {
+            // The grayscale ramp
+            return 232 + (r - 8) / 10;
+        }
+        return -1;
+    }
+
+    private static int cubeLevel(int value) {
+        for (int i = 0; i < CUBE_LEVELS.length; i++) {
+            if (CUBE_LEVELS[i] == value) {
+                return i;
             }
         }
-        if (affectsFgColor()
-                && (!currentStyle.affectsFgColor() || !fgColor().equals(currentStyle.fgColor()))) {
-            styles.add(fgColor().toAnsiFgArgs());
+        return -1;
+    }
+
+    // Appends a single numeric SGR argument, preceded by the CSI or a separator
+    private static int appendArg(Appendable appendable, int args, int value) throws IOException {
+        if (args == 0) {
+            appendable.append(Constants.CSI);
+        } else {
+            appendable.append(';');
+        }
+        if (value >= 100) {
+            appendable.append((char) ('0' + value / 100));
         }
-        if (affectsBgColor()
-                && (!currentStyle.affectsBgColor() || !bgColor().equals(currentStyle.bgColor()))) {
-            styles.add(bgColor().toAnsiBgArgs());
+        if (value >= 10) {
+            appendable.append((char) ('0' + value / 10 % 10));
         }
-        return StyleBuilder.styles(appendable, styles.toArray());
+        appendable.append((char) ('0' + value % 10));
+        return args + 1;
     }
 
-    private boolean shouldApply(Style otherStyle, long flag) {
-        return affects(flag) && (!otherStyle.affects(flag) || is(flag) != otherStyle.is(flag));
+    /**
+     * A fixed-size cache of the encoded transitions between two styles, where each transition can
+     * be found in one of two slots. Entries are immutable, so the cache can be read and updated
+     * from multiple threads without locking, at worst a transition gets encoded twice.
+     */
+    private static final class Transition {
+        private static final int CACHE_SIZE = 4096;
+        private static final Transition[] cache = new Transition[CACHE_SIZE];
+        private static final Transition[] minimalCache = new Transition[CACHE_SIZE];
+
+        private final long from;
+        private final long to;
+        private final String ansi;
+        private final byte[] bytes;
+
+        private Transition(long from, long to, String ansi) {
+            this.from = from;
+            this.to = to;
+            this.ansi = ansi;
+            this.bytes = ansi.getBytes(StandardCharsets.UTF_8);
+        }
+
+        static Transition of(long to, long from, boolean minimal) {
+            long h = (from * 0x9E3779B97F4A7C15L) ^ to;
+            h ^= h >>> 29;
+            h *= 0xBF58476D1CE4E5B9L;
+            int idx = (int) (h >>> 32) & (CACHE_SIZE - 1);
+            Transition[] transitions = minimal ? minimalCache : cache;
+            Transition t = transitions[idx];
+            if (t != null && t.from == from && t.to == to) {
+                return t;
+            }
+            int idx2 = (idx + 1) & (CACHE_SIZE - 1);
+            Transition t2 = transitions[idx2];
+            if (t2 != null && t2.from == from && t2.to == to) {
+                return t2;
+            }
+            String ansi;
+            if (minimal) {
+                ansi = minimalTransition(to, from);
+            } else {
+                long fromMask = from == F_UNKNOWN ? 0 : MASK_ALL;
+                ansi =
+                        appendTransition(new StringBuilder(32), to, MASK_ALL, from, fromMask)
+                                .toString();
+            }
+            Transition result = new Transition(from, to, ansi);
+            // Prefer an empty slot, otherwise replace the second one
+            transitions[t == null ? idx : idx2] = result;
+            return result;
+        }
+    }
+
+    /**
+     * A bounded cache of Style instances so the same styles get reused instead of being created
+     * over and over again, which also lets most calls to {@link #equals(Object)} succeed on
+     * identity. It's a lock-free open-addressing table where each state and mask can be found in
+     * one of two slots. Styles are immutable, so a thread that doesn't see the latest contents of a
+     * slot will at worst create a duplicate instance.
+     */
+    private static final class Flyweights {
+        private static final int SIZE = 8192;
+        private static final Style[] styles = new Style[SIZE];
+
+        static Style get(long state, long mask) {
+            long h = (state * 0x9E3779B97F4A7C15L) ^ mask;
+            h ^= h >>> 31;
+            h *= 0xBF58476D1CE4E5B9L;
+            int idx = (int) (h >>> 40) & (SIZE - 1);
+            Style style = styles[idx];
+            if (style != null && style.state == state && style.mask == mask) {
+                return style;
+            }
+            int idx2 = (idx + 1) & (SIZE - 1);
+            Style style2 = styles[idx2];
+            if (style2 != null && style2.state == state && style2.mask == mask) {
+                return style2;
+            }
+            Style result = new Style(state, mask);
+            // Prefer an empty slot, otherwise replace the second one
+            styles[style == null ? idx : idx2] = result;
+            return result;
+        }
     }
 }
@@ -1,6 +1,7 @@
 package org.codejive.twinkle.ansi.util;
 
 import org.codejive.twinkle.ansi.Constants;
+import org.jspecify.annotations.NonNull;
 
 /**
  * A base decoder for handling ANSI escape sequences. This class provides the foundation for
@@ -150,6 +151,14 @@ public class AnsiDecoder {
         return buffer.toString();
     }
 
+    /**
+     * Returns the buffered sequence without copying it. The returned characters are only valid
+     * until the decoder is reset.
+     */
+    public @NonNull CharSequence sequence() {
+        return buffer;
+    }
+
     /** Handles ANSI escape sequence parsing logic. */
     protected void pushAnsi(char ch) {
         if (state == ANSI) {
@@ -79,6 +79,42 @@ public class AnsiOutputParser {
             return false;
         }
 
+        /**
+         * Called for a sequence that sets the scrolling region (DECSTBM). The rows are 1-based and
+         * inclusive, a value of 0 means the default (the top or bottom row of the screen).
+         */
+        default boolean onScrollRegion(int top, int bottom) {
+            return false;
+        }
+
+        default boolean onScrollUp(int num) {
+            return false;
+        }
+
+        default boolean onScrollDown(int num) {
+            return false;
+        }
+
+        default boolean onInsertLines(int num) {
+            return false;
+        }
+
+        default boolean onDeleteLines(int num) {
+            return false;
+        }
+
+        default boolean onInsertChars(int num) {
+            return false;
+        }
+
+        default boolean onDeleteChars(int num) {
+            return false;
+        }
+
+        default boolean onEraseChars(int num) {
+            return false;
+        }
+
         default boolean onScreenSave() {
             return false;
         }
@@ -108,6 +144,10 @@ public class AnsiOutputParser {
         default boolean onCursorRestore() {
             return false;
         }
+
+        default boolean onCursorUpWithScroll() {
+            return false;
+        }
     }
 
     public static boolean parse(String sequence, AnsiSequenceHandler handler) {
@@ -170,6 +210,23 @@ public class AnsiOutputParser {
         } else if ((CSI + LINE_ERASE_CMD).equals(sequence)
                 || (CSI + LINE_ERASE_END).equals(sequence)) {
             return handler.onLineEraseEnd();
+        } else if ((nums = numsMatch(SCROLL_REGION_CMD, sequence, new int[0], 0)) != null) {
+            return handler.onScrollRegion(
+                    nums.length > 0 ? nums[0] : 0, nums.length > 1 ? nums[1] : 0);
+        } else if ((num = numMatch(SCROLL_UP_CMD, sequence, 1)) != -1) {
+            return handler.onScrollUp(num);
+        } else if ((num = numMatch(SCROLL_DOWN_CMD, sequence, 1)) != -1) {
+            return handler.onScrollDown(num);
+        } else if ((num = numMatch(INSERT_LINES_CMD, sequence, 1)) != -1) {
+            return handler.onInsertLines(num);
+        } else if ((num = numMatch(DELETE_LINES_CMD, sequence, 1)) != -1) {
+            return handler.onDeleteLines(num);
+        } else if ((num = numMatch(INSERT_CHARS_CMD, sequence, 1)) != -1) {
+            return handler.onInsertChars(num);
+        } else if ((num = numMatch(DELETE_CHARS_CMD, sequence, 1)) != -1) {
+            return handler.onDeleteChars(num);
+        } else if ((num = numMatch(ERASE_CHARS_CMD, sequence, 1)) != -1) {
+            return handler.onEraseChars(num);
         } else if (Ansi.autoWrap().equals(sequence)) {
             return handler.onAutoWrap(true);
         } else if (Ansi.autoWrapOff().equals(sequence)) {
@@ -200,6 +257,8 @@ public class AnsiOutputParser {
             return handler.onCursorSave();
         } else if (Ansi.cursorRestore().equals(sequence)) {
             return handler.onCursorRestore();
+        } else if (Ansi.cursorUpWithScroll().equals(sequence)) {
+            return handler.onCursorUpWithScroll();
         }
         return false;
     }
@@ -220,6 +279,11 @@ public class AnsiOutputParser {
     }
 
     private int[] numsMatch(char cursorCmd, String sequence, int[] defaultNums) {
+        return numsMatch(cursorCmd, sequence, defaultNums, -1);
+    }
+
+    // Empty parameters get the value emptyNum, unless it's negative, then they fail the match
+    private int[] numsMatch(char cursorCmd, String sequence, int[] defaultNums, int emptyNum) {
         if (sequence.startsWith(CSI) && sequence.endsWith(String.valueOf(cursorCmd))) {
             String numsStr = sequence.substring(CSI.length(), sequence.length() - 1);
             if (numsStr.isEmpty()) {
@@ -228,6 +292,10 @@ public class AnsiOutputParser {
             String[] parts = numsStr.split(";");
             int nums[] = new int[parts.length];
             for (int i = 0; i < parts.length; i++) {
+                if (parts[i].isEmpty() && emptyNum >= 0) {
+                    nums[i] = emptyNum;
+                    continue;
+                }
                 try {
                     nums[i] = Integer.parseInt(parts[i]);
                 } catch (NumberFormatException e) {
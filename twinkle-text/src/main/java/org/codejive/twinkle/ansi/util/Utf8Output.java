@@ -0,0 +1,275 @@
+package org.codejive.twinkle.ansi.util;
+
+import static org.codejive.twinkle.ansi.Constants.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.jspecify.annotations.NonNull;
+
+/**
+ * An Appendable that encodes everything that is appended to it directly as UTF-8 into a reusable
+ * byte array. This avoids having to first build a String and then encode it again when writing to a
+ * terminal, the collected bytes can be handed to an OutputStream or a channel in a single write.
+ * Call {@link #reset()} to reuse the same instance for the next frame.
+ */
+public class Utf8Output implements Appendable {
+    private byte[] bytes;
+    private int length;
+    private char highSurrogate;
+
+    public Utf8Output() {
+        this(1024);
+    }
+
+    public Utf8Output(int initialCapacity) {
+        this.bytes = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    @Override
+    public @NonNull Utf8Output append(CharSequence csq) {
+        if (csq == null) {
+            csq = "null";
+        }
+        return append(csq, 0, csq.length());
+    }
+
+    @Override
+    public @NonNull Utf8Output append(CharSequence csq, int start, int end) {
+        if (csq == null) {
+            csq = "null";
+        }
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            char c = csq.charAt(i);
+            if (c < 0x80 && highSurrogate == 0) {
+                // Fast path for ASCII, which is all that ANSI sequences consist of
+                bytes[length++] = (byte) c;
+            } else {
+                append(c);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public @NonNull Utf8Output append(char c) {
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                appendCodePoint(Character.toCodePoint(high, c));
+                return this;
+            }
+            // Unpaired surrogate
+            appendCodePoint('?');
+        }
+        if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            appendCodePoint('?');
+        } else {
+            appendCodePoint(c);
+        }
+        return this;
+    }
+
+    /**
+     * Append the given codepoint encoded as UTF-8.
+     *
+     * @param cp the codepoint to append
+     * @return a reference to this Utf8Output, for chaining
+     */
+    public @NonNull Utf8Output appendCodePoint(int cp) {
+        flushSurrogate();
+        ensureCapacity(4);
+        if (cp < 0x80) {
+            bytes[length++] = (byte) cp;
+        } else if (cp < 0x800) {
+            bytes[length++] = (byte) (0xC0 | (cp >> 6));
+            bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            bytes[length++] = (byte) (0xE0 | (cp >> 12));
+            bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            bytes[length++] = (byte) (0xF0 | (cp >> 18));
+            bytes[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            bytes[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            bytes[length++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        return this;
+    }
+
+    /**
+     * Append bytes that are already encoded as UTF-8, like a precomputed ANSI sequence.
+     *
+     * @param data the bytes to append
+     * @return a reference to this Utf8Output, for chaining
+     */
+    public @NonNull Utf8Output appendBytes(byte @NonNull [] data) {
+        flushSurrogate();
+        ensureCapacity(data.length);
+        System.arraycopy(data, 0, bytes, length, data.length);
+        length += data.length;
+        return this;
+    }
+
+    /**
+     * Append all bytes that were collected by another Utf8Output.
+     *
+     * @param other the output to append the bytes of
+     * @return a reference to this Utf8Output, for chaining
+     */
+    public @NonNull Utf8Output appendBytes(@NonNull Utf8Output other) {
+        flushSurrogate();
+        other.flushSurrogate();
+        ensureCapacity(other.length);
+        System.arraycopy(other.bytes, 0, bytes, length, other.length);
+        length += other.length;
+        return this;
+    }
+
+    /**
+     * Append the decimal representation of the given non-negative number.
+     *
+     * @param value the number to append
+     * @return a reference to this Utf8Output, for chaining
+     */
+    public @NonNull Utf8Output appendInt(int value) {
+        if (value < 0) {
+            return append(Integer.toString(value));
+        }
+        flushSurrogate();
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Append the ANSI sequence to position the cursor at the given 0-based column and row. This
+     * produces the same output as {@link org.codejive.twinkle.ansi.Ansi#cursorPos(int, int)}
+     * without creating any intermediate Strings.
+     *
+     * @param col the column (0-based, 0 is leftmost)
+     * @param row the row (0-based, 0 is topmost)
+     * @return a reference to this Utf8Output, for chaining
+     */
+    public @NonNull Utf8Output appendCursorPos(int col, int row) {
+        flushSurrogate();
+        ensureCapacity(2);
+        bytes[length++] = ESC;
+        bytes[length++] = '[';
+        appendInt(row + 1);
+        ensureCapacity(1);
+        bytes[length++] = ';';
+        appendInt(col + 1);
+        ensureCapacity(1);
+        bytes[length++] = CURSOR_POSITION_CMD;
+        return this;
+    }
+
+    // A high surrogate that is still waiting for its low surrogate when anything else gets
+    // appended or the bytes are read is unpaired and gets replaced, just like append(char) does
+    private void flushSurrogate() {
+        if (highSurrogate != 0) {
+            highSurrogate = 0;
+            ensureCapacity(1);
+            bytes[length++] = '?';
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    /**
+     * The number of bytes collected so far.
+     *
+     * @return the number of bytes
+     */
+    public int size() {
+        flushSurrogate();
+        return length;
+    }
+
+    /**
+     * Discard all collected bytes, keeping the allocated memory for reuse.
+     *
+     * @return a reference to this Utf8Output, for chaining
+     */
+    public @NonNull Utf8Output reset() {
+        length = 0;
+        highSurrogate = 0;
+        return this;
+    }
+
+    /**
+     * Get a copy of the collected bytes.
+     *
+     * @return a new array containing the collected bytes
+     */
+    public byte @NonNull [] toByteArray() {
+        flushSurrogate();
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Get a ByteBuffer that wraps the collected bytes without copying them. The buffer is only
+     * valid until the next time something is appended or the output is reset.
+     *
+     * @return a ByteBuffer ready for reading the collected bytes
+     */
+    public @NonNull ByteBuffer byteBuffer() {
+        flushSurrogate();
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    /**
+     * Write the collected bytes to the given OutputStream in a single write.
+     *
+     * @param out the OutputStream to write to
+     * @throws IOException if the OutputStream throws an IOException
+     */
+    public void writeTo(@NonNull OutputStream out) throws IOException {
+        flushSurrogate();
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Write the collected bytes to the given channel.
+     *
+     * @param channel the channel to write to
+     * @throws IOException if the channel throws an IOException
+     */
+    public void writeTo(@NonNull WritableByteChannel channel) throws IOException {
+        ByteBuffer buf = byteBuffer();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    /**
+     * Decode the collected bytes back into a String, mostly useful for debugging and testing.
+     *
+     * @return the collected output as a String
+     */
+    @Override
+    public @NonNull String toString() {
+        flushSurrogate();
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -300,4 +300,16 @@ public class TestColor {
         assertThat(BasicColor.byIndex(Constants.WHITE, BasicColor.Intensity.bright))
                 .isEqualTo(BasicColor.BRIGHT_WHITE);
     }
+
+    @Test
+    public void testColorsAreShared() {
+        assertThat(Color.indexed(42)).isSameAs(Color.indexed(42));
+        assertThat(Color.rgb(10, 20, 30)).isSameAs(Color.rgb(10, 20, 30));
+        assertThat(Color.rgb(10, 20, 31)).isNotSameAs(Color.rgb(10, 20, 30));
+        Style style = Style.DEFAULT.fgColor(Color.indexed(7)).bgColor(Color.rgb(1, 2, 3));
+        assertThat(style.fgColor()).isSameAs(Color.indexed(7));
+        assertThat(style.bgColor()).isSameAs(Color.rgb(1, 2, 3));
+        assertThatThrownBy(() -> Color.indexed(256)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Color.rgb(0, 256, 0)).isInstanceOf(IllegalArgumentException.class);
+    }
 }
@@ -0,0 +1,52 @@
+package org.codejive.twinkle.ansi;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.codejive.twinkle.ansi.Color.BasicColor;
+import org.junit.jupiter.api.Test;
+
+public class TestColorProfile {
+
+    @Test
+    public void testTruecolorKeepsColors() {
+        Style style = Style.DEFAULT.fgColor(Color.rgb(250, 5, 3)).bgColor(Color.indexed(100));
+        assertThat(style.downsample(ColorProfile.TRUECOLOR)).isSameAs(style);
+        assertThat(Style.UNKNOWN.downsample(ColorProfile.MONO)).isSameAs(Style.UNKNOWN);
+    }
+
+    @Test
+    public void testAnsi256() {
+        assertThat(fg(Color.rgb(255, 0, 0), ColorProfile.ANSI256)).isEqualTo(Color.indexed(196));
+        assertThat(fg(Color.rgb(250, 5, 3), ColorProfile.ANSI256)).isEqualTo(Color.indexed(196));
+        assertThat(fg(Color.rgb(128, 128, 128), ColorProfile.ANSI256))
+                .isEqualTo(Color.indexed(244));
+        assertThat(fg(Color.rgb(0, 0, 90), ColorProfile.ANSI256)).isEqualTo(Color.indexed(17));
+        // Colors that are already supported are left alone
+        Style style = Style.DEFAULT.fgColor(Color.indexed(100)).bgColor(BasicColor.BLUE).bold();
+        assertThat(style.downsample(ColorProfile.ANSI256)).isSameAs(style);
+    }
+
+    @Test
+    public void testAnsi16() {
+        assertThat(fg(Color.rgb(250, 5, 3), ColorProfile.ANSI16)).isEqualTo(BasicColor.BRIGHT_RED);
+        assertThat(fg(Color.rgb(190, 10, 0), ColorProfile.ANSI16)).isEqualTo(BasicColor.RED);
+        assertThat(fg(Color.rgb(20, 20, 20), ColorProfile.ANSI16)).isEqualTo(BasicColor.BLACK);
+        assertThat(fg(Color.indexed(196), ColorProfile.ANSI16)).isEqualTo(BasicColor.BRIGHT_RED);
+        assertThat(fg(Color.indexed(3), ColorProfile.ANSI16)).isEqualTo(BasicColor.YELLOW);
+        assertThat(fg(Color.indexed(12), ColorProfile.ANSI16)).isEqualTo(BasicColor.BRIGHT_BLUE);
+        Style style = Style.DEFAULT.bgColor(Color.rgb(0, 0, 238)).underlined();
+        assertThat(style.downsample(ColorProfile.ANSI16))
+                .isEqualTo(Style.DEFAULT.bgColor(BasicColor.BLUE).underlined());
+    }
+
+    @Test
+    public void testMono() {
+        Style style =
+                Style.DEFAULT.fgColor(Color.rgb(1, 2, 3)).bgColor(BasicColor.RED).bold().inverse();
+        assertThat(style.downsample(ColorProfile.MONO)).isEqualTo(Style.DEFAULT.bold().inverse());
+    }
+
+    private static Color fg(Color color, ColorProfile profile) {
+        return Style.DEFAULT.fgColor(color).downsample(profile).fgColor();
+    }
+}
@@ -3,6 +3,7 @@ package org.codejive.twinkle.ansi;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import org.codejive.twinkle.ansi.util.StyleBuilder;
+import org.codejive.twinkle.ansi.util.Utf8Output;
 import org.junit.jupiter.api.Test;
 
 public class TestStyle {
@@ -317,4 +318,166 @@ public class TestStyle {
         String ansiCode = style.toAnsi(currentStyle);
         assertThat(ansiCode).isEqualTo(StyleBuilder.styles(Constants.FAINT));
     }
+
+    @Test
+    public void testStylesAreShared() {
+        Style style = Style.of(Style.F_BOLD | Style.F_ITALIC);
+        assertThat(Style.of(Style.F_BOLD | Style.F_ITALIC)).isSameAs(style);
+        assertThat(Style.UNSTYLED.bold().italic()).isSameAs(Style.UNSTYLED.italic().bold());
+        assertThat(Style.of(style.state(), style.mask())).isSameAs(style);
+        assertThat(Style.of(style.state(), Style.F_BOLD)).isNotSameAs(style);
+    }
+
+    @Test
+    public void testToAnsiFromPackedStates() {
+        Style[] styles = {
+            Style.DEFAULT,
+            Style.of(Style.F_BOLD | Style.F_UNDERLINED),
+            Style.of(Style.F_FAINT).fgColor(Color.BasicColor.RED.dark()),
+            Style.of(Style.F_INVERSE).bgColor(Color.indexed(200)),
+            Style.DEFAULT.fgColor(Color.rgb(255, 128, 0)).bgColor(Color.rgb(1, 2, 255)),
+            Style.DEFAULT.bgColor(Color.BasicColor.CYAN.bright())
+        };
+        for (Style from : styles) {
+            for (Style to : styles) {
+                String expected = to.toAnsi(from);
+                String fromStates =
+                        Style.toAnsi(new StringBuilder(), to.state(), from.state()).toString();
+                assertThat(fromStates).isEqualTo(expected);
+                // The second time the bytes come from the transition cache
+                for (int i = 0; i < 2; i++) {
+                    Utf8Output out = new Utf8Output();
+                    Style.toAnsi(out, to.state(), from.state());
+                    assertThat(out.toString()).isEqualTo(expected);
+                }
+            }
+            Utf8Output out = new Utf8Output();
+            Style.toAnsi(out, from.state(), Style.F_UNKNOWN);
+            assertThat(out.toString()).isEqualTo(from.toAnsi(Style.UNKNOWN));
+            assertThat(Style.toAnsi(new StringBuilder(), Style.F_UNKNOWN, from.state()).toString())
+                    .isEmpty();
+        }
+    }
+
+    @Test
+    public void testMinimalToAnsiUsesResetWhenShorter() {
+        Style current =
+                Style.DEFAULT
+                        .bold()
+                        .italic()
+                        .underlined()
+                        .blink()
+                        .inverse()
+                        .fgColor(Color.BasicColor.RED);
+        Style style = Style.DEFAULT.strikethrough();
+        assertThat(style.toAnsi(new StringBuilder(), current, false).toString())
+                .isEqualTo(
+                        StyleBuilder.styles(
+                                Constants.NORMAL,
+                                Constants.NOTITALICIZED,
+                                Constants.NOTUNDERLINED,
+                                Constants.STEADY,
+                                Constants.POSITIVE,
+                                Constants.CROSSEDOUT,
+                                Constants.DEFAULT_FOREGROUND));
+        assertThat(style.toAnsi(new StringBuilder(), current, true).toString())
+                .isEqualTo(StyleBuilder.styles(Constants.RESET, Constants.CROSSEDOUT));
+        assertThat(Style.DEFAULT.toAnsi(new StringBuilder(), Style.UNKNOWN, true).toString())
+                .isEqualTo(StyleBuilder.styles(Constants.RESET));
+        // Small changes are still written incrementally
+        assertThat(current.italicOff().toAnsi(new StringBuilder(), current, true).toString())
+                .isEqualTo(StyleBuilder.styles(Constants.NOTITALICIZED));
+    }
+
+    @Test
+    public void testMinimalToAnsiUsesShortestColorCodes() {
+        assertMinimalFg(Color.indexed(1), "31");
+        assertMinimalFg(Color.indexed(9), "91");
+        assertMinimalFg(Color.indexed(100), "38;5;100");
+        assertMinimalFg(Color.rgb(255, 0, 0), "38;5;196");
+        assertMinimalFg(Color.rgb(128, 128, 128), "38;5;244");
+        assertMinimalFg(Color.rgb(1, 2, 3), "38;2;1;2;3");
+        assertThat(
+                        Style.DEFAULT
+                                .bgColor(Color.indexed(4))
+                                .toAnsi(new StringBuilder(), Style.DEFAULT, true)
+                                .toString())
+                .isEqualTo(StyleBuilder.styles("44"));
+        // Styles that don't affect all attributes are never minimized
+        Style partial = Style.UNSTYLED.fgColor(Color.indexed(1));
+        assertThat(partial.toAnsi(new StringBuilder(), Style.DEFAULT, true).toString())
+                .isEqualTo(partial.toAnsi(Style.DEFAULT));
+    }
+
+    @Test
+    public void testMinimalToAnsiHasSameEffect() {
+        Style[] styles = {
+            Style.DEFAULT,
+            Style.of(Style.F_BOLD | Style.F_ITALIC | Style.F_UNDERLINED),
+            Style.of(Style.F_FAINT | Style.F_BLINK | Style.F_HIDDEN)
+                    .fgColor(Color.BasicColor.GREEN),
+            Style.of(Style.F_INVERSE | Style.F_STRIKETHROUGH).bgColor(Color.BasicColor.BLUE),
+            Style.DEFAULT.fgColor(Color.BasicColor.RED.bright()).bgColor(Color.BasicColor.WHITE),
+            Style.of(Style.F_BOLD).fgColor(Color.BasicColor.RED.bright())
+        };
+        for (Style from : styles) {
+            for (Style to : styles) {
+                String minimal = to.toAnsi(new StringBuilder(), from, true).toString();
+                Utf8Output out = new Utf8Output();
+                Style.toAnsi(out, to.state(), from.state(), true);
+                assertThat(out.toString()).isEqualTo(minimal);
+                assertThat(minimal.length()).isLessThanOrEqualTo(to.toAnsi(from).length());
+                assertThat(Style.parse(from, minimal)).isEqualTo(to);
+            }
+        }
+    }
+
+    private static void assertMinimalFg(Color color, String args) {
+        Style style = Style.DEFAULT.fgColor(color);
+        assertThat(style.toAnsi(new StringBuilder(), Style.DEFAULT, true).toString())
+                .isEqualTo(StyleBuilder.styles(args));
+    }
+
+    @Test
+    public void testParse() {
+        Style red = Style.DEFAULT.fgColor(Color.BasicColor.RED);
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[1;31m")).isEqualTo(red.bold());
+        assertThat(Style.parse(red.bold(), "\u001b[22;39m")).isEqualTo(Style.DEFAULT);
+        assertThat(Style.parse(red, "\u001b[m")).isEqualTo(Style.DEFAULT);
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38;5;100;48;2;1;2;3m"))
+                .isEqualTo(Style.DEFAULT.fgColor(Color.indexed(100)).bgColor(Color.rgb(1, 2, 3)));
+        // Without changes the starting style itself is returned
+        assertThat(Style.parse(red, "\u001b[31m")).isSameAs(red);
+        assertThat(Style.parse(red, "not a style")).isSameAs(red);
+    }
+
+    @Test
+    public void testParseSubparameters() {
+        Style rgb = Style.DEFAULT.fgColor(Color.rgb(10, 20, 30));
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38:2:10:20:30m")).isEqualTo(rgb);
+        // The ITU form that includes a color space id
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38:2::10:20:30m")).isEqualTo(rgb);
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38:2:0:10:20:30;1m")).isEqualTo(rgb.bold());
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[48:5:17m"))
+                .isEqualTo(Style.DEFAULT.bgColor(Color.indexed(17)));
+    }
+
+    @Test
+    public void testParseIgnoresInvalidParameters() {
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38;5;300;1m"))
+                .isEqualTo(Style.DEFAULT.bold());
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38;2;1;2;999;x;4m"))
+                .isEqualTo(Style.DEFAULT.underlined());
+        // Incomplete colors are skipped, the remaining parameters still apply
+        assertThat(Style.parse(Style.DEFAULT, "\u001b[38;5m")).isEqualTo(Style.DEFAULT.blink());
+    }
+
+    @Test
+    public void testParseRange() {
+        StringBuilder sb = new StringBuilder("text\u001b[3;44mmore");
+        assertThat(Style.isStyleSequence(sb, 4, 11)).isTrue();
+        assertThat(Style.isStyleSequence(sb, 0, 11)).isFalse();
+        assertThat(Style.parse(Style.DEFAULT, sb, 4, 11))
+                .isEqualTo(Style.DEFAULT.italic().bgColor(Color.BasicColor.BLUE));
+    }
 }
@@ -0,0 +1,74 @@
+package org.codejive.twinkle.ansi.util;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.codejive.twinkle.ansi.Ansi;
+import org.codejive.twinkle.ansi.Hyperlink;
+import org.junit.jupiter.api.Test;
+
+public class TestUtf8Output {
+
+    @Test
+    public void testAppendEncodesUtf8() {
+        String text = "abc é ─ 世界 😀";
+        Utf8Output out = new Utf8Output(16);
+        out.append(text);
+        assertThat(out.toByteArray()).isEqualTo(text.getBytes(StandardCharsets.UTF_8));
+        assertThat(out.toString()).isEqualTo(text);
+    }
+
+    @Test
+    public void testAppendCharBySurrogatePair() {
+        Utf8Output out = new Utf8Output();
+        out.append('\uD83D').append('\uDE00').append('x');
+        assertThat(out.toString()).isEqualTo("😀x");
+    }
+
+    @Test
+    public void testUnpairedSurrogates() {
+        Utf8Output out = new Utf8Output();
+        out.append("a\uD83Db\uDE00c");
+        assertThat(out.toString()).isEqualTo("a?b?c");
+    }
+
+    @Test
+    public void testUnpairedSurrogateBeforeDirectAppends() {
+        Utf8Output out = new Utf8Output();
+        out.append('\uD83D').appendCodePoint('a');
+        out.append('\uD83D').appendBytes(new byte[] {'b'});
+        out.append('\uD83D').appendInt(1);
+        out.append('\uD83D').appendCursorPos(0, 0);
+        out.append('\uD83D');
+        assertThat(out.toString()).isEqualTo("?a?b?1?" + Ansi.cursorPos(0, 0) + "?");
+    }
+
+    @Test
+    public void testAppendCursorPos() {
+        Utf8Output out = new Utf8Output();
+        out.appendCursorPos(0, 0).appendCursorPos(119, 9);
+        assertThat(out.toString()).isEqualTo(Ansi.cursorPos(0, 0) + Ansi.cursorPos(119, 9));
+    }
+
+    @Test
+    public void testAppendHyperlink() throws IOException {
+        Hyperlink link = Hyperlink.of("https://example.com/ü");
+        Utf8Output out = new Utf8Output();
+        link.toAnsi(out);
+        link.toAnsi(out);
+        assertThat(out.toString()).isEqualTo(link.toAnsi() + link.toAnsi());
+    }
+
+    @Test
+    public void testResetAndWriteTo() throws IOException {
+        Utf8Output out = new Utf8Output();
+        out.append("first");
+        out.reset().append("second ").appendInt(1234);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        out.writeTo(bos);
+        assertThat(out.size()).isEqualTo(11);
+        assertThat(bos.toString("UTF-8")).isEqualTo("second 1234");
+    }
+}